@@ -0,0 +1,122 @@
+package io.beans.collections;
+
+/**
+ * A thread safe variant of {@link IdentityCounter}.
+ *
+ * The instances are spread over several segments, each of them an IdentityCounter with its own lock. Threads only
+ * contend when they access instances of the same segment at the same time.
+ *
+ * @author kuli
+ */
+public final class ConcurrentIdentityCounter {
+
+    private final IdentityCounter[] segments;
+
+    private final int segmentMask;
+
+    public ConcurrentIdentityCounter() {
+        this(64);
+    }
+
+    /**
+     * Creates a counter with at least the given number of segments.
+     */
+    public ConcurrentIdentityCounter(int concurrencyLevel) {
+        int n = Integer.highestOneBit(Math.max(1, concurrencyLevel - 1)) << 1;
+        segments = new IdentityCounter[n];
+        for (int i = 0; i < n; i++) {
+            segments[i] = new IdentityCounter();
+        }
+        segmentMask = n - 1;
+    }
+
+    private IdentityCounter segmentFor(Object instance) {
+        // IdentityCounter itself uses the high bits of the hash, so take the low ones here
+        return segments[System.identityHashCode(instance) & segmentMask];
+    }
+
+    /**
+     * @see IdentityCounter#get(Object)
+     */
+    public int get(Object instance) {
+        IdentityCounter s = segmentFor(instance);
+        synchronized (s) {
+            return s.get(instance);
+        }
+    }
+
+    public boolean contains(Object instance) {
+        IdentityCounter s = segmentFor(instance);
+        synchronized (s) {
+            return s.contains(instance);
+        }
+    }
+
+    /**
+     * @see IdentityCounter#add(Object)
+     */
+    public boolean add(Object instance) {
+        IdentityCounter s = segmentFor(instance);
+        synchronized (s) {
+            return s.add(instance);
+        }
+    }
+
+    /**
+     * @see IdentityCounter#put(Object, int)
+     */
+    public int put(Object instance, int count) {
+        IdentityCounter s = segmentFor(instance);
+        synchronized (s) {
+            return s.put(instance, count);
+        }
+    }
+
+    /**
+     * @see IdentityCounter#increment(Object)
+     */
+    public int increment(Object instance) {
+        IdentityCounter s = segmentFor(instance);
+        synchronized (s) {
+            return s.increment(instance);
+        }
+    }
+
+    /**
+     * The number of contained instances. Only accurate if no other thread is modifying this counter.
+     */
+    public int size() {
+        int size = 0;
+        for (IdentityCounter s : segments) {
+            synchronized (s) {
+                size += s.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Removes all instances, but keeps the allocated tables.
+     */
+    public void clear() {
+        for (IdentityCounter s : segments) {
+            synchronized (s) {
+                s.clear();
+            }
+        }
+    }
+
+    /**
+     * Gets the internal segments to iterate over them.
+     *
+     * They must not be accessed while other threads are still modifying this counter.
+     */
+    public IdentityCounter[] segments() {
+        return segments.clone();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " with " + size() + " instances";
+    }
+}
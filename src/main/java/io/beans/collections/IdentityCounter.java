@@ -0,0 +1,253 @@
+package io.beans.collections;
+
+import java.util.Arrays;
+
+/**
+ * A set of instances that are compared by identity, with an int counter for each of them.
+ *
+ * The instances are stored in an open addressed table with linear probing, and the counters in a parallel int array.
+ * Adding an instance doesn't allocate anything unless the table needs to grow, and no counter ever gets boxed.
+ *
+ * A counter of zero has a special meaning: the instance is known, but not counted. Such counters are never
+ * incremented.
+ *
+ * <code>null</code> is not allowed as an element.
+ *
+ * This class is not thread safe.
+ *
+ * @author kuli
+ */
+public final class IdentityCounter {
+
+    /**
+     * Returned by the lookup methods when the instance is not contained.
+     */
+    public static final int ABSENT = -1;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private Object[] keys;
+
+    private int[] counts;
+
+    private int size;
+
+    private int threshold;
+
+    private int shift;
+
+    public IdentityCounter() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Creates an empty counter that can take the given number of instances without resizing.
+     */
+    public IdentityCounter(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < MAX_CAPACITY && thresholdFor(capacity) < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private static int thresholdFor(int capacity) {
+        // Load factor 2/3, same as in IdentityHashMap
+        return (int) (capacity * 2L / 3);
+    }
+
+    private void allocate(int capacity) {
+        keys = new Object[capacity];
+        counts = new int[capacity];
+        threshold = thresholdFor(capacity);
+        shift = Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    private int slotFor(Object instance) {
+        // Fibonacci hashing, uses the high bits of the product
+        return (System.identityHashCode(instance) * 0x9E3779B9) >>> shift;
+    }
+
+    /**
+     * Finds the slot of the given instance, or the empty slot where it would get inserted.
+     */
+    private int find(Object instance) {
+        Object[] k = keys;
+        int mask = k.length - 1;
+        int i = slotFor(instance);
+        Object existing;
+        while ((existing = k[i]) != null && existing != instance) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void insertAt(int slot, Object instance, int count) {
+        keys[slot] = instance;
+        counts[slot] = count;
+        if (++size > threshold) grow();
+    }
+
+    private void grow() {
+        if (keys.length == MAX_CAPACITY) throw new IllegalStateException("Too many instances: " + size);
+
+        Object[] oldKeys = keys;
+        int[] oldCounts = counts;
+        allocate(oldKeys.length << 1);
+
+        Object[] k = keys;
+        int mask = k.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            Object o = oldKeys[j];
+            if (o == null) continue;
+
+            int i = slotFor(o);
+            while (k[i] != null) {
+                i = (i + 1) & mask;
+            }
+            k[i] = o;
+            counts[i] = oldCounts[j];
+        }
+    }
+
+    /**
+     * The number of contained instances.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(Object instance) {
+        return keys[find(instance)] != null;
+    }
+
+    /**
+     * Gets the counter of the given instance, or ABSENT if it's not contained.
+     */
+    public int get(Object instance) {
+        int i = find(instance);
+        return keys[i] == null ? ABSENT : counts[i];
+    }
+
+    /**
+     * Adds the instance with a counter of 1 if it's not contained yet.
+     *
+     * @return <code>true</code> if the instance was added
+     */
+    public boolean add(Object instance) {
+        int i = find(instance);
+        if (keys[i] != null) return false;
+
+        insertAt(i, instance, 1);
+        return true;
+    }
+
+    /**
+     * Sets the counter of the given instance, and adds it if necessary.
+     *
+     * @return The previous counter, or ABSENT if the instance was added
+     */
+    public int put(Object instance, int count) {
+        assert count >= 0;
+        int i = find(instance);
+        if (keys[i] == null) {
+            insertAt(i, instance, count);
+            return ABSENT;
+        }
+        int previous = counts[i];
+        counts[i] = count;
+        return previous;
+    }
+
+    /**
+     * Increments the counter of the given instance, or adds it with a counter of 1.
+     *
+     * Counters of zero stay zero.
+     *
+     * @return The previous counter, or ABSENT if the instance was added
+     */
+    public int increment(Object instance) {
+        int i = find(instance);
+        if (keys[i] == null) {
+            insertAt(i, instance, 1);
+            return ABSENT;
+        }
+        int previous = counts[i];
+        if (previous > 0) counts[i] = previous + 1;
+        return previous;
+    }
+
+    /**
+     * Removes the given instance.
+     *
+     * The following entries of the same cluster get shifted back, so no tombstones are left in the table.
+     *
+     * @return The counter of the removed instance, or ABSENT if it wasn't contained
+     */
+    public int remove(Object instance) {
+        int i = find(instance);
+        Object[] k = keys;
+        if (k[i] == null) return ABSENT;
+
+        int previous = counts[i];
+        int mask = k.length - 1;
+        int hole = i;
+        Object o;
+        while ((o = k[i = (i + 1) & mask]) != null) {
+            int home = slotFor(o);
+            // Move it into the hole if the hole lies between its home slot and its current slot
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                k[hole] = o;
+                counts[hole] = counts[i];
+                hole = i;
+            }
+        }
+        k[hole] = null;
+        counts[hole] = 0;
+        size--;
+        return previous;
+    }
+
+    /**
+     * Removes all instances, but keeps the allocated table.
+     */
+    public void clear() {
+        if (size == 0) return;
+        Arrays.fill(keys, null);
+        Arrays.fill(counts, 0);
+        size = 0;
+    }
+
+    /**
+     * The length of the internal table. Use this together with instanceAt() and countAt() to iterate over all
+     * elements without allocating an iterator.
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * Gets the instance in the given slot, or <code>null</code> if that slot is empty.
+     */
+    public Object instanceAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Gets the counter of the given slot. Only meaningful if instanceAt() returns a value for this slot.
+     */
+    public int countAt(int slot) {
+        return counts[slot];
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " with " + size + " instances";
+    }
+}
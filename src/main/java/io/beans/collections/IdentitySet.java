@@ -0,0 +1,122 @@
+package io.beans.collections;
+
+import java.util.Arrays;
+
+/**
+ * A set of instances that are compared by identity.
+ *
+ * Same table as in IdentityCounter, but without the counters, so it needs only half of the memory. Nothing can be
+ * removed.
+ *
+ * <code>null</code> is not allowed as an element.
+ *
+ * This class is not thread safe.
+ *
+ * @author kuli
+ */
+public final class IdentitySet {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private Object[] keys;
+
+    private int size;
+
+    private int threshold;
+
+    private int shift;
+
+    public IdentitySet() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        keys = new Object[capacity];
+        // Load factor 2/3, same as in IdentityHashMap
+        threshold = (int) (capacity * 2L / 3);
+        shift = Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    private int slotFor(Object instance) {
+        return (System.identityHashCode(instance) * 0x9E3779B9) >>> shift;
+    }
+
+    private int find(Object instance) {
+        Object[] k = keys;
+        int mask = k.length - 1;
+        int i = slotFor(instance);
+        Object existing;
+        while ((existing = k[i]) != null && existing != instance) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void grow() {
+        if (keys.length == MAX_CAPACITY) throw new IllegalStateException("Too many instances: " + size);
+
+        Object[] oldKeys = keys;
+        allocate(oldKeys.length << 1);
+
+        Object[] k = keys;
+        int mask = k.length - 1;
+        for (Object o : oldKeys) {
+            if (o == null) continue;
+
+            int i = slotFor(o);
+            while (k[i] != null) {
+                i = (i + 1) & mask;
+            }
+            k[i] = o;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(Object instance) {
+        return keys[find(instance)] != null;
+    }
+
+    /**
+     * Adds the instance if it's not contained yet.
+     *
+     * @return <code>true</code> if the instance was added
+     */
+    public boolean add(Object instance) {
+        int i = find(instance);
+        if (keys[i] != null) return false;
+
+        keys[i] = instance;
+        if (++size > threshold) grow();
+        return true;
+    }
+
+    /**
+     * Removes all instances, but keeps the allocated table.
+     */
+    public void clear() {
+        if (size == 0) return;
+        Arrays.fill(keys, null);
+        size = 0;
+    }
+
+    /**
+     * The length of the internal table.
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " with " + size + " instances";
+    }
+}
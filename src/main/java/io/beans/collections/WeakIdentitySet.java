@@ -0,0 +1,203 @@
+package io.beans.collections;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+/**
+ * A set of instances that are compared by identity, and that are only weakly referenced.
+ *
+ * The instances are wrapped into weak references in an open addressed table with linear probing. Cleared references
+ * stay in the table until it gets rebuilt, so that no probe sequence is ever broken. The table is rebuilt as soon as
+ * too many of them have been cleared, or when it needs to grow.
+ *
+ * Only one thread at a time may add instances, but any number of threads can look them up concurrently without
+ * locking. A concurrent lookup may miss an instance that's being added at the same time.
+ *
+ * <code>null</code> is not allowed as an element.
+ *
+ * @author kuli
+ */
+public final class WeakIdentitySet {
+
+    private static final int MIN_CAPACITY = 8;
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private static final Object[] NO_INSTANCES = {};
+
+    private static final class Entry extends WeakReference<Object> {
+        final int hash;
+
+        /**
+         * Whether a rebuild dropped this entry from the table, so that it doesn't count as cleared any more.
+         */
+        boolean dropped;
+
+        Entry(Object instance, int hash, ReferenceQueue<Object> queue) {
+            super(instance, queue);
+            this.hash = hash;
+        }
+    }
+
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+    /**
+     * Replaced when the table gets rebuilt, and written again after each insertion so that readers see it.
+     */
+    private volatile Entry[] table;
+
+    /**
+     * The number of entries in the table, including the cleared ones.
+     */
+    private int size;
+
+    /**
+     * The number of entries in the table that are known to be cleared.
+     */
+    private int cleared;
+
+    private int threshold;
+
+    public WeakIdentitySet() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        table = new Entry[capacity];
+        // Load factor 2/3, same as in IdentityHashMap
+        threshold = (int) (capacity * 2L / 3);
+    }
+
+    private static int slotFor(int hash, int capacity) {
+        // Fibonacci hashing, uses the high bits of the product
+        return (hash * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    /**
+     * The number of contained instances. Can be too high, because instances may be collected at any time.
+     */
+    public int size() {
+        return size - cleared;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Checks whether the given instance is contained. Can be called from any thread.
+     */
+    public boolean contains(Object instance) {
+        Entry[] t = table;
+        int mask = t.length - 1;
+        int hash = System.identityHashCode(instance);
+        Entry e;
+        for (int i = slotFor(hash, t.length); (e = t[i]) != null; i = (i + 1) & mask) {
+            if (e.hash == hash && e.get() == instance) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the instance if it's not contained yet. Must not be called concurrently.
+     *
+     * @return <code>true</code> if the instance was added
+     */
+    public boolean add(Object instance) {
+        if (instance == null) throw new NullPointerException();
+        expungeCleared();
+
+        Entry[] t = table;
+        int mask = t.length - 1;
+        int hash = System.identityHashCode(instance);
+        int i = slotFor(hash, t.length);
+        Entry e;
+        while ((e = t[i]) != null) {
+            if (e.hash == hash && e.get() == instance) return false;
+            i = (i + 1) & mask;
+        }
+        t[i] = new Entry(instance, hash, queue);
+        if (++size > threshold) {
+            rebuild();
+        } else {
+            // Publishes the new entry
+            table = t;
+        }
+        return true;
+    }
+
+    /**
+     * Counts the references that were cleared since the last call, and rebuilds the table if they're too many.
+     */
+    private void expungeCleared() {
+        Entry e;
+        while ((e = (Entry) queue.poll()) != null) {
+            if (!e.dropped) cleared++;
+        }
+        if (cleared > MIN_CAPACITY && cleared > size / 2) rebuild();
+    }
+
+    /**
+     * Copies all live entries into a new table, which is only larger if they're too many for the current one.
+     */
+    private void rebuild() {
+        Entry[] oldTable = table;
+        int live = 0;
+        for (Entry e : oldTable) {
+            if (e != null && e.get() != null) live++;
+        }
+        int capacity = MIN_CAPACITY;
+        // Leave room for as many new instances as there are live ones, so that this doesn't happen too often
+        while (capacity < MAX_CAPACITY && capacity * 2L / 3 <= live * 2L) {
+            capacity <<= 1;
+        }
+        if (live >= MAX_CAPACITY * 2L / 3) throw new IllegalStateException("Too many instances: " + live);
+
+        Entry[] t = new Entry[capacity];
+        int mask = capacity - 1;
+        int count = 0;
+        for (Entry e : oldTable) {
+            if (e == null) continue;
+            if (e.get() == null) {
+                // Might not be enqueued yet
+                e.dropped = true;
+                continue;
+            }
+
+            int i = slotFor(e.hash, capacity);
+            while (t[i] != null) {
+                i = (i + 1) & mask;
+            }
+            t[i] = e;
+            count++;
+        }
+        size = count;
+        cleared = 0;
+        threshold = (int) (capacity * 2L / 3);
+        table = t;
+    }
+
+    /**
+     * All instances that are still alive. Can be called from any thread.
+     */
+    public Object[] toArray() {
+        Entry[] t = table;
+        Object[] instances = null;
+        int count = 0;
+        for (Entry e : t) {
+            Object o;
+            if (e == null || (o = e.get()) == null) continue;
+
+            if (instances == null) instances = new Object[Math.min(t.length, 16)];
+            else if (count == instances.length) instances = Arrays.copyOf(instances, count << 1);
+            instances[count++] = o;
+        }
+        return count == 0 ? NO_INSTANCES : Arrays.copyOf(instances, count);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " with " + size() + " instances";
+    }
+}
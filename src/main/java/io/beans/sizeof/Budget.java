@@ -0,0 +1,74 @@
+package io.beans.sizeof;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Limits for a measurement, so that it can safely run on a thread that must not get blocked for long.
+ *
+ * A collector with a budget stops walking the graph as soon as one of the limits is reached. Its statistics are
+ * then marked as partial: All totals are lower bounds, and the number of references that were not followed any more
+ * is available.
+ *
+ * By default, nothing is limited.
+ *
+ * @author kuli
+ */
+public final class Budget {
+
+    private long timeLimitNanos = Long.MAX_VALUE;
+
+    private int maxInstances = Integer.MAX_VALUE;
+
+    private long maxOverhead = Long.MAX_VALUE;
+
+    /**
+     * The maximum time from the first measured instance on.
+     */
+    public Budget setTimeLimit(long time, TimeUnit unit) {
+        if (time < 0) throw new IllegalArgumentException("Negative time limit: " + time);
+        timeLimitNanos = unit.toNanos(time);
+        return this;
+    }
+
+    /**
+     * The maximum number of counted instances.
+     */
+    public Budget setMaxInstances(int maxInstances) {
+        if (maxInstances < 0) throw new IllegalArgumentException("Negative instance limit: " + maxInstances);
+        this.maxInstances = maxInstances;
+        return this;
+    }
+
+    /**
+     * The maximum memory that the collector itself may use for its bookkeeping, in bytes.
+     */
+    public Budget setMaxOverhead(long bytes) {
+        if (bytes < 0) throw new IllegalArgumentException("Negative overhead limit: " + bytes);
+        this.maxOverhead = bytes;
+        return this;
+    }
+
+    public long getTimeLimit(TimeUnit unit) {
+        return unit.convert(timeLimitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public int getMaxInstances() {
+        return maxInstances;
+    }
+
+    public long getMaxOverhead() {
+        return maxOverhead;
+    }
+
+    long timeLimitNanos() {
+        return timeLimitNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "Budget: " + (timeLimitNanos == Long.MAX_VALUE ? "unlimited" : timeLimitNanos / 1000000 + " ms")
+                + ", " + (maxInstances == Integer.MAX_VALUE ? "unlimited" : maxInstances) + " instances, "
+                + (maxOverhead == Long.MAX_VALUE ? "unlimited" : maxOverhead + " bytes") + " overhead";
+    }
+}
@@ -0,0 +1,11 @@
+package io.beans.sizeof;
+
+/**
+ * Used to select the classes whose instances get measured.
+ *
+ * @author kuli
+ */
+public interface ClassFilter {
+
+    boolean accept(Class<?> type);
+}
@@ -0,0 +1,136 @@
+package io.beans.sizeof;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+
+/**
+ * Finds the names of classes by a prefix, in the directories and jar files of a class loader, its parents, and the
+ * boot class path.
+ *
+ * Other locations, like the runtime image of Java 9 and later, are not searched. Locations that can't be read are
+ * skipped.
+ *
+ * @author kuli
+ */
+final class ClassScanner {
+
+    private ClassScanner() {
+        throw new AssertionError("Static class!");
+    }
+
+    /**
+     * Adds the names of all classes of the given loader that start with the prefix, including nested ones.
+     */
+    static void findClassNames(ClassLoader loader, String prefix, Collection<String> names) {
+        // The package that contains all matching classes
+        int lastDot = prefix.lastIndexOf('.');
+        String packagePath = lastDot < 0 ? "" : prefix.substring(0, lastDot).replace('.', '/');
+        String pathPrefix = prefix.replace('.', '/');
+        String path = packagePath.isEmpty() ? "" : packagePath + "/";
+
+        Set<File> packageDirs = new LinkedHashSet<>();
+        Set<File> jars = new LinkedHashSet<>();
+        try {
+            for (Enumeration<URL> e = loader.getResources(packagePath); e.hasMoreElements();) {
+                URL url = e.nextElement();
+                if ("file".equals(url.getProtocol())) {
+                    packageDirs.add(toFile(url));
+                } else if ("jar".equals(url.getProtocol())) {
+                    String spec = url.getPath();
+                    int separator = spec.indexOf("!/");
+                    if (separator >= 0) jars.add(toFile(new URL(spec.substring(0, separator))));
+                }
+            }
+        } catch (IOException | IllegalArgumentException ex) {
+            // Look at the class paths only
+        }
+
+        // Jar files without entries for their directories are only found in the class paths
+        List<File> classPath = new ArrayList<>();
+        for (ClassLoader l = loader; l != null; l = l.getParent()) {
+            if (!(l instanceof URLClassLoader)) continue;
+            for (URL url : ((URLClassLoader) l).getURLs()) {
+                if ("file".equals(url.getProtocol())) classPath.add(toFile(url));
+            }
+        }
+        String bootClassPath = System.getProperty("sun.boot.class.path");
+        if (bootClassPath != null) {
+            for (String entry : bootClassPath.split(File.pathSeparator)) {
+                classPath.add(new File(entry));
+            }
+        }
+        for (File f : classPath) {
+            if (f.isDirectory()) {
+                packageDirs.add(new File(f, packagePath));
+            } else if (f.isFile()) {
+                jars.add(f);
+            }
+        }
+
+        for (File dir : packageDirs) {
+            findInDirectory(dir, path, pathPrefix, names);
+        }
+        for (File jar : jars) {
+            try {
+                findInJar(jar, pathPrefix, names);
+            } catch (IOException ex) {
+                // Not readable
+            }
+        }
+    }
+
+    private static File toFile(URL url) {
+        try {
+            return new File(url.toURI()).getAbsoluteFile();
+        } catch (URISyntaxException | IllegalArgumentException ex) {
+            return new File(url.getPath()).getAbsoluteFile();
+        }
+    }
+
+    private static void findInDirectory(File dir, String path, String pathPrefix, Collection<String> names) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+
+        for (File f : files) {
+            String name = path + f.getName();
+            if (f.isDirectory()) {
+                // Only descend where matching classes can be
+                String subPath = name + "/";
+                if (subPath.startsWith(pathPrefix) || pathPrefix.startsWith(subPath)) {
+                    findInDirectory(f, subPath, pathPrefix, names);
+                }
+            } else {
+                addIfClass(name, pathPrefix, names);
+            }
+        }
+    }
+
+    private static void findInJar(File jar, String pathPrefix, Collection<String> names) throws IOException {
+        try (ZipFile zip = new ZipFile(jar)) {
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+                ZipEntry entry = e.nextElement();
+                if (!entry.isDirectory()) addIfClass(entry.getName(), pathPrefix, names);
+            }
+        }
+    }
+
+    private static void addIfClass(String path, String pathPrefix, Collection<String> names) {
+        if (!path.endsWith(".class") || !path.startsWith(pathPrefix)) return;
+        // Versioned classes of multi-release jars, module-info, package-info
+        if (path.startsWith("META-INF/") || path.indexOf('-') >= 0) return;
+
+        names.add(path.substring(0, path.length() - 6).replace('/', '.'));
+    }
+}
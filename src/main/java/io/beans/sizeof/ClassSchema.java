@@ -1,78 +1,35 @@
 package io.beans.sizeof;
 
 import io.beans.util.SwissArmyKnife;
+import java.lang.instrument.Instrumentation;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
  * Calculates statistics about classes, and allows iteration over all referenced instances.
  * 
- * Makes use of undocumented Unsafe instance.
- * 
- * @see http://www.docjar.com/docs/api/sun/misc/Unsafe.html
- * 
- * @Todo Be aware of upcoming @Contended annotation which might get introduced in JDK8.
+ * How fields are read and how sizes are calculated depends on the {@link LayoutBackend}; the default one makes use
+ * of the undocumented Unsafe instance.
  * 
  * @author kuli
  */
 @SuppressWarnings("restriction")
 public abstract class ClassSchema<T> {
 
-    private static final sun.misc.Unsafe unsafe;
-
-    private static final class X {
-        @SuppressWarnings("unused")
-        int i;
-
-        @SuppressWarnings("unused")
-        Object a, b, c;
-    }
-
-    private static final long emptyObjectSize;
-
-    private static final long alignmentMask, alignmentSummand;
-
-    private static final long objectRefSize;
-
-    static {
-        try {
-            Field unsafeField = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
-            unsafeField.setAccessible(true);
-            unsafe = (sun.misc.Unsafe) unsafeField.get(null);
-        } catch (Exception ex) {
-            throw new AssertionError("sun.misc.Unsafe is not accessible.");
-        }
-
-        int bytesPerAddress = unsafe.addressSize();
-        int bitShift = Integer.numberOfTrailingZeros(bytesPerAddress);
-        alignmentMask = (~0L) << bitShift;
-        alignmentSummand = bytesPerAddress;
-
-        long minRef = Long.MAX_VALUE;
-        long[] refs = new long[X.class.getDeclaredFields().length];
-        int i = 0;
-        for (Field f : X.class.getDeclaredFields()) {
-            long fAddr = unsafe.objectFieldOffset(f);
-            if (fAddr < minRef) minRef = fAddr;
-            refs[i++] = fAddr;
-        }
-        emptyObjectSize = minRef;
-        Arrays.sort(refs); // Just in case...
-        long oSize = 0;
-        for (i = 1; i < 4; i++) {
-            long thisSize = refs[i] - refs[i - 1];
-            oSize = Math.max(oSize, thisSize);
-        }
-        objectRefSize = oSize;
-    }
-
-    private static long alignAddress(long address) {
-        long aligned = address & alignmentMask;
-        return aligned == address ? aligned : aligned + alignmentSummand;
-    }
+    /**
+     * Only used by the schemas of the Unsafe backend.
+     */
+    private static final sun.misc.Unsafe unsafe = UnsafeBackend.unsafe;
 
     final Class<T> type;
 
@@ -91,18 +48,125 @@ public abstract class ClassSchema<T> {
 
     abstract void safeIterate(Object container, FieldCallback callback);
 
+    /**
+     * Same as safeIterate(), but passes the interned ids of the references instead of their names. Null elements of
+     * arrays are skipped.
+     */
+    abstract void iterateIds(Object container, ReferenceCallback callback);
+
+    /**
+     * Large arrays are visited in chunks of this many elements.
+     */
+    static final int ARRAY_CHUNK = 4096;
+
+    /**
+     * Same as iterateIds(), but only visits the elements from..to of an object array. Other schemas visit all of
+     * their references.
+     */
+    void iterateIds(Object container, int from, int to, ReferenceCallback callback) {
+        iterateIds(container, callback);
+    }
+
+    /**
+     * Same as iterateIds() on the elements from..to, but internal nodes of the container may get owned by the callback
+     * and have their references visited directly, instead of being visited themselves.
+     */
+    void walkIds(Object container, int from, int to, ContainerCallback callback) {
+        iterateIds(container, from, to, callback);
+    }
+
+    /**
+     * The number of elements of the given object array, or 0 for other schemas.
+     */
+    int elementCount(Object container) {
+        return 0;
+    }
+
+    /**
+     * The reference id of the elements, if this is the schema of an object array, or -1.
+     */
+    int elementRefId() {
+        return -1;
+    }
+
+    /**
+     * The component type, if this is the schema of an object array with a final component type that's no array, so
+     * that all of its elements have the same class and size; otherwise null.
+     */
+    Class<?> finalElementType() {
+        return null;
+    }
+
+    /**
+     * Whether all instances have the same size and don't reference anything.
+     */
+    boolean isLeaf() {
+        return false;
+    }
+
     public Class<T> getType() {
         return type;
     }
 
     public abstract long shallowSize(T instance);
 
+    /**
+     * A hash over the identities of all instances that are referenced by the given container, in field order.
+     *
+     * If the fingerprint didn't change, then the container most probably still references the same instances. Schemas
+     * without references always return 0.
+     */
+    long fingerprint(Object container) {
+        return 0;
+    }
+
+    /**
+     * The offsets of the visited fields, if this schema reads them with Unsafe; otherwise null.
+     */
+    long[] fieldOffsets() {
+        return null;
+    }
+
+    /**
+     * The names of the visited fields, in the same order as their fieldOffsets(), or null.
+     */
+    String[] fieldNames() {
+        return null;
+    }
+
+    /**
+     * Visits only the element at the given index, if this is the schema of an object array.
+     */
+    void visitElement(Object array, int index, ReferenceCallback callback) {
+        // No elements to visit
+    }
+
+    /**
+     * The name under which the given field of instances of the given type references other instances.
+     */
+    static String refName(Class<?> type, Field f) {
+        return type.getName() + "#" + f.getName();
+    }
+
+    /**
+     * The name under which arrays of the given type reference their elements.
+     */
+    static String elementRefName(Class<?> arrayType) {
+        return SwissArmyKnife.fullPrint(arrayType);
+    }
+
+    private static long mix(long hash, Object referenced) {
+        return (hash + (referenced == null ? 0 : System.identityHashCode(referenced))) * 0x9E3779B97F4A7C15L;
+    }
+
     private static class FieldRef {
         final String name;
+        final int id;
         final long ref;
 
         FieldRef(String name, long ref) {
             this.name = name;
+            this.id = ReferenceNames.idOf(name);
             this.ref = ref;
         }
     }
@@ -119,46 +183,42 @@ public abstract class ClassSchema<T> {
 
         final FieldRef[] refs;
 
+        private ObjectClassSchema(ObjectClassSchema<T> other) {
+            super(other.type);
+            size = other.size;
+            refs = other.refs;
+        }
+
+        private ObjectClassSchema(Class<T> type, long size, FieldRef[] refs) {
+            super(type);
+            this.size = size;
+            this.refs = refs;
+        }
+
         private ObjectClassSchema(Class<T> type, FieldFilter filter) {
             super(type);
 
-            long s = emptyObjectSize;
             FieldRef[] r = refsStart;
 
             int i = 0;
-            Class<?> lastFieldType = null;
             Class<?> c = type;
             do {
                 for (Field f : c.getDeclaredFields()) {
                     if (Modifier.isStatic(f.getModifiers())) continue;
 
-                    Class<?> t = f.getType();
-                    long offset = unsafe.objectFieldOffset(f);
-                    if (offset > s) {
-                        s = offset;
-                        lastFieldType = t;
-                    }
-                    if (t.isPrimitive()) {
+                    if (f.getType().isPrimitive()) {
                         continue;
                     }
 
                     if (filter.accept(f)) {
                         if (i >= r.length) r = Arrays.copyOf(r, i + 16);
-                        r[i++] = new FieldRef(type.getName() + "#" + f.getName(), offset);
+                        r[i++] = new FieldRef(refName(type, f), unsafe.objectFieldOffset(f));
                     }
                 }
             } while ((c = c.getSuperclass()) != null);
 
             this.refs = i == r.length ? r : Arrays.copyOf(r, i);
-
-            if (lastFieldType != null) {
-                if (lastFieldType.isPrimitive()) {
-                    s += (lastFieldType == long.class || lastFieldType == double.class) ? 8 : 4;
-                } else {
-                    s += objectRefSize;
-                }
-            }
-            this.size = alignAddress(s);
+            this.size = UnsafeBackend.instanceSize(type);
         }
 
         @Override
@@ -169,34 +229,299 @@ public abstract class ClassSchema<T> {
             }
         }
 
+        @Override
+        void iterateIds(Object container, ReferenceCallback callback) {
+            for (FieldRef r : refs) {
+                callback.visit(r.id, unsafe.getObject(container, r.ref));
+            }
+        }
+
+        @Override
+        boolean isLeaf() {
+            return refs.length == 0;
+        }
+
+        @Override
+        long fingerprint(Object container) {
+            long hash = 0;
+            for (FieldRef r : refs) {
+                hash = mix(hash, unsafe.getObject(container, r.ref));
+            }
+            return hash;
+        }
+
         @Override
         public long shallowSize(Object instance) {
             return size;
         }
 
+        @Override
+        long[] fieldOffsets() {
+            long[] offsets = new long[refs.length];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = refs[i].ref;
+            }
+            return offsets;
+        }
+
+        @Override
+        String[] fieldNames() {
+            int prefix = type.getName().length() + 1;
+            String[] names = new String[refs.length];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = refs[i].name.substring(prefix);
+            }
+            return names;
+        }
+
         @Override
         public String toString() {
             return super.toString() + " <" + refs.length + " obj-ref>";
         }
     }
 
+    /**
+     * Visits the references with a generated accessor instead of the loop over the fields.
+     */
+    private static final class GeneratedClassSchema<T> extends ObjectClassSchema<T> {
+        final ReferenceAccessor accessor;
+
+        private GeneratedClassSchema(ObjectClassSchema<T> schema, ReferenceAccessor accessor) {
+            super(schema);
+            this.accessor = accessor;
+        }
+
+        @Override
+        void iterateIds(Object container, ReferenceCallback callback) {
+            accessor.iterateIds(container, callback);
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + " (generated)";
+        }
+    }
+
+    /**
+     * Reads the references with reflection. Fields that are not opened to this library, like the internals of JDK
+     * classes under strong encapsulation, are read with Unsafe instead. If that's not available either, the schema
+     * can't be created.
+     */
+    private static final class ReflectiveClassSchema<T> extends ClassSchema<T> {
+        final long size;
+
+        final Field[] fields;
+
+        /**
+         * The Unsafe offset of each field that is not accessible, or -1 if it's read with reflection.
+         */
+        final long[] offsets;
+
+        final String[] names;
+
+        final int[] ids;
+
+        private ReflectiveClassSchema(Class<T> type, FieldFilter filter, long size) {
+            super(type);
+            this.size = size;
+
+            List<Field> visited = new ArrayList<>();
+            Class<?> c = type;
+            do {
+                for (Field f : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(f.getModifiers()) || f.getType().isPrimitive() || !filter.accept(f)) {
+                        continue;
+                    }
+                    visited.add(f);
+                }
+            } while ((c = c.getSuperclass()) != null);
+
+            int n = visited.size();
+            fields = visited.toArray(new Field[n]);
+            offsets = new long[n];
+            names = new String[n];
+            ids = new int[n];
+            for (int i = 0; i < n; i++) {
+                offsets[i] = accessOf(fields[i]);
+                names[i] = refName(type, fields[i]);
+                ids[i] = ReferenceNames.idOf(names[i]);
+            }
+        }
+
+        /**
+         * Makes the field accessible, or returns its Unsafe offset if it's not opened to us.
+         *
+         * @return -1 if the field is read with reflection
+         * @throws UnsupportedOperationException If the field can't be read at all
+         */
+        private static long accessOf(Field f) {
+            try {
+                f.setAccessible(true);
+                return -1;
+            } catch (RuntimeException ex) {
+                if (unsafe != null) {
+                    try {
+                        return unsafe.objectFieldOffset(f);
+                    } catch (RuntimeException ex2) {
+                        // Hidden classes and records
+                    }
+                }
+                throw new UnsupportedOperationException(
+                        "Can't read " + f + "; open its package to this library with --add-opens", ex);
+            }
+        }
+
+        private Object read(Object container, int i) {
+            long offset = offsets[i];
+            if (offset >= 0) return unsafe.getObject(container, offset);
+            try {
+                return fields[i].get(container);
+            } catch (IllegalAccessException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        void safeIterate(Object container, FieldCallback callback) {
+            for (int i = 0; i < fields.length; i++) {
+                callback.visit(names[i], read(container, i));
+            }
+        }
+
+        @Override
+        void iterateIds(Object container, ReferenceCallback callback) {
+            for (int i = 0; i < fields.length; i++) {
+                callback.visit(ids[i], read(container, i));
+            }
+        }
+
+        @Override
+        boolean isLeaf() {
+            return fields.length == 0;
+        }
+
+        @Override
+        long fingerprint(Object container) {
+            long hash = 0;
+            for (int i = 0; i < fields.length; i++) {
+                hash = mix(hash, read(container, i));
+            }
+            return hash;
+        }
+
+        @Override
+        public long shallowSize(T instance) {
+            return size;
+        }
+    }
+
+    /**
+     * Measures the exact shallow size of each instance with the instrumentation, and delegates everything else to the
+     * schema of another backend. The size of non-array types is measured only once.
+     */
+    private static final class InstrumentedSchema<T> extends ClassSchema<T> {
+        final ClassSchema<T> schema;
+
+        final Instrumentation instrumentation;
+
+        final boolean isArray;
+
+        /**
+         * The measured size of non-array types, or -1 if no instance was measured yet.
+         */
+        private volatile long size = -1;
+
+        private InstrumentedSchema(ClassSchema<T> schema, Instrumentation instrumentation) {
+            super(schema.type);
+            this.schema = schema;
+            this.instrumentation = instrumentation;
+            isArray = type.isArray();
+        }
+
+        @Override
+        public long shallowSize(T instance) {
+            if (instance == null) {
+                long s = size;
+                return s < 0 ? schema.shallowSize(null) : s;
+            }
+            if (isArray) return instrumentation.getObjectSize(instance);
+
+            long s = size;
+            if (s < 0) size = s = instrumentation.getObjectSize(instance);
+            return s;
+        }
+
+        @Override
+        void safeIterate(Object container, FieldCallback callback) {
+            schema.safeIterate(container, callback);
+        }
+
+        @Override
+        void iterateIds(Object container, ReferenceCallback callback) {
+            schema.iterateIds(container, callback);
+        }
+
+        @Override
+        void iterateIds(Object container, int from, int to, ReferenceCallback callback) {
+            schema.iterateIds(container, from, to, callback);
+        }
+
+        @Override
+        void walkIds(Object container, int from, int to, ContainerCallback callback) {
+            schema.walkIds(container, from, to, callback);
+        }
+
+        @Override
+        int elementCount(Object container) {
+            return schema.elementCount(container);
+        }
+
+        @Override
+        int elementRefId() {
+            return schema.elementRefId();
+        }
+
+        @Override
+        Class<?> finalElementType() {
+            return schema.finalElementType();
+        }
+
+        @Override
+        boolean isLeaf() {
+            return schema.isLeaf();
+        }
+
+        @Override
+        long fingerprint(Object container) {
+            return schema.fingerprint(container);
+        }
+
+        @Override
+        void visitElement(Object array, int index, ReferenceCallback callback) {
+            schema.visitElement(array, index, callback);
+        }
+    }
+
     private static abstract class ArraySchema<T> extends ClassSchema<T> {
         final long baseOffset;
 
         final long indexScale;
 
-        ArraySchema(Class<T> type) {
+        final LayoutBackend backend;
+
+        ArraySchema(Class<T> type, LayoutBackend backend) {
             super(type);
             assert type.isArray();
-            baseOffset = unsafe.arrayBaseOffset(type);
-            indexScale = unsafe.arrayIndexScale(type);
+            this.backend = backend;
+            baseOffset = backend.arrayBaseOffset(type);
+            indexScale = backend.arrayIndexScale(type);
         }
 
         @Override
         public long shallowSize(T array) {
             if (array == null) return baseOffset;
 
-            return alignAddress(stopAddress(array));
+            return backend.align(stopAddress(array));
         }
 
         private long stopAddress(Object array) {
@@ -206,22 +531,34 @@ public abstract class ClassSchema<T> {
     }
 
     private static class PrimitiveArraySchema<T> extends ArraySchema<T> {
-        private PrimitiveArraySchema(Class<T> type) {
-            super(type);
+        private PrimitiveArraySchema(Class<T> type, LayoutBackend backend) {
+            super(type, backend);
         }
 
         @Override
         void safeIterate(Object array, FieldCallback callback) {
             // Do nothing here
         }
+
+        @Override
+        void iterateIds(Object array, ReferenceCallback callback) {
+            // Do nothing here
+        }
     }
 
     private static class ObjectArraySchema<T> extends ArraySchema<T> {
         final String refName;
 
-        private ObjectArraySchema(Class<T> type) {
-            super(type);
-            refName = SwissArmyKnife.fullPrint(type);
+        final int refId;
+
+        final Class<?> finalElementType;
+
+        private ObjectArraySchema(Class<T> type, LayoutBackend backend) {
+            super(type, backend);
+            refName = elementRefName(type);
+            refId = ReferenceNames.idOf(refName);
+            Class<?> component = type.getComponentType();
+            finalElementType = Modifier.isFinal(component.getModifiers()) && !component.isArray() ? component : null;
         }
 
         @Override
@@ -230,36 +567,254 @@ public abstract class ClassSchema<T> {
                 callback.visit(refName, element);
             }
         }
+
+        @Override
+        void iterateIds(Object array, ReferenceCallback callback) {
+            Object[] a = (Object[]) array;
+            iterateIds(a, 0, a.length, callback);
+        }
+
+        @Override
+        void iterateIds(Object array, int from, int to, ReferenceCallback callback) {
+            Object[] a = (Object[]) array;
+            int id = refId;
+            for (int i = from; i < to; i++) {
+                Object element = a[i];
+                // Sparse tables are mostly empty
+                if (element != null) callback.visit(id, element);
+            }
+        }
+
+        @Override
+        int elementCount(Object array) {
+            return ((Object[]) array).length;
+        }
+
+        @Override
+        int elementRefId() {
+            return refId;
+        }
+
+        @Override
+        Class<?> finalElementType() {
+            return finalElementType;
+        }
+
+        @Override
+        void visitElement(Object array, int index, ReferenceCallback callback) {
+            callback.visit(refId, ((Object[]) array)[index]);
+        }
+
+        @Override
+        long fingerprint(Object array) {
+            long hash = 0;
+            for (Object element : (Object[]) array) {
+                hash = mix(hash, element);
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * The bucket tables of hash based maps. Each entry is a chain of nodes, and the schema walks these chains
+     * directly, so that only the keys and values get visited.
+     *
+     * Nodes of other classes, like the tree bins of large buckets, or the linked entries of a LinkedHashMap, get
+     * visited normally, since they reference other nodes as well. This way, the reference counts and names are the
+     * same as with the generic schema.
+     */
+    private static final class BucketArraySchema<T> extends ObjectArraySchema<T> {
+        final Class<?> nodeClass;
+
+        final long keyOffset, valueOffset, nextOffset;
+
+        final int keyRefId, valueRefId, nextRefId;
+
+        private BucketArraySchema(Class<T> type, LayoutBackend backend, Field key, Field value, Field next) {
+            super(type, backend);
+            nodeClass = type.getComponentType();
+            keyOffset = unsafe.objectFieldOffset(key);
+            valueOffset = unsafe.objectFieldOffset(value);
+            nextOffset = unsafe.objectFieldOffset(next);
+            keyRefId = ReferenceNames.idOf(refName(nodeClass, key));
+            valueRefId = ReferenceNames.idOf(refName(nodeClass, value));
+            nextRefId = ReferenceNames.idOf(refName(nodeClass, next));
+        }
+
+        @Override
+        void walkIds(Object array, int from, int to, ContainerCallback callback) {
+            Object[] a = (Object[]) array;
+            for (int i = from; i < to; i++) {
+                int id = refId;
+                for (Object node = a[i]; node != null; node = unsafe.getObject(node, nextOffset)) {
+                    if (node.getClass() != nodeClass) {
+                        callback.visit(id, node);
+                        break;
+                    }
+                    // Otherwise, the rest of the chain is visited from there
+                    if (!callback.own(id, node)) break;
+
+                    callback.visit(keyRefId, unsafe.getObject(node, keyOffset));
+                    callback.visit(valueRefId, unsafe.getObject(node, valueOffset));
+                    id = nextRefId;
+                }
+            }
+        }
+    }
+
+    /**
+     * The node classes of the bucket tables of known hash maps, with the name of their value field.
+     */
+    private static final Map<Class<?>, String> bucketNodes;
+
+    static {
+        Map<Class<?>, String> nodes = new HashMap<>();
+        addBucketNode(nodes, HashMap.class, "value");
+        addBucketNode(nodes, Hashtable.class, "value");
+        addBucketNode(nodes, ConcurrentHashMap.class, "val");
+        bucketNodes = Collections.unmodifiableMap(nodes);
+    }
+
+    private static void addBucketNode(Map<Class<?>, String> nodes, Class<?> mapType, String valueField) {
+        try {
+            Class<?> nodeClass = mapType.getDeclaredField("table").getType().getComponentType();
+            if (nodeClass != null) nodes.put(nodeClass, valueField);
+        } catch (NoSuchFieldException ex) {
+            // Some other implementation - use the generic schema
+        }
+    }
+
+    /**
+     * Creates the schema of a bucket table, or returns null if the given array type isn't one, or if the filter
+     * doesn't accept all of the node's references.
+     */
+    private static <T> ClassSchema<T> createBucketSchemaFor(Class<T> arrayType, FieldFilter filter,
+            LayoutBackend backend) {
+        Class<?> nodeClass = arrayType.getComponentType();
+        String valueField = bucketNodes.get(nodeClass);
+        if (valueField == null) return null;
+
+        try {
+            Field key = nodeClass.getDeclaredField("key");
+            Field value = nodeClass.getDeclaredField(valueField);
+            Field next = nodeClass.getDeclaredField("next");
+            if (!filter.accept(key) || !filter.accept(value) || !filter.accept(next)) return null;
+
+            return new BucketArraySchema<>(arrayType, backend, key, value, next);
+        } catch (NoSuchFieldException ex) {
+            return null;
+        }
     }
 
+    /**
+     * Creates the schema of the given type with the default backend.
+     */
     public static <T> ClassSchema<T> createSchemaFor(Class<T> type) {
         return createSchemaFor(type, FieldFilter.ACCEPT_ALL);
     }
 
+    /**
+     * Creates the schema of the given type with the default backend, which only visits the references whose fields
+     * the filter accepts.
+     */
     public static <T> ClassSchema<T> createSchemaFor(Class<T> type, FieldFilter filter) {
+        return createSchemaFor(type, filter, false);
+    }
+
+    /**
+     * Same as createSchemaFor(), but with a generated accessor for the references of non-array types, if possible.
+     */
+    static <T> ClassSchema<T> createSchemaFor(Class<T> type, FieldFilter filter, boolean generateAccessor) {
+        return LayoutBackend.getDefault().createSchemaFor(type, filter, generateAccessor);
+    }
+
+    static <T> ClassSchema<T> createSchemaFor(Class<T> type, FieldFilter filter, boolean generateAccessor,
+            LayoutBackend backend) {
         if (type.isArray()) {
             if (type.getComponentType().isPrimitive()) {
-                return new PrimitiveArraySchema<>(type);
-            } else {
-                return new ObjectArraySchema<>(type);
+                return new PrimitiveArraySchema<>(type, backend);
             }
+            ClassSchema<T> buckets = backend.readsWithUnsafe() ? createBucketSchemaFor(type, filter, backend) : null;
+            return buckets == null ? new ObjectArraySchema<>(type, backend) : buckets;
+        } else {
+            return backend.createObjectSchemaFor(type, filter, generateAccessor);
+        }
+    }
+
+    /**
+     * Creates the schema of a non-array type for the Unsafe backend.
+     */
+    static <T> ClassSchema<T> createUnsafeSchemaFor(Class<T> type, FieldFilter filter, boolean generateAccessor) {
+        return withAccessor(new ObjectClassSchema<>(type, filter), generateAccessor);
+    }
+
+    /**
+     * Creates the schema of a non-array type for the Unsafe backend from a layout that was calculated before, without
+     * looking at the fields again. The offsets must be the ones of the given field names in the running VM.
+     */
+    static <T> ClassSchema<T> createUnsafeSchemaFor(Class<T> type, long size, String[] fieldNames, long[] offsets,
+            boolean generateAccessor) {
+        FieldRef[] refs = new FieldRef[fieldNames.length];
+        for (int i = 0; i < refs.length; i++) {
+            refs[i] = new FieldRef(type.getName() + "#" + fieldNames[i], offsets[i]);
+        }
+        return withAccessor(new ObjectClassSchema<>(type, size, refs), generateAccessor);
+    }
+
+    private static <T> ClassSchema<T> withAccessor(ObjectClassSchema<T> schema, boolean generateAccessor) {
+        if (!generateAccessor) return schema;
+
+        int n = schema.refs.length;
+        int[] ids = new int[n];
+        long[] offsets = new long[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = schema.refs[i].id;
+            offsets[i] = schema.refs[i].ref;
+        }
+        ReferenceAccessor accessor = ReferenceAccessor.generate(ids, offsets);
+        return accessor == null ? schema : new GeneratedClassSchema<>(schema, accessor);
+    }
+
+    /**
+     * Creates the schema of a non-array type for the reflection backend, with the given shallow size.
+     */
+    static <T> ClassSchema<T> createReflectiveSchemaFor(Class<T> type, FieldFilter filter, long size) {
+        return new ReflectiveClassSchema<>(type, filter, size);
+    }
+
+    /**
+     * Wraps the given schema, so that it measures the shallow size of each instance with the given instrumentation.
+     */
+    static <T> ClassSchema<T> createInstrumentedSchema(ClassSchema<T> schema, Instrumentation instrumentation) {
+        return schema instanceof InstrumentedSchema ? schema : new InstrumentedSchema<>(schema, instrumentation);
+    }
+
+    /**
+     * Creates a schema that calculates the shallow size of the given type, but never visits any references.
+     */
+    static <T> ClassSchema<T> createLeafSchemaFor(Class<T> type, LayoutBackend backend) {
+        if (type.isArray()) {
+            return new PrimitiveArraySchema<>(type, backend);
         } else {
-            return new ObjectClassSchema<>(type, filter);
+            return backend.createObjectSchemaFor(type, FieldFilter.ACCEPT_NONE, false);
         }
     }
 
+    /**
+     * Visits the values of all static fields of the given type and its superclasses, read with the default backend.
+     */
     public static void iterateStatic(Class<?> type, FieldFilter filter, FieldCallback fc) {
+        iterateStatic(type, filter, fc, LayoutBackend.getDefault());
+    }
+
+    static void iterateStatic(Class<?> type, FieldFilter filter, FieldCallback fc, LayoutBackend backend) {
         Class<?> c = type;
         do {
             for (Field f : c.getDeclaredFields()) {
                 if (!Modifier.isStatic(f.getModifiers()) || f.getType().isPrimitive()) continue;
 
                 if (filter.accept(f)) {
-                    Object cookie = unsafe.staticFieldBase(f);
-                    long addr = unsafe.staticFieldOffset(f);
-                    Object val = unsafe.getObject(cookie, addr);
-
-                    fc.visit(f.getName(), val);
+                    fc.visit(f.getName(), backend.readStatic(f));
                 }
             }
         } while ((c = c.getSuperclass()) != null);
@@ -30,6 +30,10 @@ public interface ClassStats<T> {
             count++;
         }
 
+        void decrement() {
+            count--;
+        }
+
         @Override
         public boolean equals(Object obj) {
             return obj != null && obj.getClass() == Reference.class
@@ -70,7 +74,13 @@ public interface ClassStats<T> {
     int instanceCount();
 
     /**
-     * The total size of all instances within the object tree.
+     * The total size of all instances within the object tree that are reachable from at least one instance of this
+     * class, including these instances themselves.
+     * 
+     * Every reachable instance counts only once, even if it's reachable from several instances of this class. Hence
+     * this is the same as the deep size of all instances of this class measured together. Global instances don't
+     * count, and their references are not followed. Since shared instances count for every class they are reachable
+     * from, the total sizes of all classes usually add up to more than the collector's memoryUsed().
      * 
      * If the collector was created with the "calcSizeForEachClass" flag set to false, then this value is always 0.
      */
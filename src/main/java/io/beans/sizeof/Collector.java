@@ -1,9 +1,15 @@
 package io.beans.sizeof;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+
+import io.beans.collections.IdentityCounter;
 
 
 /**
@@ -11,6 +17,10 @@ import java.util.Map;
  * 
  * Multiple references to the same instance count only once.
  * 
+ * A collector can be reset() and used again for another measurement. It keeps its internal tables then, so repeated
+ * measurements of similar graphs allocate almost nothing. Collectors are not shared between threads, but they can be
+ * kept per thread.
+ * 
  * @author kuli
  */
 public class Collector implements Stats {
@@ -20,20 +30,68 @@ public class Collector implements Stats {
     static class ClassCollector<T> {
         final ClassSchema<T> schema;
 
-        final Map<Object, Integer> instancesToRefCounts = new IdentityHashMap<>();
+        /**
+         * The environment's schema of the type when this collector was created. Measurements with own schemas derive
+         * them from that one.
+         */
+        final ClassSchema<T> envSchema;
+
+        /**
+         * Counted instances with their reference counts. Global instances are contained with a count of zero, once
+         * they were visited.
+         */
+        final IdentityCounter instancesToRefCounts = new IdentityCounter();
+
+        private final Environment env;
 
         int instanceCount;
 
-        final Map<String, ClassStats.Reference> referencedBy = new HashMap<>();
+        final ReferenceCounts referencedBy = new ReferenceCounts();
+
+        /**
+         * Position of this collector within its measurement.
+         */
+        int index;
+
+        long totalSize;
+
+        /**
+         * The measurement which created this collector.
+         */
+        Measurement measurement;
 
-        ClassCollector(Environment env, Class<T> type) {
+        ClassCollector(Environment env, ClassSchema<T> schema) {
+            Class<T> type = schema.getType();
             assert !type.isInterface();
 
-            schema = env.getSchema(type);
+            this.schema = schema;
+            this.env = env;
+            envSchema = env.getSchema(type);
+        }
+
+        /**
+         * Forgets all counted instances and references, but keeps the tables.
+         */
+        void clear() {
+            instancesToRefCounts.clear();
+            referencedBy.clear();
+            instanceCount = 0;
+            totalSize = 0;
+        }
 
-            for (Object o : env.getGlobalObjects()) {
-                if (o.getClass().equals(type)) instancesToRefCounts.put(o, null);
+        /**
+         * Increments the reference counter of the given instance, like IdentityCounter.increment().
+         *
+         * Whether an instance is global is only looked up when it's visited for the first time, so creating a
+         * collector doesn't depend on the number of global instances.
+         */
+        int increment(Object instance) {
+            int count = instancesToRefCounts.increment(instance);
+            if (count == IdentityCounter.ABSENT && env.isGlobalInstance(instance)) {
+                instancesToRefCounts.put(instance, 0);
+                return 0;
             }
+            return count;
         }
         
         /**
@@ -46,10 +104,8 @@ public class Collector implements Stats {
         /**
          * I was referenced by some other bean.
          */
-        void ref(String refName, T instance, Measurement caller) {
-            ClassStats.Reference r = referencedBy.get(refName);
-            if (r == null) referencedBy.put(refName, new ClassStats.Reference(refName, 1));
-            else r.increment();
+        void ref(int refId, T instance, Measurement caller) {
+            referencedBy.increment(refId);
 
             execute(instance, caller, false);
         }
@@ -62,151 +118,478 @@ public class Collector implements Stats {
         }
 
         void execute(T instance, Measurement caller, boolean calcGlobalObjects) {
-            if (instancesToRefCounts.containsKey(instance)) {
-                Integer count = instancesToRefCounts.get(instance);
-                if (count != null) {
-                    instancesToRefCounts.put(instance, count + 1);
-                } else if (calcGlobalObjects) {
-                    calc(instance, caller);
-                }
-            } else {
-                instancesToRefCounts.put(instance, 1);
+            int count = increment(instance);
+            if (count == IdentityCounter.ABSENT) {
                 instanceCount++;
                 calc(instance, caller);
+            } else if (count == 0 && calcGlobalObjects) {
+                calc(instance, caller);
             }
         }
 
         void calc(T instance, Measurement measurement) {
-            measurement.measure(instance, schema);
+            measurement.measure(instance, this);
         }
 
+        /**
+         * The total size of all instances that are reachable from instances of this class, or 0 if not calculated.
+         */
         long totalSize() {
-            return 0;
+            return totalSize;
+        }
+
+        /**
+         * The total size of all instances that are dominated by instances of this class, or 0 if not calculated.
+         */
+        long retainedSize() {
+            return measurement == null ? 0 : measurement.retainedSizeOf(this);
+        }
+
+        /**
+         * The number of resets of its measurement so far, or 0 if it has none.
+         */
+        int generation() {
+            return measurement == null ? 0 : measurement.generation;
         }
 
         @Override
         public String toString() {
             if (instancesToRefCounts.isEmpty()) return getClass().getSimpleName() + " <- (" + referencedBy + ")";
             else
-                return getClass().getSimpleName() + " *" + instancesToRefCounts.keySet().iterator().next().getClass()
-                        + "* <- (" + referencedBy + ")";
+                return getClass().getSimpleName() + " *" + getType() + "* <- (" + referencedBy + ")";
         }
     }
 
     private static class GlobalClassCollector<T> extends ClassCollector<T> {
-        GlobalClassCollector(Environment env, Class<T> type) {
-            super(env, type);
+        GlobalClassCollector(Environment env, ClassSchema<T> schema) {
+            super(env, schema);
         }
 
         @Override
-        void ref(String refName, T instance, Measurement caller) {
+        void ref(int refId, T instance, Measurement caller) {
             // Do nothing - don't iterate through fields!
         }
     }
 
-    private static class MemoryCountingClassCollector<T> extends ClassCollector<T> {
-        private final Measurement classSpecificMeasurement;
+    /**
+     * Walks the object graph with an explicit work stack instead of recursion.
+     *
+     * Counting happens as soon as an instance is discovered; its fields are visited later when it gets popped from
+     * the stack. This way, the native stack depth stays constant, whatever the depth of the measured graph is.
+     */
+    private static class Measurement implements ContainerCallback {
+        final Environment env;
 
-        MemoryCountingClassCollector(Environment env, Class<T> type) {
-            super(env, type);
-            classSpecificMeasurement = new Measurement(env);
-        }
+        Map<Class<?>, ClassCollector<?>> classColl;
 
-        @Override
-        void calc(T instance, Measurement globalMeasurement) {
-            classSpecificMeasurement.measureIfNew(instance);
-            super.calc(instance, globalMeasurement);
-        }
+        /**
+         * The class collectors from before the last reset, which get reused for the same classes.
+         */
+        private Map<Class<?>, ClassCollector<?>> recycled;
 
-        @Override
-        long totalSize() {
-            return classSpecificMeasurement.totalSize;
-        }
-    }
+        long totalSize;
 
-    private static class Measurement implements FieldCallback {
-        final Environment env;
+        int instanceCount;
 
-        final Map<Class<?>, ClassCollector<?>> classColl;
+        /**
+         * Counted instances whose fields are not visited yet, together with their schemas. Large arrays appear with
+         * the offset of their first element that's not visited yet.
+         */
+        private Object[] pending = new Object[64];
 
-        long totalSize;
+        private ClassSchema<?>[] pendingSchemas = new ClassSchema<?>[64];
 
-        int instanceCount;
+        private int[] pendingOffsets = new int[64];
+
+        private int pendingCount;
+
+        /**
+         * Set when the measurement must not continue.
+         */
+        boolean stopped;
+
+        /**
+         * Gets notified about the traversal, or null.
+         */
+        TraversalListener listener;
+
+        /**
+         * The instance whose fields are visited currently.
+         */
+        Object current;
+
+        /**
+         * Incremented by each reset, so that statistics can tell whether they still belong to the current measurement.
+         */
+        int generation;
 
         Measurement(Environment env) {
             this.env = env;
             classColl = new HashMap<>();
+            recycled = new HashMap<>();
+        }
+
+        /**
+         * Forgets everything that was measured. The work stack and the tables of all class collectors are kept, and
+         * the collectors get reused when their classes are found again.
+         */
+        void reset() {
+            generation++;
+            totalSize = 0;
+            instanceCount = 0;
+            stopped = false;
+            current = null;
+            while (pendingCount > 0) {
+                int i = --pendingCount;
+                pending[i] = null;
+                pendingSchemas[i] = null;
+            }
+
+            // Collectors that weren't used by the last measurement are dropped
+            Map<Class<?>, ClassCollector<?>> m = recycled;
+            m.clear();
+            recycled = classColl;
+            classColl = m;
         }
 
         /**
-         * Measures the deep size of the given object.
+         * Counts the shallow size of the given object, and schedules its fields for being visited.
          */
-        <T> void measure(T instance, ClassSchema<T> schema) {
-            totalSize += schema.shallowSize(instance);
+        <T> void measure(T instance, ClassCollector<T> cc) {
+            ClassSchema<T> schema = cc.schema;
+            long size = schema.shallowSize(instance);
+            totalSize += size;
             instanceCount++;
+            if (listener != null) listener.counted(instance, size);
+            counted(instance, size, cc);
+            schedule(instance, schema);
+        }
 
-            schema.safeIterate(instance, this);
+        /**
+         * Schedules the fields of the given instance for being visited.
+         */
+        void schedule(Object instance, ClassSchema<?> schema) {
+            push(instance, schema, 0);
+        }
+
+        private void push(Object instance, ClassSchema<?> schema, int offset) {
+            if (pendingCount == pending.length) {
+                int newLength = pendingCount << 1;
+                pending = Arrays.copyOf(pending, newLength);
+                pendingSchemas = Arrays.copyOf(pendingSchemas, newLength);
+                pendingOffsets = Arrays.copyOf(pendingOffsets, newLength);
+            }
+            pending[pendingCount] = instance;
+            pendingOffsets[pendingCount] = offset;
+            pendingSchemas[pendingCount++] = schema;
         }
 
         /**
-         * Measures the deep size of the given object if it is not measured yet.
-         **/
-        <T> void measureIfNew(T value) {
-            ClassCollector<T> cc = getClassCollector(value);
-            cc.execute(value, this, false);
+         * Visits the fields of all scheduled instances until no more are left.
+         */
+        void drain() {
+            drain(0);
+        }
+
+        /**
+         * Visits the fields of all instances that were scheduled above the given stack height, including the ones that
+         * get scheduled meanwhile.
+         */
+        final void drain(int floor) {
+            while (pendingCount > floor && !stopped) {
+                int i = --pendingCount;
+                Object instance = pending[i];
+                ClassSchema<?> schema = pendingSchemas[i];
+                pending[i] = null;
+                pendingSchemas[i] = null;
+
+                expand(instance, schema, pendingOffsets[i]);
+            }
+        }
+
+        /**
+         * Visits the fields of the given counted instance, or the elements of an array from the given offset on.
+         */
+        final void expand(Object instance, ClassSchema<?> schema, int offset) {
+            current = instance;
+            if (offset == 0) visiting(instance);
+            iterate(instance, schema, offset);
+        }
+
+        /**
+         * Visits the fields of the given instance, or the elements of an array from the given offset on.
+         *
+         * Arrays that are larger than a chunk only get their next chunk visited, and the rest gets scheduled again.
+         * This way, the work stack doesn't grow by the length of the array, and its rest gets visited after
+         * everything that's reachable from the chunk.
+         */
+        void iterate(Object instance, ClassSchema<?> schema, int offset) {
+            int length = schema.elementCount(instance);
+            if (length == 0) {
+                schema.iterateIds(instance, this);
+                return;
+            }
+
+            int end = length;
+            if (length - offset > ClassSchema.ARRAY_CHUNK && splitsArrays()) {
+                end = offset + ClassSchema.ARRAY_CHUNK;
+                push(instance, schema, end);
+            }
+            Class<?> elementType = schema.finalElementType();
+            if (elementType != null && visitsInBulk()) {
+                visitFinal((Object[]) instance, offset, end, schema.elementRefId(), classCollectorFor(elementType));
+            } else if (walksContainers()) {
+                schema.walkIds(instance, offset, end, this);
+            } else {
+                schema.iterateIds(instance, offset, end, this);
+            }
+        }
+
+        /**
+         * Visits the elements of an array whose component type is final, so that all of them belong to the same class
+         * collector. Elements of a leaf type get counted right away instead of being scheduled.
+         */
+        private <T> void visitFinal(Object[] array, int from, int to, int refId, ClassCollector<T> cc) {
+            boolean counting = !(cc instanceof GlobalClassCollector);
+            ClassSchema<T> schema = cc.schema;
+            boolean leaf = schema.isLeaf();
+            // Taken from the first element, since some backends measure each class on its first instance
+            long size = -1;
+            int refs = 0;
+            for (int i = from; i < to; i++) {
+                @SuppressWarnings("unchecked")
+                T element = (T) array[i];
+                if (element == null) continue;
+
+                refs++;
+                if (listener != null) listener.referenced(array, ReferenceNames.nameOf(refId), element);
+                if (!counting || cc.increment(element) != IdentityCounter.ABSENT) continue;
+
+                cc.instanceCount++;
+                if (leaf) {
+                    if (size < 0) size = schema.shallowSize(element);
+                    totalSize += size;
+                    instanceCount++;
+                    if (listener != null) listener.counted(element, size);
+                    counted(element, size, cc);
+                } else {
+                    measure(element, cc);
+                }
+            }
+            if (counting) cc.referencedBy.add(refId, refs);
+        }
+
+        /**
+         * Whether large arrays get visited in chunks.
+         */
+        boolean splitsArrays() {
+            return true;
+        }
+
+        /**
+         * Whether arrays of a final component type get visited without calling visit() for each element.
+         */
+        boolean visitsInBulk() {
+            return true;
+        }
+
+        /**
+         * Whether schemas may walk the internal nodes of containers directly. Owned nodes are never passed to
+         * visiting(), and their references get visited while the container is the current instance.
+         */
+        boolean walksContainers() {
+            return visitsInBulk() && listener == null;
+        }
+
+        final int pendingCount() {
+            return pendingCount;
+        }
+
+        /**
+         * Drops all scheduled instances without visiting their fields. The callback gets called with the references
+         * of instances instead. The elements of arrays are not read at all, since that could take as long as the
+         * measurement itself; the number of their remaining slots is returned.
+         */
+        final long abandon(ReferenceCallback callback) {
+            long slots = 0;
+            while (pendingCount > 0) {
+                int i = --pendingCount;
+                Object instance = pending[i];
+                ClassSchema<?> schema = pendingSchemas[i];
+                int length = schema.elementCount(instance);
+                if (length > 0) {
+                    slots += length - pendingOffsets[i];
+                } else {
+                    schema.iterateIds(instance, callback);
+                }
+                pending[i] = null;
+                pendingSchemas[i] = null;
+            }
+            return slots;
+        }
+
+        /**
+         * The memory used for the bookkeeping of this measurement, roughly.
+         */
+        long overhead() {
+            long refSize = env.getLayoutBackend().referenceSize();
+            long size = pending.length * (2 * refSize + 4);
+            for (ClassCollector<?> cc : classColl.values()) {
+                size += cc.instancesToRefCounts.capacity() * (refSize + 4);
+            }
+            return size;
+        }
+
+        boolean isPartial() {
+            return false;
+        }
+
+        long unexploredReferences() {
+            return 0;
+        }
+
+        /**
+         * Called when an instance was counted for the first time.
+         */
+        void counted(Object instance, long size, ClassCollector<?> cc) {
+            // Nothing to do
+        }
+
+        /**
+         * Called before the fields of the given instance get visited.
+         */
+        void visiting(Object instance) {
+            // Nothing to do
+        }
+
+        /**
+         * Measures the deep size of the given object explicitely, even if it's a global instance.
+         */
+        <T> void measureRoot(T instance) {
+            ClassCollector<T> cc = getClassCollector(instance);
+            cc.startWith(instance, this);
+            drain();
         }
 
         final <T> ClassCollector<T> getClassCollector(T instance) {
             @SuppressWarnings("unchecked")
-            ClassCollector<T> cc = (ClassCollector<T>) classColl.get(instance.getClass());
+            Class<T> type = (Class<T>) instance.getClass();
+            return classCollectorFor(type);
+        }
+
+        final <T> ClassCollector<T> classCollectorFor(Class<T> type) {
+            @SuppressWarnings("unchecked")
+            ClassCollector<T> cc = (ClassCollector<T>) classColl.get(type);
             if (cc == null) {
-                @SuppressWarnings("unchecked")
-                Class<T> type = (Class<T>) instance.getClass();
-                cc = env.isGlobalClass(type) ? new GlobalClassCollector<>(env, type) : createNewCollector(type);
+                cc = reuse(type);
+                if (cc == null) {
+                    ClassSchema<T> schema = schemaFor(type);
+                    cc = isExcluded(type) ? new GlobalClassCollector<>(env, schema) : new ClassCollector<>(env, schema);
+                }
+                cc.index = classColl.size();
+                cc.measurement = this;
                 classColl.put(type, cc);
+                if (listener != null) listener.classFound(type, cc instanceof GlobalClassCollector);
             }
             return cc;
         }
 
-        <T> ClassCollector<T> createNewCollector(Class<T> type) {
-            return new ClassCollector<>(env, type);
+        /**
+         * The class collector of the given type from before the last reset, cleared, or null if there's none or the
+         * environment has changed the schema or the global verdict of its class meanwhile.
+         */
+        private <T> ClassCollector<T> reuse(Class<T> type) {
+            @SuppressWarnings("unchecked")
+            ClassCollector<T> cc = (ClassCollector<T>) recycled.remove(type);
+            if (cc == null || cc.envSchema != env.getSchema(type)
+                    || isExcluded(type) != cc instanceof GlobalClassCollector) {
+                return null;
+            }
+            cc.clear();
+            return cc;
+        }
+
+        /**
+         * The schema that is used to measure instances of the given type.
+         */
+        <T> ClassSchema<T> schemaFor(Class<T> type) {
+            return env.getSchema(type);
+        }
+
+        /**
+         * Whether instances of the given type are only counted when they're measured directly, like global instances.
+         */
+        boolean isExcluded(Class<?> type) {
+            return env.isGlobalClass(type);
         }
 
         /**
          * Measures the deep size of the given object if it is not measured yet, and
-         * registers the referencing source as the refName.
+         * registers the referencing source by its reference id.
          *
          * This is called from the ClassSchema.
          */
         @Override
-        public void visit(String refName, Object value) {
+        public void visit(int refId, Object value) {
             if (value != null) {
-                refTo(refName, value);
+                if (listener != null) listener.referenced(current, ReferenceNames.nameOf(refId), value);
+                refTo(refId, value);
             }
         }
 
+        /**
+         * Counts the given node of a container like a referenced instance, but leaves its references to the schema.
+         */
+        @Override
+        public boolean own(int refId, Object node) {
+            return own(refId, node, getClassCollector(node));
+        }
+
+        private <T> boolean own(int refId, Object node, ClassCollector<T> cc) {
+            if (cc instanceof GlobalClassCollector) return false;
+
+            cc.referencedBy.increment(refId);
+            @SuppressWarnings("unchecked")
+            T instance = (T) node;
+            if (cc.increment(instance) != IdentityCounter.ABSENT) return false;
+
+            cc.instanceCount++;
+            long size = cc.schema.shallowSize(instance);
+            totalSize += size;
+            instanceCount++;
+            counted(instance, size, cc);
+            return true;
+        }
+
         /**
          * Measures the deep size of the given object if it is not measured yet, and
-         * registers the referencing source as the refName.
+         * registers the referencing source by its reference id.
          **/
-        private <T> void refTo(String refName, T value) {
+        private <T> void refTo(int refId, T value) {
             ClassCollector<T> cc = getClassCollector(value);
-            cc.ref(refName, value, this);
+            cc.ref(refId, value, this);
         }
 
-        @Override
-        public void finished() {
-            // Nothing to do
+        long retainedSize(Object instance) {
+            return 0;
         }
 
-        private <T> ClassStats<T> statsFor(Class<T> type) {
+        Estimate estimate() {
+            return new Estimate(totalSize, 0);
+        }
+
+        long retainedSizeOf(ClassCollector<?> cc) {
+            return 0;
+        }
+
+        <T> RetainedClassStats<T> statsFor(Class<T> type) {
             @SuppressWarnings("unchecked")
             ClassCollector<T> cc = (ClassCollector<T>) classColl.get(type);
             return cc == null ? null : env.classStatsFor(cc);
         }
 
-        private ClassStats<?>[] stats() {
-            ClassStats<?>[] stats = new ClassStats<?>[classColl.size()];
+        RetainedClassStats<?>[] stats() {
+            RetainedClassStats<?>[] stats = new RetainedClassStats<?>[classColl.size()];
             int i = 0;
             for (ClassCollector<?> cc : classColl.values()) {
                 stats[i++] = env.classStatsFor(cc);
@@ -217,39 +600,606 @@ public class Collector implements Stats {
         }
     }
 
-    private static class IndividualClassMeasurement extends Measurement {
-        public IndividualClassMeasurement(Environment env) {
+    /**
+     * A measurement that also calculates the total and retained size of each class.
+     *
+     * While walking, it records the measured graph in an ObjectGraph. The total sizes and the dominator tree then get
+     * calculated from that record when they are requested, instead of walking the graph again for each class.
+     */
+    private static class GraphMeasurement extends Measurement {
+        final ObjectGraph graph = new ObjectGraph();
+
+        /**
+         * The most recently counted instance, which is often the next one that gets referenced.
+         */
+        private Object lastCounted;
+
+        private int lastCountedId;
+
+        /**
+         * The modification count of the graph when the sizes were calculated the last time.
+         */
+        private int calculatedFor = -1;
+
+        private DominatorTree dominators;
+
+        /**
+         * The modification count of the graph when the dominator tree was built.
+         */
+        private int dominatorsFor;
+
+        GraphMeasurement(Environment env) {
             super(env);
         }
 
         @Override
-        <T> ClassCollector<T> createNewCollector(Class<T> type) {
-            return new MemoryCountingClassCollector<>(env, type);
+        void reset() {
+            super.reset();
+            graph.clear();
+            lastCounted = null;
+            calculatedFor = -1;
+            dominators = null;
+        }
+
+        @Override
+        <T> void measureRoot(T instance) {
+            super.measureRoot(instance);
+            int id = graph.idOf(instance);
+            if (id != IdentityCounter.ABSENT) graph.addRoot(id);
+        }
+
+        @Override
+        void counted(Object instance, long size, ClassCollector<?> cc) {
+            lastCountedId = graph.addNode(instance, size, cc.index);
+            lastCounted = instance;
+        }
+
+        @Override
+        void visiting(Object instance) {
+            graph.startEdgesFrom(graph.idOf(instance));
+        }
+
+        /**
+         * The edges of each instance must be recorded in one go.
+         */
+        @Override
+        boolean splitsArrays() {
+            return false;
+        }
+
+        @Override
+        boolean visitsInBulk() {
+            return false;
+        }
+
+        @Override
+        public void visit(int refId, Object value) {
+            if (value == null) return;
+
+            super.visit(refId, value);
+            int id = value == lastCounted ? lastCountedId : graph.idOf(value);
+            if (id != IdentityCounter.ABSENT) graph.addEdge(id);
+        }
+
+        private void calculateSizes() {
+            if (calculatedFor == graph.modCount()) return;
+
+            long[] totals = graph.totalSizesPerClass(classColl.size());
+            for (ClassCollector<?> cc : classColl.values()) {
+                cc.totalSize = totals[cc.index];
+            }
+            calculatedFor = graph.modCount();
+        }
+
+        /**
+         * The dominator tree is more expensive than the total sizes, so it's only built when a retained size is
+         * requested.
+         */
+        private synchronized DominatorTree dominators() {
+            if (dominators == null || dominatorsFor != graph.modCount()) {
+                dominators = new DominatorTree(graph, classColl.size());
+                dominatorsFor = graph.modCount();
+            }
+            return dominators;
+        }
+
+        @Override
+        long retainedSize(Object instance) {
+            int id = graph.idOf(instance);
+            if (id == IdentityCounter.ABSENT) return 0;
+
+            return dominators().retainedSize(id);
+        }
+
+        @Override
+        long retainedSizeOf(ClassCollector<?> cc) {
+            return dominators().retainedSizeOfClass(cc.index);
+        }
+
+        @Override
+        <T> RetainedClassStats<T> statsFor(Class<T> type) {
+            calculateSizes();
+            return super.statsFor(type);
+        }
+
+        @Override
+        RetainedClassStats<?>[] stats() {
+            calculateSizes();
+            return super.stats();
+        }
+    }
+
+    /**
+     * A measurement that stops when its budget is exhausted.
+     *
+     * The instance limit is checked for each counted instance, the time and the overhead for every CHECK_INTERVAL
+     * visited references, no matter whether they lead to new instances. After stopping, all references that are found
+     * are only counted, but not followed any more; this includes the references of the instances that were already
+     * counted, but not visited yet. The rest of arrays that were not visited yet counts by its number of slots,
+     * including empty ones.
+     */
+    private static class BudgetedMeasurement extends Measurement {
+        private static final int CHECK_INTERVAL = 256;
+
+        private final Budget budget;
+
+        private long startNanos;
+
+        private boolean started;
+
+        private int untilCheck = CHECK_INTERVAL;
+
+        private long unexplored;
+
+        private final ReferenceCallback unexploredCounter = new ReferenceCallback() {
+
+            @Override
+            public void visit(int refId, Object value) {
+                if (value != null) unexplored++;
+            }
+        };
+
+        BudgetedMeasurement(Environment env, Budget budget) {
+            super(env);
+            this.budget = budget;
+        }
+
+        /**
+         * The budget starts again with the next measured instance.
+         */
+        @Override
+        void reset() {
+            super.reset();
+            started = false;
+            untilCheck = CHECK_INTERVAL;
+            unexplored = 0;
+        }
+
+        @Override
+        <T> void measureRoot(T instance) {
+            if (stopped) {
+                unexplored++;
+                return;
+            }
+            if (!started) {
+                started = true;
+                startNanos = System.nanoTime();
+            }
+
+            super.measureRoot(instance);
+            if (stopped) unexplored += abandon(unexploredCounter);
+        }
+
+        @Override
+        void counted(Object instance, long size, ClassCollector<?> cc) {
+            if (instanceCount >= budget.getMaxInstances()) stopped = true;
+        }
+
+        @Override
+        public void visit(int refId, Object value) {
+            if (value == null) return;
+
+            if (!stopped && --untilCheck <= 0) {
+                untilCheck = CHECK_INTERVAL;
+                stopped = System.nanoTime() - startNanos > budget.timeLimitNanos()
+                        || overhead() > budget.getMaxOverhead();
+            }
+            if (stopped) {
+                unexplored++;
+            } else {
+                super.visit(refId, value);
+            }
+        }
+
+        /**
+         * The budget must be checked for each element.
+         */
+        @Override
+        boolean visitsInBulk() {
+            return false;
+        }
+
+        @Override
+        boolean isPartial() {
+            return stopped;
+        }
+
+        @Override
+        long unexploredReferences() {
+            return unexplored;
+        }
+    }
+
+    /**
+     * A measurement that only visits a random sample of the elements of large object arrays, and extrapolates their
+     * size. This includes the tables of hash based collections, and the element arrays of array lists.
+     *
+     * The subgraph of each sampled element gets measured exactly, and the increase of the total size is taken as that
+     * element's contribution. Sampling stops as soon as the array's estimated size is precise enough, or after the
+     * maximum number of samples.
+     *
+     * If the samples reached the elements of other slots, like the linked entries of a LinkedHashMap, or elements that
+     * are shared between slots or were counted before, then each contribution contains parts of the others, and
+     * extrapolating would count them many times. The rest of such an array is visited exactly instead.
+     *
+     * The statistics of each class only contain the instances that were actually visited.
+     */
+    private static class EstimatingMeasurement extends Measurement {
+        /**
+         * Estimates are only made with at least that many samples.
+         */
+        private static final int MIN_SAMPLES = 30;
+
+        private final double relativeError;
+
+        private final int maxSamples;
+
+        private final Random random = new Random();
+
+        /**
+         * The variance of the extrapolated total size.
+         */
+        private double variance;
+
+        EstimatingMeasurement(Environment env, double relativeError, int maxSamples) {
+            super(env);
+            if (relativeError <= 0.0) throw new IllegalArgumentException("Relative error must be positive");
+            this.relativeError = relativeError;
+            this.maxSamples = Math.max(MIN_SAMPLES, maxSamples);
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            variance = 0.0;
+        }
+
+        @Override
+        void iterate(Object instance, ClassSchema<?> schema, int offset) {
+            if (offset == 0 && schema.elementCount(instance) > 2 * maxSamples) {
+                sample((Object[]) instance, schema);
+            } else {
+                super.iterate(instance, schema, offset);
+            }
+        }
+
+        private void sample(Object[] array, ClassSchema<?> schema) {
+            int n = array.length;
+            boolean[] taken = new boolean[n];
+            double sum = 0.0, sumOfSquares = 0.0, instances = 0.0;
+            // Sum of the variances of estimates within the samples, e.g. from nested arrays
+            double innerVariance = 0.0;
+            double arrayVariance = 0.0;
+            int k = 0;
+            while (k < maxSamples) {
+                int index = random.nextInt(n);
+                if (taken[index]) continue;
+                taken[index] = true;
+
+                long sizeBefore = totalSize;
+                int countBefore = instanceCount;
+                double varianceBefore = variance;
+                int floor = pendingCount();
+                current = array;
+                schema.visitElement(array, index, this);
+                drain(floor);
+
+                double contribution = totalSize - sizeBefore;
+                sum += contribution;
+                sumOfSquares += contribution * contribution;
+                instances += instanceCount - countBefore;
+                innerVariance += variance - varianceBefore;
+                variance = varianceBefore;
+                k++;
+
+                if (k >= MIN_SAMPLES) {
+                    double mean = sum / k;
+                    double sampleVariance = Math.max(0.0, (sumOfSquares - sum * mean) / (k - 1));
+                    // Two stage sampling without replacement
+                    arrayVariance = (double) n * n * (1.0 - (double) k / n) * sampleVariance / k
+                            + (double) n / k * innerVariance;
+                    if (Estimate.Z_95 * Math.sqrt(arrayVariance) <= relativeError * n * mean) break;
+                }
+            }
+
+            if (reachedOtherSlots(array, taken)) {
+                for (int i = 0; i < n; i++) {
+                    if (taken[i]) continue;
+
+                    int floor = pendingCount();
+                    current = array;
+                    schema.visitElement(array, i, this);
+                    drain(floor);
+                }
+                // The samples themselves were measured exactly, apart from nested estimates
+                variance += innerVariance;
+                return;
+            }
+
+            totalSize += Math.round((n - k) * sum / k);
+            instanceCount += (int) Math.round((n - k) * instances / k);
+            variance += arrayVariance;
+        }
+
+        /**
+         * Whether an element of a slot that was not sampled is counted already.
+         */
+        private boolean reachedOtherSlots(Object[] array, boolean[] taken) {
+            for (int i = 0; i < array.length; i++) {
+                Object element = array[i];
+                if (element == null || taken[i]) continue;
+
+                ClassCollector<?> cc = classColl.get(element.getClass());
+                if (cc != null && cc.instancesToRefCounts.get(element) > 0) return true;
+            }
+            return false;
+        }
+
+        @Override
+        Estimate estimate() {
+            return new Estimate(totalSize, Math.sqrt(variance));
+        }
+    }
+
+    /**
+     * A measurement that only follows the references that its restrictions allow.
+     *
+     * The restrictions are compiled into an own schema for each class, so that excluded fields are never read, and
+     * references of a final type that the class filter rejects are dropped as well. Other instances of rejected
+     * classes are treated like global ones.
+     *
+     * With a maximum depth, the graph below each measured instance is walked level by level instead of depth first.
+     * Each instance gets counted on the level where it is reached first, and only instances above the deepest level
+     * get their fields visited.
+     */
+    private static class RestrictedMeasurement extends Measurement {
+        private final Restrictions restrictions;
+
+        /**
+         * The level on which instances are discovered currently; the measured instance itself is on level 0.
+         */
+        private int depth;
+
+        /**
+         * Instances of the next level whose fields still need to be visited, together with their schemas.
+         */
+        private List<Object> nextLevel = new ArrayList<>();
+
+        private List<ClassSchema<?>> nextLevelSchemas = new ArrayList<>();
+
+        RestrictedMeasurement(Environment env, Restrictions restrictions) {
+            super(env);
+            this.restrictions = restrictions;
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            depth = 0;
+            nextLevel.clear();
+            nextLevelSchemas.clear();
+        }
+
+        @Override
+        <T> ClassSchema<T> schemaFor(final Class<T> type) {
+            // The environment's schema also registers the static values as global instances
+            ClassSchema<T> schema = env.getSchema(type);
+            if (type.isArray()) {
+                Class<?> component = type.getComponentType();
+                if (component.isPrimitive()) return schema;
+                if (restrictions.acceptsReference(ClassSchema.elementRefName(type)) && mayBeAccepted(component)) {
+                    return schema;
+                }
+                return env.getLayoutBackend().createLeafSchemaFor(type);
+            }
+
+            return env.getLayoutBackend().createSchemaFor(type, new FieldFilter() {
+
+                @Override
+                public boolean accept(Field f) {
+                    return env.allowOnlyNonGlobal.accept(f)
+                            && restrictions.acceptsReference(ClassSchema.refName(type, f))
+                            && mayBeAccepted(f.getType());
+                }
+            }, false);
+        }
+
+        /**
+         * Whether a reference of the given declared type may point to an instance of an accepted class.
+         */
+        private boolean mayBeAccepted(Class<?> declaredType) {
+            return !Modifier.isFinal(declaredType.getModifiers()) || restrictions.acceptsClass(declaredType);
+        }
+
+        @Override
+        boolean isExcluded(Class<?> type) {
+            return super.isExcluded(type) || !restrictions.acceptsClass(type);
+        }
+
+        /**
+         * The rest of a chunked array would get scheduled on the work stack, which isn't used level by level.
+         */
+        @Override
+        boolean splitsArrays() {
+            return !restrictions.hasMaxDepth();
+        }
+
+        /**
+         * The keys and values of owned nodes would be found one level too early, and the node's references would not
+         * be checked against the restrictions.
+         */
+        @Override
+        boolean walksContainers() {
+            return false;
+        }
+
+        @Override
+        void schedule(Object instance, ClassSchema<?> schema) {
+            if (!restrictions.hasMaxDepth()) {
+                super.schedule(instance, schema);
+            } else if (depth < restrictions.getMaxDepth()) {
+                nextLevel.add(instance);
+                nextLevelSchemas.add(schema);
+            }
+        }
+
+        @Override
+        <T> void measureRoot(T instance) {
+            if (!restrictions.hasMaxDepth()) {
+                super.measureRoot(instance);
+                return;
+            }
+
+            depth = 0;
+            getClassCollector(instance).startWith(instance, this);
+            List<Object> level = new ArrayList<>();
+            List<ClassSchema<?>> levelSchemas = new ArrayList<>();
+            while (!nextLevel.isEmpty()) {
+                List<Object> l = level;
+                level = nextLevel;
+                nextLevel = l;
+                List<ClassSchema<?>> ls = levelSchemas;
+                levelSchemas = nextLevelSchemas;
+                nextLevelSchemas = ls;
+                depth++;
+
+                for (int i = 0, n = level.size(); i < n; i++) {
+                    expand(level.get(i), levelSchemas.get(i), 0);
+                }
+                level.clear();
+                levelSchemas.clear();
+            }
         }
     }
 
+    /**
+     * The full deep size of all objects. For an estimating collector, this is the estimated value.
+     */
     @Override
     public synchronized long memoryUsed() {
         return measurement.totalSize;
     }
 
+    /**
+     * Whether the measurement was stopped before the whole graph was walked, because its budget ran out.
+     * 
+     * If so, then all sizes and counts are lower bounds.
+     */
+    public synchronized boolean isPartial() {
+        return measurement.isPartial();
+    }
+
+    /**
+     * The number of references that were not followed because the budget ran out, or 0 if the statistics are
+     * complete.
+     */
+    public synchronized long unexploredReferences() {
+        return measurement.unexploredReferences();
+    }
+
+    /**
+     * The full deep size of all objects, with its confidence interval.
+     *
+     * This is only an estimate if the collector was created with Environment.createEstimatingCollector(), and some
+     * arrays were large enough to get sampled. Otherwise it's the exact value.
+     */
+    public synchronized Estimate memoryEstimate() {
+        return measurement.estimate();
+    }
+
     @Override
     public synchronized int instanceCount() {
         return measurement.instanceCount;
     }
 
+    /**
+     * The retained size of the given instance: The total size of all instances that can only be reached through it,
+     * including the instance itself. This much memory would be freed if the given instance was no longer referenced.
+     * 
+     * Only references within the measured graph are considered, i.e. paths from the measured instances.
+     * 
+     * Returns 0 if the instance was not measured, or if the collector doesn't calculate the size of each class.
+     */
+    public synchronized long retainedSize(Object instance) {
+        if (instance == null) return 0;
+        return measurement.retainedSize(instance);
+    }
+
     @Override
-    public synchronized <T> ClassStats<T> statsFor(Class<T> type) {
+    public synchronized <T> RetainedClassStats<T> statsFor(Class<T> type) {
         return measurement.statsFor(type);
     }
 
     @Override
-    public synchronized ClassStats<?>[] stats() {
+    public synchronized RetainedClassStats<?>[] stats() {
         return measurement.stats();
     }
 
     Collector(Environment env, boolean measureSizeForEveryClass) {
-        measurement = measureSizeForEveryClass ? new IndividualClassMeasurement(env) : new Measurement(env);
+        measurement = measureSizeForEveryClass ? new GraphMeasurement(env) : new Measurement(env);
+    }
+
+    Collector(Environment env, Budget budget) {
+        measurement = new BudgetedMeasurement(env, budget);
+    }
+
+    Collector(Environment env, double relativeError, int maxSamples) {
+        measurement = new EstimatingMeasurement(env, relativeError, maxSamples);
+    }
+
+    Collector(Environment env, Restrictions restrictions) {
+        measurement = new RestrictedMeasurement(env, restrictions);
+    }
+
+    /**
+     * Used by subclasses that bring their own measurement engine. They override all public methods.
+     */
+    Collector() {
+        measurement = null;
+    }
+
+    /**
+     * Streams the traversal of all instances that get measured from now on to the given listener. Use null to remove
+     * it.
+     *
+     * If the collector has a budget, the listener only gets notified about the part of the graph that was walked.
+     * If it estimates, then only about the sampled elements of large arrays.
+     */
+    public synchronized Collector setListener(TraversalListener listener) {
+        measurement.listener = listener;
+        return this;
+    }
+
+    /**
+     * Forgets all measured instances and statistics, so that this collector can be used for a new measurement. The
+     * listener and the settings stay the same, and so do the internal tables.
+     * 
+     * Statistics that were taken before keep their values, but their retained sizes must have been requested before;
+     * otherwise, requesting them throws an IllegalStateException.
+     */
+    public synchronized Collector reset() {
+        measurement.reset();
+        return this;
     }
 
     /**
@@ -268,7 +1218,7 @@ public class Collector implements Stats {
     public synchronized <T> void measure(T instance) {
         if (instance == null) return;
 
-        ClassCollector<T> cc = measurement.getClassCollector(instance);
-        cc.startWith(instance, measurement);
+        measurement.measureRoot(instance);
+        if (measurement.listener != null) measurement.listener.measured(instance);
     }
 }
@@ -0,0 +1,21 @@
+package io.beans.sizeof;
+
+/**
+ * Internal callback for schemas that walk the internal nodes of a container directly, like the bucket chains of a hash
+ * map.
+ *
+ * An owned node gets counted like any other referenced instance, but it doesn't get scheduled; instead, the schema
+ * visits the references of the node itself.
+ *
+ * @author kuli
+ */
+interface ContainerCallback extends ReferenceCallback {
+
+    /**
+     * Counts the given node, which is referenced under the given reference id.
+     *
+     * @return <code>true</code> if the node was counted just now, so that the schema has to visit its references;
+     *         <code>false</code> if it was counted before, or if it is global
+     */
+    boolean own(int refId, Object node);
+}
@@ -0,0 +1,269 @@
+package io.beans.sizeof;
+
+import java.util.Arrays;
+
+
+/**
+ * The dominator tree of a recorded {@link ObjectGraph}, and the retained sizes derived from it.
+ *
+ * An instance d dominates an instance x if every path from the measured roots to x passes through d. The retained
+ * size of d is the total size of all instances that it dominates, including itself. This is the memory that would be
+ * freed if d was no longer referenced.
+ *
+ * The tree is built with the algorithm of Lengauer and Tarjan, with path compression, on int arrays. A virtual node
+ * gets an edge to each measured root, so that graphs with several roots have one common root.
+ *
+ * @author kuli
+ */
+final class DominatorTree {
+
+    private final int nodeCount;
+
+    private final long[] retained;
+
+    private final long[] retainedPerClass;
+
+    DominatorTree(ObjectGraph graph, int classCount) {
+        int n = nodeCount = graph.nodeCount();
+        int root = n;
+        int total = n + 1;
+
+        int[] dfn = new int[total]; // Depth first number, starting with 1; 0 means unvisited
+        int[] vertex = new int[total + 1];
+        int[] parent = new int[total];
+        int count = depthFirstSearch(graph, dfn, vertex, parent);
+
+        int[] predStart = new int[total + 1];
+        int[] preds = predecessors(graph, predStart);
+
+        int[] semi = dfn; // Gets overwritten, the depth first numbers are in vertex[] too
+        int[] label = new int[total];
+        int[] ancestor = new int[total];
+        int[] idom = new int[total];
+        int[] bucketHead = new int[total];
+        int[] bucketNext = new int[total];
+        int[] path = new int[total];
+        for (int v = 0; v < total; v++) {
+            label[v] = v;
+        }
+        Arrays.fill(ancestor, -1);
+        Arrays.fill(bucketHead, -1);
+
+        for (int i = count; i >= 2; i--) {
+            int w = vertex[i];
+            for (int p = predStart[w]; p < predStart[w + 1]; p++) {
+                int v = preds[p];
+                if (semi[v] == 0) continue; // Not reachable
+
+                int u = eval(v, ancestor, label, semi, path);
+                if (semi[u] < semi[w]) semi[w] = semi[u];
+            }
+            int s = vertex[semi[w]];
+            bucketNext[w] = bucketHead[s];
+            bucketHead[s] = w;
+
+            int pw = parent[w];
+            ancestor[w] = pw;
+            for (int v = bucketHead[pw]; v >= 0; v = bucketNext[v]) {
+                int u = eval(v, ancestor, label, semi, path);
+                idom[v] = semi[u] < semi[v] ? u : pw;
+            }
+            bucketHead[pw] = -1;
+        }
+        for (int i = 2; i <= count; i++) {
+            int w = vertex[i];
+            if (idom[w] != vertex[semi[w]]) idom[w] = idom[idom[w]];
+        }
+        idom[root] = -1;
+        if (count < total) {
+            // Should not happen, but then these nodes are only retained by themselves
+            for (int v = 0; v < n; v++) {
+                if (semi[v] == 0) idom[v] = root;
+            }
+        }
+
+        retained = new long[total];
+        for (int v = 0; v < n; v++) {
+            retained[v] = graph.size(v);
+        }
+        for (int i = count; i >= 2; i--) {
+            int w = vertex[i];
+            retained[idom[w]] += retained[w];
+        }
+        for (int v = 0; v < n; v++) {
+            if (semi[v] == 0) retained[root] += retained[v];
+        }
+
+        retainedPerClass = retainedPerClass(graph, classCount, idom, root);
+    }
+
+    /**
+     * Numbers all nodes in depth first order, starting with the virtual root.
+     *
+     * @return The number of reached nodes
+     */
+    private static int depthFirstSearch(ObjectGraph graph, int[] dfn, int[] vertex, int[] parent) {
+        int root = graph.nodeCount();
+        int[] stackNode = new int[dfn.length];
+        int[] stackEdge = new int[dfn.length];
+        int count = 1;
+        dfn[root] = 1;
+        vertex[1] = root;
+        parent[root] = -1;
+
+        int top = 0;
+        stackNode[0] = root;
+        stackEdge[0] = 0;
+        while (top >= 0) {
+            int u = stackNode[top];
+            int i = stackEdge[top];
+            int v;
+            if (u == root) {
+                if (i >= graph.rootCount()) {
+                    top--;
+                    continue;
+                }
+                v = graph.root(i);
+            } else {
+                if (i >= graph.edgeCount(u)) {
+                    top--;
+                    continue;
+                }
+                v = graph.edge(graph.firstEdge(u) + i);
+            }
+            stackEdge[top] = i + 1;
+
+            if (dfn[v] == 0) {
+                dfn[v] = ++count;
+                vertex[count] = v;
+                parent[v] = u;
+                top++;
+                stackNode[top] = v;
+                stackEdge[top] = 0;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Builds the reverse edges, including those from the virtual root.
+     */
+    private static int[] predecessors(ObjectGraph graph, int[] predStart) {
+        int n = graph.nodeCount();
+        int root = n;
+        for (int u = 0; u < n; u++) {
+            for (int e = graph.firstEdge(u), end = e + graph.edgeCount(u); e < end; e++) {
+                predStart[graph.edge(e) + 1]++;
+            }
+        }
+        for (int i = 0; i < graph.rootCount(); i++) {
+            predStart[graph.root(i) + 1]++;
+        }
+        for (int v = 0; v < n + 1; v++) {
+            predStart[v + 1] += predStart[v];
+        }
+
+        int[] preds = new int[predStart[n + 1]];
+        int[] fill = Arrays.copyOf(predStart, n + 1);
+        for (int u = 0; u < n; u++) {
+            for (int e = graph.firstEdge(u), end = e + graph.edgeCount(u); e < end; e++) {
+                preds[fill[graph.edge(e)]++] = u;
+            }
+        }
+        for (int i = 0; i < graph.rootCount(); i++) {
+            preds[fill[graph.root(i)]++] = root;
+        }
+
+        return preds;
+    }
+
+    /**
+     * Finds the node with the minimal semidominator on the path to the root of v's tree in the forest, and compresses
+     * that path on the way. This is the iterative version of the original recursive compress().
+     */
+    private static int eval(int v, int[] ancestor, int[] label, int[] semi, int[] path) {
+        if (ancestor[v] < 0) return v;
+
+        int top = 0;
+        int x = v;
+        while (ancestor[ancestor[x]] >= 0) {
+            path[top++] = x;
+            x = ancestor[x];
+        }
+        while (top > 0) {
+            int y = path[--top];
+            int a = ancestor[y];
+            if (semi[label[a]] < semi[label[y]]) label[y] = label[a];
+            ancestor[y] = ancestor[a];
+        }
+
+        return label[v];
+    }
+
+    /**
+     * Sums up the retained sizes of all instances that are not dominated by another instance of their own class.
+     */
+    private long[] retainedPerClass(ObjectGraph graph, int classCount, int[] idom, int root) {
+        int total = idom.length;
+        int[] childStart = new int[total + 1];
+        for (int v = 0; v < total; v++) {
+            if (idom[v] >= 0) childStart[idom[v] + 1]++;
+        }
+        for (int v = 0; v < total; v++) {
+            childStart[v + 1] += childStart[v];
+        }
+        int[] children = new int[childStart[total]];
+        int[] fill = Arrays.copyOf(childStart, total);
+        for (int v = 0; v < total; v++) {
+            if (idom[v] >= 0) children[fill[idom[v]]++] = v;
+        }
+
+        long[] perClass = new long[classCount];
+        int[] active = new int[classCount];
+        int[] stackNode = new int[total];
+        int[] stackChild = new int[total];
+        int top = 0;
+        stackNode[0] = root;
+        stackChild[0] = childStart[root];
+        while (top >= 0) {
+            int u = stackNode[top];
+            int c = stackChild[top];
+            if (c < childStart[u + 1]) {
+                stackChild[top] = c + 1;
+                int v = children[c];
+                int classIndex = graph.classIndex(v);
+                if (active[classIndex]++ == 0) perClass[classIndex] += retained[v];
+                top++;
+                stackNode[top] = v;
+                stackChild[top] = childStart[v];
+            } else {
+                if (u != root) active[graph.classIndex(u)]--;
+                top--;
+            }
+        }
+
+        return perClass;
+    }
+
+    /**
+     * The number of nodes of the graph when this tree was built.
+     */
+    int nodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * The retained size of the given node.
+     */
+    long retainedSize(int id) {
+        return retained[id];
+    }
+
+    /**
+     * The retained size of all instances of the given class together.
+     */
+    long retainedSizeOfClass(int classIndex) {
+        return retainedPerClass[classIndex];
+    }
+}
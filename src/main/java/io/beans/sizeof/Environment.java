@@ -1,15 +1,29 @@
 package io.beans.sizeof;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.AnnotatedElement;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.IdentityHashMap;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.beans.collections.IdentityCounter;
+import io.beans.collections.WeakIdentitySet;
 import io.beans.sizeof.Collector.ClassCollector;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Modifier;
@@ -19,31 +33,174 @@ import java.util.Comparator;
 /**
  * The environment specifies whether and which kind of global objects exist.
  *
+ * An environment can be shared by collectors on several threads. Looking up the schema of a known class and checking
+ * for global instances never locks; only changes, the first registration of a class, and walking the static values
+ * that were registered with StaticFieldPolicy.FULL_TREE, are synchronized on the environment.
+ *
+ * The schemas are attached to their classes, so they don't keep any class loader alive. Their number can be limited
+ * with setMaxSchemas(). Their layouts can be saved to a file, so that later runs don't need to calculate them again.
+ *
  * @author kuli
  */
 public class Environment {
 
-    private final Map<Class<?>, ClassSchema<?>> definitions = new HashMap<>();
+    private final LayoutBackend layoutBackend;
+
+    /**
+     * The schema of each class, whether its static values are registered already, whether it's global, and its
+     * global instances.
+     */
+    private final ClassValue<ClassInfo> classInfos = new ClassValue<ClassInfo>() {
+
+        @Override
+        protected ClassInfo computeValue(Class<?> type) {
+            return new ClassInfo();
+        }
+    };
+
+    /**
+     * The infos that have a schema, in the order in which the clock hand passes them. The infos are only weakly
+     * referenced, so that their classes can be unloaded. Guarded by itself.
+     */
+    private final Deque<WeakReference<ClassInfo>> cachedSchemas = new ArrayDeque<>();
+
+    /**
+     * The entries of unloaded classes are removed when cachedSchemas grows beyond this size. Guarded by cachedSchemas.
+     */
+    private int cleanupSize = 64;
+
+    /**
+     * The maximum number of cached schemas, or 0 if unlimited. Guarded by cachedSchemas.
+     */
+    private int maxSchemas;
+
+    /**
+     * Guarded by cachedSchemas.
+     */
+    private long schemaMisses, schemaEvictions, schemaRestores;
+
+    /**
+     * The layouts that were loaded from a file, or null.
+     */
+    private volatile SchemaStore schemaStore;
+
+    private final SchemaStore.ClassFiles classFiles = new SchemaStore.ClassFiles();
+
+    private volatile boolean recordSchemaStatistics;
 
-    private final Collection<Class<?>> globalClasses = new HashSet<>();
+    private final AtomicLong schemaHits = new AtomicLong();
 
-    private final Map<Class<? extends Annotation>, AnnotationFilter<? extends Annotation>> globalAnnotations = new HashMap<>();
+    private final Collection<Class<?>> globalClasses = new CopyOnWriteArraySet<>();
 
-    private final Map<Object, Void> globalObjects = new IdentityHashMap<>();
+    private final Map<Class<? extends Annotation>, AnnotationFilter<? extends Annotation>> globalAnnotations = new ConcurrentHashMap<>();
 
-    private StaticFieldPolicy staticFieldPolicy;
+    /**
+     * Set as soon as the first global instance is added, or the first static value is waiting to be walked.
+     */
+    private volatile boolean hasGlobalInstances;
+
+    /**
+     * The values of static fields that were registered with StaticFieldPolicy.FULL_TREE, and the instances that they
+     * reference, as far as they were not walked yet. Guarded by the environment.
+     */
+    @Global
+    private final Deque<Object> pendingStatics = new ArrayDeque<>();
+
+    /**
+     * The instances that the walk over pendingStatics has visited, until nothing is left to walk. Guarded by the
+     * environment.
+     */
+    @Global
+    private IdentityCounter walkedStatics;
+
+    private volatile boolean hasPendingStatics;
+
+    /**
+     * Set while pendingStatics are walked, so that the walk doesn't recurse. Guarded by the environment.
+     */
+    private boolean walkingStatics;
+
+    /**
+     * Incremented whenever a global type or annotation is added, which invalidates all verdicts.
+     */
+    private volatile long configurationVersion;
+
+    private volatile StaticFieldPolicy staticFieldPolicy;
+
+    private volatile boolean generateAccessors;
+
+    /**
+     * Some global type is assignable from the class.
+     */
+    private static final int ASSIGNABLE = 1;
+
+    /**
+     * The class itself has a global marker.
+     */
+    private static final int DIRECT_MARKER = 2;
+
+    private static final int FLAGS = 2;
+
+    /**
+     * Stored together with the flags: the class or one of its supertypes has a global marker.
+     */
+    private static final int INHERITED_MARKER = 4;
+
+    /**
+     * The class file hash of classes that were defined at runtime.
+     */
+    private static final long NO_CLASS_FILE = -1;
+
+    private static final Object[] NO_INSTANCES = {};
+
+    private static final class ClassInfo {
+        /**
+         * The global instances of exactly this class, or null if there are none. Only modified while holding the
+         * lock of the environment.
+         *
+         * Never walked, because every class refers to its info, and each registered instance would add another entry
+         * to the walked table.
+         */
+        @Global
+        volatile WeakIdentitySet globalInstances;
+
+        /**
+         * Created on the first request, and dropped when evicted. Guarded by this info.
+         */
+        volatile ClassSchema<?> schema;
+
+        /**
+         * Set by each lookup, and cleared by the clock hand when the cache is full. Not volatile, since a missed
+         * update only costs an earlier eviction.
+         */
+        boolean used;
+
+        /**
+         * Set as soon as the static values are registered.
+         */
+        volatile boolean registered;
+
+        /**
+         * Set when the registration has started, so that it doesn't recurse. Guarded by the environment.
+         */
+        boolean registering;
+
+        /**
+         * The verdicts, each shifted left by the configuration version that they were calculated for.
+         */
+        volatile long flags = -1, marker = -1, relevance = -1;
+
+        /**
+         * The hash of the class file, or NO_CLASS_FILE; 0 until it's needed.
+         */
+        volatile long classFileHash;
+    }
 
     final FieldFilter allowOnlyNonGlobal = new FieldFilter() {
 
         @Override
         public boolean accept(Field f) {
-            if (hasGlobalMarker(f)) return false;
-
-            Class<?> fieldType = f.getType();
-            for (Class<?> g : globalClasses) {
-                if (g.isAssignableFrom(fieldType)) return false;
-            }
-            return !hasGlobalMarker(fieldType);
+            return !hasGlobalMarker(f) && (verdictFor(f.getType()) & (ASSIGNABLE | DIRECT_MARKER)) == 0;
         }
     };
 
@@ -55,10 +212,7 @@ public class Environment {
             // Don't add all those int[] arrays etc.
             if (fieldType.isArray() && fieldType.getComponentType().isPrimitive()) return false;
 
-            for (Class<?> g : globalClasses) {
-                if (g.isAssignableFrom(fieldType)) return false;
-            }
-            return !hasGlobalMarker(fieldType);
+            return (verdictFor(fieldType) & (ASSIGNABLE | DIRECT_MARKER)) == 0;
         }
     };
 
@@ -91,11 +245,32 @@ public class Environment {
         }
     };
 
+    /**
+     * Only schedules the value; it and everything it references get marked when the first instance is looked up.
+     * Must be called while holding the lock of the environment.
+     */
     final FieldCallback deepGlobalSetter = new FieldCallback() {
 
         @Override
         public void visit(String refName, Object value) {
-            iterateDeep(value, directGlobalSetter);
+            if (value == null) return;
+
+            pendingStatics.push(value);
+            hasPendingStatics = true;
+            hasGlobalInstances = true;
+        }
+
+        @Override
+        public void finished() {
+            // Nothing to finish;
+        }
+    };
+
+    private final FieldCallback schedulePendingStatic = new FieldCallback() {
+
+        @Override
+        public void visit(String refName, Object value) {
+            if (value != null && !walkedStatics.contains(value)) pendingStatics.push(value);
         }
 
         @Override
@@ -109,8 +284,98 @@ public class Environment {
         staticFieldPolicy = StaticFieldPolicy.FULL_TREE;
     }
 
+    /**
+     * Creates an environment with the default layout backend.
+     */
+    public Environment() {
+        this(LayoutBackend.getDefault());
+    }
+
+    /**
+     * Creates an environment whose schemas read fields and calculate sizes with the given backend.
+     */
+    public Environment(LayoutBackend layoutBackend) {
+        if (layoutBackend == null) throw new NullPointerException();
+        this.layoutBackend = layoutBackend;
+    }
+
+    /**
+     * The backend that the schemas of this environment use.
+     */
+    public LayoutBackend getLayoutBackend() {
+        return layoutBackend;
+    }
+
+    /**
+     * The flags of the given class for the current configuration.
+     */
+    private int verdictFor(Class<?> type) {
+        ClassInfo info = classInfos.get(type);
+        // Read before calculating, so that a concurrent change invalidates the result
+        long version = configurationVersion;
+        long state = info.flags;
+        if (state >>> FLAGS == version) return (int) state & ~(-1 << FLAGS);
+
+        int flags = 0;
+        for (Class<?> g : globalClasses) {
+            if (g.isAssignableFrom(type)) {
+                flags |= ASSIGNABLE;
+                break;
+            }
+        }
+        if (hasGlobalMarker(type)) flags |= DIRECT_MARKER;
+
+        info.flags = version << FLAGS | flags;
+        return flags;
+    }
+
+    /**
+     * Whether the given annotation type is a global marker, or annotated with one.
+     */
+    private boolean isRelevantAnnotation(Class<? extends Annotation> annotationType) {
+        ClassInfo v = classInfos.get(annotationType);
+        long version = configurationVersion;
+        long relevance = v.relevance;
+        if (relevance >>> 1 == version) return (relevance & 1) != 0;
+
+        boolean relevant = globalAnnotations.containsKey(annotationType);
+        for (Annotation a2 : annotationType.getAnnotations()) {
+            if (relevant) break;
+            relevant = globalAnnotations.containsKey(a2.annotationType());
+        }
+        v.relevance = version << 1 | (relevant ? 1 : 0);
+        return relevant;
+    }
+
+    /**
+     * Marks all verdicts as outdated. Must be called after the configuration has changed.
+     */
+    private synchronized void configurationChanged() {
+        configurationVersion++;
+        SchemaStore store = schemaStore;
+        if (store != null && !store.configuration.equals(configurationKey())) schemaStore = null;
+    }
+
+    /**
+     * Describes the global types and annotations, on which the schemas and verdicts depend.
+     */
+    private String configurationKey() {
+        List<String> parts = new ArrayList<>();
+        for (Class<?> g : globalClasses) {
+            parts.add("type " + g.getName());
+        }
+        for (Map.Entry<Class<? extends Annotation>, AnnotationFilter<? extends Annotation>> e : globalAnnotations
+                .entrySet()) {
+            parts.add("annotation " + e.getKey().getName() + " " + e.getValue().getClass().getName());
+        }
+        Collections.sort(parts);
+        return parts.toString();
+    }
+
     boolean hasGlobalMarker(AnnotatedElement element) {
         for (Annotation a : element.getAnnotations()) {
+            // Most annotations have nothing to do with globals
+            if (!isRelevantAnnotation(a.annotationType())) continue;
             if (annotationMarksAsGlobal(element, a)) return true;
 
             Class<? extends Annotation> atype = a.annotationType();
@@ -129,16 +394,22 @@ public class Environment {
     }
 
     boolean classHasGlobalMarker(Class<?> type) {
-        if (hasGlobalMarker(type)) return true;
+        ClassInfo info = classInfos.get(type);
+        long version = configurationVersion;
+        long marker = info.marker;
+        if (marker >>> 1 == version) return (marker & 1) != 0;
+
+        boolean hasMarker = (verdictFor(type) & DIRECT_MARKER) != 0;
         for (Class<?> in : type.getInterfaces()) {
-            if (classHasGlobalMarker(in)) return true;
+            if (hasMarker) break;
+            hasMarker = classHasGlobalMarker(in);
         }
-
-        for (Class<?> c = type.getSuperclass(); c != null; c = c.getSuperclass()) {
-            if (hasGlobalMarker(c)) return true;
+        for (Class<?> c = type.getSuperclass(); c != null && !hasMarker; c = c.getSuperclass()) {
+            hasMarker = (verdictFor(c) & DIRECT_MARKER) != 0;
         }
 
-        return false;
+        info.marker = version << 1 | (hasMarker ? 1 : 0);
+        return hasMarker;
     }
 
     /**
@@ -156,12 +427,35 @@ public class Environment {
         return staticFieldPolicy;
     }
 
+    /**
+     * Sets whether the schemas of newly declared classes visit their references with accessors that are generated at
+     * runtime, instead of looping over their fields. Where classes cannot be defined at runtime, the loop is used
+     * anyway.
+     */
+    public synchronized Environment setGenerateAccessors(boolean generateAccessors) {
+        this.generateAccessors = generateAccessors;
+        return this;
+    }
+
+    /**
+     * Whether the schemas of newly declared classes use generated accessors.
+     */
+    public boolean isGenerateAccessors() {
+        return generateAccessors;
+    }
+
     /**
      * Marks this object as being global.
+     *
+     * The environment only keeps a weak reference to it, so it's still collected when nothing else uses it.
      */
     public synchronized Environment addGlobalInstance(Object g) {
         if (g != null) {
-            globalObjects.put(g, null);
+            ClassInfo info = classInfos.get(g.getClass());
+            WeakIdentitySet instances = info.globalInstances;
+            if (instances == null) info.globalInstances = instances = new WeakIdentitySet();
+            instances.add(g);
+            hasGlobalInstances = true;
             register(g.getClass());
         }
         return this;
@@ -171,15 +465,15 @@ public class Environment {
      * Marks the given instance and all its referenced values as being global.
      */
     public synchronized Environment addFullGlobalTree(Object g) {
-        iterateDeep(g, deepGlobalSetter);
-        return addGlobalInstance(g);
+        if (g != null) iterateDeep(g, directGlobalSetter);
+        return this;
     }
 
     /**
      * Marks the given type as a global one.
      */
     public synchronized Environment addGlobalType(Class<?> g) {
-        globalClasses.add(g);
+        if (globalClasses.add(g)) configurationChanged();
         return this;
     }
 
@@ -196,11 +490,75 @@ public class Environment {
     public synchronized <A extends Annotation> Environment addGlobalAnnotation(
             Class<A> g, AnnotationFilter<? super A> filter) {
         globalAnnotations.put(g, filter);
+        configurationChanged();
         return this;
     }
 
-    Set<Object> getGlobalObjects() {
-        return globalObjects.keySet();
+    /**
+     * Whether any instance was ever marked as global. If not, isGlobalInstance() doesn't need to be called.
+     */
+    boolean hasGlobalInstances() {
+        return hasGlobalInstances;
+    }
+
+    /**
+     * Checks whether the given instance itself was marked as global. Only the instances of its own class are looked
+     * at, unless there are static values left that were not walked yet.
+     */
+    boolean isGlobalInstance(Object value) {
+        // The static values that were not walked yet might still reach it
+        return isMarked(value) || hasPendingStatics && walkStaticsUntil(value);
+    }
+
+    private boolean isMarked(Object value) {
+        WeakIdentitySet instances = classInfos.get(value.getClass()).globalInstances;
+        return instances != null && instances.contains(value);
+    }
+
+    /**
+     * Continues the walk over the pending static values until the wanted instance is found, or nothing is left. Each
+     * visited instance becomes global, and gets its class registered, which may add more static values.
+     *
+     * So only the first lookup of an instance that is not global has to wait for the whole walk. The result is the
+     * same as if the walk had been done when the static values were registered, as long as the walked instances
+     * didn't change since then.
+     *
+     * @param wanted The instance to look for, or null to finish the walk
+     * @return Whether the wanted instance is global
+     */
+    private synchronized boolean walkStaticsUntil(Object wanted) {
+        // Maybe another thread has found it meanwhile
+        if (wanted != null && isMarked(wanted)) return true;
+        if (walkingStatics) return false;
+
+        walkingStatics = true;
+        try {
+            if (walkedStatics == null) walkedStatics = new IdentityCounter();
+            Object next;
+            while ((next = pendingStatics.poll()) != null) {
+                if (!walkedStatics.add(next)) continue;
+
+                addGlobalInstance(next);
+                getSchema(next.getClass()).safeIterate(next, schedulePendingStatic);
+                // Its references are scheduled already, so the walk can go on later
+                if (next == wanted) return true;
+            }
+            walkedStatics = null;
+            // Registering classes on the way may have added it directly
+            return wanted != null && isMarked(wanted);
+        } finally {
+            walkingStatics = false;
+            hasPendingStatics = !pendingStatics.isEmpty();
+        }
+    }
+
+    /**
+     * The global instances of exactly the given type that are still alive.
+     */
+    Object[] getGlobalInstances(Class<?> type) {
+        if (hasPendingStatics) walkStaticsUntil(null);
+        WeakIdentitySet instances = classInfos.get(type).globalInstances;
+        return instances == null ? NO_INSTANCES : instances.toArray();
     }
 
     /**
@@ -209,12 +567,7 @@ public class Environment {
      * or if it is of a global type.
      */
     public boolean isGlobal(Object value) {
-        if (globalObjects.containsKey(value)) return true;
-        for (Class<?> g : globalClasses) {
-            if (g.isInstance(value)) return true;
-        }
-
-        return classHasGlobalMarker(value.getClass());
+        return isGlobalInstance(value) || isGlobalClass(value.getClass());
     }
 
     /**
@@ -222,11 +575,7 @@ public class Environment {
      * either explicit via addGlobalType(), or implicit by having a specific annotation.
      */
     public boolean isGlobalClass(Class<?> type) {
-        for (Class<?> g : globalClasses) {
-            if (g.isAssignableFrom(type)) return true;
-        }
-
-        return classHasGlobalMarker(type);
+        return (verdictFor(type) & ASSIGNABLE) != 0 || classHasGlobalMarker(type);
     }
 
     <T> ClassSchema<T> getSchema(Class<T> type) {
@@ -234,18 +583,342 @@ public class Environment {
     }
 
     <T> ClassSchema<T> getSchema(Class<T> type, StaticFieldPolicy policy) {
-        @SuppressWarnings("unchecked")
-        ClassSchema<T> cs = (ClassSchema<T>) definitions.get(type);
-        if (cs != null) return cs;
-
-        cs = ClassSchema.createSchemaFor(type, allowOnlyNonGlobal);
-        definitions.put(type, cs);
+        ClassInfo info = classInfos.get(type);
+        ClassSchema<?> schema = info.schema;
+        if (schema == null) {
+            schema = createSchema(type, info);
+        } else {
+            // Only written when necessary, since other threads read the same info
+            if (!info.used) info.used = true;
+            if (recordSchemaStatistics) schemaHits.incrementAndGet();
+        }
         // Eventually register static values as constants
-        addGlobalObjectsFrom(type, policy);
+        if (!info.registered) registerStatics(type, info, policy);
 
+        @SuppressWarnings("unchecked")
+        ClassSchema<T> cs = (ClassSchema<T>) schema;
         return cs;
     }
 
+    /**
+     * Creates the schema of the given type once, without holding the lock of the environment.
+     */
+    private ClassSchema<?> createSchema(Class<?> type, ClassInfo info) {
+        synchronized (info) {
+            ClassSchema<?> schema = info.schema;
+            if (schema == null) {
+                SchemaStore store = schemaStore;
+                schema = store == null ? null : restoreSchema(type, info, store);
+                boolean restored = schema != null;
+                if (!restored) schema = layoutBackend.createSchemaFor(type, allowOnlyNonGlobal, generateAccessors);
+                info.schema = schema;
+                schemaCreated(info, restored);
+            }
+            // Also if it got evicted again already
+            return schema;
+        }
+    }
+
+    /**
+     * Adds the info to the cached ones, and evicts others if there are too many.
+     */
+    private void schemaCreated(ClassInfo info, boolean restored) {
+        synchronized (cachedSchemas) {
+            schemaMisses++;
+            if (restored) schemaRestores++;
+            info.used = false;
+            cachedSchemas.addLast(new WeakReference<>(info));
+            evictSchemas();
+            if (cachedSchemas.size() > cleanupSize) {
+                removeUnloaded();
+                cleanupSize = Math.max(64, cachedSchemas.size() * 2);
+            }
+        }
+    }
+
+    /**
+     * Drops the entries of unloaded classes. Must be called while holding the lock of cachedSchemas.
+     */
+    private void removeUnloaded() {
+        for (Iterator<WeakReference<ClassInfo>> it = cachedSchemas.iterator(); it.hasNext();) {
+            if (it.next().get() == null) it.remove();
+        }
+    }
+
+    /**
+     * Evicts schemas until there are not more than maxSchemas. Each one that was used since the clock hand passed it
+     * the last time gets another chance. Must be called while holding the lock of cachedSchemas.
+     *
+     * Entries of unloaded classes count until the hand passes them, so there may be fewer schemas than allowed.
+     */
+    private void evictSchemas() {
+        if (maxSchemas == 0) return;
+
+        while (cachedSchemas.size() > maxSchemas) {
+            WeakReference<ClassInfo> ref = cachedSchemas.pollFirst();
+            ClassInfo info = ref.get();
+            if (info == null) continue;
+
+            if (info.used) {
+                info.used = false;
+                cachedSchemas.addLast(ref);
+            } else {
+                info.schema = null;
+                schemaEvictions++;
+            }
+        }
+    }
+
+    /**
+     * Limits the number of cached schemas. If more classes are used, the schemas that weren't used for the longest
+     * time get dropped, and are created again when needed.
+     *
+     * Schemas of unloaded classes are always dropped, whatever the limit is. Eviction only approximates the least
+     * recently used order, so that lookups don't have to lock.
+     *
+     * @param maxSchemas The maximum number of schemas, or 0 for no limit
+     */
+    public Environment setMaxSchemas(int maxSchemas) {
+        if (maxSchemas < 0) throw new IllegalArgumentException("Negative limit: " + maxSchemas);
+        synchronized (cachedSchemas) {
+            this.maxSchemas = maxSchemas;
+            evictSchemas();
+        }
+        return this;
+    }
+
+    /**
+     * The maximum number of cached schemas, or 0 if unlimited.
+     */
+    public int getMaxSchemas() {
+        synchronized (cachedSchemas) {
+            return maxSchemas;
+        }
+    }
+
+    /**
+     * Sets whether lookups of cached schemas are counted. This costs an atomic increment for each lookup, so it's
+     * disabled by default. Created and evicted schemas are always counted.
+     */
+    public Environment setRecordSchemaStatistics(boolean recordSchemaStatistics) {
+        this.recordSchemaStatistics = recordSchemaStatistics;
+        return this;
+    }
+
+    /**
+     * The current statistics of the schema cache.
+     */
+    public SchemaCacheStats getSchemaCacheStats() {
+        synchronized (cachedSchemas) {
+            removeUnloaded();
+            return new SchemaCacheStats(schemaHits.get(), schemaMisses, schemaEvictions, schemaRestores,
+                    cachedSchemas.size());
+        }
+    }
+
+    /**
+     * Creates the schema of the given type from its loaded layout, and takes over its global verdict. Returns null if
+     * there's no layout, or if the class files have changed since it was saved.
+     */
+    private ClassSchema<?> restoreSchema(Class<?> type, ClassInfo info, SchemaStore store) {
+        if (type.isArray() || !store.contains(type.getName())) return null;
+
+        // Read before, so that a concurrent change invalidates the restored verdicts
+        long version = configurationVersion;
+        SchemaStore.Layout layout = store.layoutOf(type, hierarchyHash(type));
+        if (layout == null) return null;
+
+        info.flags = version << FLAGS | (layout.verdict & ~(-1 << FLAGS));
+        info.marker = version << 1 | ((layout.verdict & INHERITED_MARKER) == 0 ? 0 : 1);
+        return ClassSchema.createUnsafeSchemaFor(type, layout.size, layout.fieldNames, layout.offsets,
+                generateAccessors);
+    }
+
+    /**
+     * A hash over the class files of the given type and all of its superclasses, or 0 if one of them can't be read.
+     */
+    private long hierarchyHash(Class<?> type) {
+        long hash = 0;
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            ClassInfo info = classInfos.get(c);
+            long h = info.classFileHash;
+            if (h == 0) {
+                h = classFiles.hashOf(c);
+                info.classFileHash = h = h == 0 ? NO_CLASS_FILE : h;
+            }
+            if (h == NO_CLASS_FILE) return 0;
+
+            hash = (hash ^ h) * 0x9E3779B97F4A7C15L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Saves the layouts of the currently cached schemas to the given file: their shallow sizes, the offsets of their
+     * fields, and whether their classes are global. Another run can load them with loadSchemas(), so that it doesn't
+     * need to look at the fields of these classes again.
+     *
+     * Only the layouts of classes that were loaded from class files are saved, and only if this environment reads
+     * fields with the Unsafe backend. Layouts that were loaded from a file, but not used in this run, are saved again.
+     * The file gets replaced at once, so that concurrent readers never see a partially written one.
+     */
+    public Environment saveSchemas(File file) throws IOException {
+        List<ClassSchema<?>> schemas = new ArrayList<>();
+        synchronized (cachedSchemas) {
+            for (WeakReference<ClassInfo> ref : cachedSchemas) {
+                ClassInfo info = ref.get();
+                ClassSchema<?> schema = info == null ? null : info.schema;
+                if (schema != null) schemas.add(schema);
+            }
+        }
+
+        SchemaStore.Writer writer = new SchemaStore.Writer(SchemaStore.header(layoutBackend), configurationKey());
+        for (ClassSchema<?> schema : schemas) {
+            Class<?> type = schema.getType();
+            if (type.isArray() || schema.fieldOffsets() == null) continue;
+
+            int verdict = verdictFor(type) | (classHasGlobalMarker(type) ? INHERITED_MARKER : 0);
+            writer.add(schema, hierarchyHash(type), verdict);
+        }
+        SchemaStore store = schemaStore;
+        if (store != null) writer.addAll(store);
+        writer.writeTo(file);
+        return this;
+    }
+
+    /**
+     * Loads the layouts that saveSchemas() has written. Schemas are still created when their classes are needed, but
+     * from these layouts instead of by reflection.
+     *
+     * A layout is only used if the class files of its class and all superclasses are still the same. The whole file
+     * is ignored if it was written by another VM, with other layout options or another backend, or by an environment
+     * with other global types or annotations. If the global types or annotations of this environment change later,
+     * the loaded layouts are dropped again.
+     *
+     * The file is mapped into memory; on some systems, it can't be deleted while the environment is in use.
+     *
+     * @return The number of loaded layouts, which is 0 if the file doesn't exist or was ignored
+     */
+    public synchronized int loadSchemas(File file) throws IOException {
+        SchemaStore store = SchemaStore.load(file, SchemaStore.header(layoutBackend), configurationKey());
+        schemaStore = store;
+        return store == null ? 0 : store.size();
+    }
+
+    /**
+     * Registers the static values of the given type once. Other threads wait until that's done.
+     */
+    private synchronized void registerStatics(Class<?> type, ClassInfo info, StaticFieldPolicy policy) {
+        // Also when this thread is registering them already
+        if (info.registering) return;
+
+        info.registering = true;
+        try {
+            addGlobalObjectsFrom(type, policy);
+        } finally {
+            info.registered = true;
+        }
+    }
+
+    /**
+     * Creates the schemas and global verdicts of the given classes in the background, so that measurements find them
+     * ready. The static values of classes that are initialized already get registered as well; the ones of other
+     * classes are registered when they're used first, as usual.
+     *
+     * Each class is a separate task of the executor, so the classes are warmed up in parallel if it has several
+     * threads. If the executor rejects a task, the class is warmed up on the calling thread instead. The cache should
+     * be large enough for all of them, see setMaxSchemas().
+     *
+     * @return The progress, which can be waited for
+     */
+    public Preload preload(Executor executor, Collection<? extends Class<?>> classes) {
+        final Preload preload = new Preload();
+        Collection<Class<?>> unique = new LinkedHashSet<>(classes);
+        preload.classesFound(unique.size());
+        for (final Class<?> type : unique) {
+            execute(executor, new Runnable() {
+
+                @Override
+                public void run() {
+                    preload.classDone(warmUp(type));
+                }
+            });
+        }
+        return preload;
+    }
+
+    /**
+     * Same as preload() with a collection, for all classes of the given loader whose names start with one of the
+     * prefixes, like <code>"com.example."</code>. The classes are looked up in the background as well. They get
+     * loaded, but not initialized.
+     *
+     * Only the directories and jar files of the loader, its parents, and the boot class path are searched; classes of
+     * the runtime image of Java 9 and later must be given as a collection.
+     */
+    public Preload preload(final Executor executor, final ClassLoader loader, String... prefixes) {
+        final Preload preload = new Preload();
+        final String[] p = prefixes.clone();
+        execute(executor, new Runnable() {
+
+            @Override
+            public void run() {
+                Collection<String> names = new LinkedHashSet<>();
+                try {
+                    for (String prefix : p) {
+                        ClassScanner.findClassNames(loader, prefix, names);
+                    }
+                } catch (RuntimeException ex) {
+                    // Not allowed to look further; warm up what was found
+                }
+                preload.classesFound(names.size());
+                for (final String name : names) {
+                    execute(executor, new Runnable() {
+
+                        @Override
+                        public void run() {
+                            boolean success;
+                            try {
+                                success = warmUp(Class.forName(name, false, loader));
+                            } catch (ClassNotFoundException | LinkageError ex) {
+                                success = false;
+                            }
+                            preload.classDone(success);
+                        }
+                    });
+                }
+            }
+        });
+        return preload;
+    }
+
+    private static void execute(Executor executor, Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            task.run();
+        }
+    }
+
+    /**
+     * Creates the schema and the verdicts of the given class, and registers its static values if it's initialized.
+     *
+     * @return <code>false</code> if the class can't be linked, or its schema can't be created
+     */
+    private boolean warmUp(Class<?> type) {
+        try {
+            ClassInfo info = classInfos.get(type);
+            isGlobalClass(type);
+            // Instances of abstract types don't exist
+            if (type.isPrimitive() || Modifier.isAbstract(type.getModifiers()) && !type.isArray()) return true;
+
+            if (info.schema == null) createSchema(type, info);
+            if (!info.registered && layoutBackend.isInitialized(type)) registerStatics(type, info, staticFieldPolicy);
+            return true;
+        } catch (LinkageError | RuntimeException ex) {
+            return false;
+        }
+    }
+
     /**
      * Registers the given type as known.
      * Eventually declare all static variable values as global, if not registered yet.
@@ -273,12 +946,13 @@ public class Environment {
 
     private Environment addGlobalObjectsFrom(Class<?> type, StaticFieldPolicy policy) {
 
-        ClassSchema.iterateStatic(type, policy.filterStatics(this), policy.addToGlobalsCallback(this));
+        ClassSchema.iterateStatic(type, policy.filterStatics(this), policy.addToGlobalsCallback(this), layoutBackend);
         // Also add onstants from inner classes
         Class<?> c = type;
         do {
             for (Class<?> inner : c.getDeclaredClasses()) {
-                ClassSchema.iterateStatic(inner, policy.filterStatics(this), policy.addToGlobalsCallback(this));
+                ClassSchema.iterateStatic(inner, policy.filterStatics(this), policy.addToGlobalsCallback(this),
+                        layoutBackend);
             }
         } while ((c = c.getSuperclass()) != null);
 
@@ -302,6 +976,64 @@ public class Environment {
         return new Collector(this, calcSizeForEachClass);
     }
 
+    /**
+     * Creates a new collector that stops measuring as soon as the given budget is exhausted.
+     * 
+     * Use this if the measurement runs on a thread that must not block for an unpredictable time. If the budget ran
+     * out, the collector's statistics are marked as partial, and all values are lower bounds. The total size of each
+     * class is not calculated.
+     */
+    public Collector createCollector(Budget budget) {
+        return new Collector(this, budget);
+    }
+
+    /**
+     * Creates a new collector that only measures the part of the object graph that the given restrictions allow.
+     * 
+     * The restrictions are applied once per class, when its schema gets created, so excluded references don't cost
+     * anything while walking. The total size of each class is not calculated.
+     */
+    public Collector createCollector(Restrictions restrictions) {
+        return new Collector(this, restrictions);
+    }
+
+    /**
+     * Creates a new collector that walks the object graph on all threads of the given pool.
+     * 
+     * The results are the same as of createCollector(false), so the total size of each class is always 0. Use
+     * createCollector(true) for the deep size per class.
+     */
+    public Collector createParallelCollector(ForkJoinPool pool) {
+        return new ParallelCollector(this, pool);
+    }
+
+    /**
+     * Creates a new collector that estimates the size of large object arrays from a random sample of their elements,
+     * instead of visiting all of them. This also applies to the tables of hash maps and the elements of array lists.
+     * 
+     * Each sampled array costs at most maxSamples measured elements, so the whole measurement has a bounded cost as
+     * long as the graph is mostly made of such arrays. Use memoryEstimate() on the collector to get the confidence
+     * interval. The total size of each class is not calculated.
+     * 
+     * @param relativeError Sampling an array stops as soon as its estimated size lies within this fraction around
+     *            the real size, with 95% confidence
+     * @param maxSamples The maximum number of sampled elements for each array. Arrays up to twice this length are
+     *            measured exactly.
+     */
+    public Collector createEstimatingCollector(double relativeError, int maxSamples) {
+        return new Collector(this, relativeError, maxSamples);
+    }
+
+    /**
+     * Creates a new collector for roots that get measured repeatedly. Call update() on it to measure again what has
+     * changed since the last time.
+     * 
+     * The total size of each class is not calculated.
+     */
+    public IncrementalCollector createIncrementalCollector() {
+        return new IncrementalCollector(this);
+    }
+
     /**
      * Creates a new collector that calculates the total size and the total size of each class.
      * 
@@ -318,46 +1050,71 @@ public class Environment {
     /**
      * Utility method to quickly calculate the used memory for a group of instances.
      * 
-     * Instances that are referenced by multiple parents count only once.
+     * Instances that are referenced by multiple parents count only once. This doesn't collect any statistics, so it's
+     * faster and needs less memory than a collector. The bookkeeping is kept per thread, so repeated calls allocate
+     * almost nothing.
      */
     public long sizeOf(Object... instances) {
-        Collector c = createCollector(false);
-        for (Object o : instances) {
-            c.measure(o);
+        SizeCounter counter = SizeCounter.start(this);
+        try {
+            for (Object o : instances) {
+                counter.add(o);
+            }
+            return counter.totalSize();
+        } finally {
+            counter.finish();
         }
-        return c.memoryUsed();
     }
 
-    private static class MyClassStats<T> implements ClassStats<T>, Comparable<MyClassStats<?>> {
+    private static class MyClassStats<T> implements RetainedClassStats<T>, Comparable<MyClassStats<?>> {
         final ClassSchema<T> schema;
 
         final long totalSize;
 
-        final Map<String, Reference> referencedBy;
+        /**
+         * Source of the retained size, which gets calculated on the first request only. May be null.
+         */
+        final ClassCollector<T> collector;
+
+        /**
+         * The generation of the collector's measurement when these statistics were taken.
+         */
+        private final int generation;
+
+        private long retainedSize = -1;
+
+        final ReferenceCounts referencedBy;
 
         final T[] instances;
 
         final int[] referenceCounts;
 
-        MyClassStats(ClassCollector<T> cc) {
+        MyClassStats(ClassSchema<T> schema, long totalSize, ClassCollector<T> collector,
+                ReferenceCounts referencedBy, int instanceCount, IdentityCounter... counters) {
 
-            this.schema = cc.schema;
-            this.totalSize = cc.totalSize();
-            this.referencedBy = cc.referencedBy;
+            this.schema = schema;
+            this.totalSize = totalSize;
+            this.collector = collector;
+            generation = collector == null ? 0 : collector.generation();
+            this.referencedBy = referencedBy;
 
             Class<T> type = schema.getType();
-            int n = cc.instanceCount;
             @SuppressWarnings("unchecked")
-            T[] instanceArray = (T[]) Array.newInstance(type, n);
-            int[] refCounts = new int[n];
+            T[] instanceArray = (T[]) Array.newInstance(type, instanceCount);
+            int[] refCounts = new int[instanceCount];
             int i = 0;
-            for (Map.Entry<Object, Integer> e : cc.instancesToRefCounts.entrySet()) {
-                Integer count = e.getValue();
-                // Is null when global instance
-                if (count == null) continue;
+            for (IdentityCounter counts : counters) {
+                for (int slot = 0, cap = counts.capacity(); slot < cap; slot++) {
+                    int count = counts.countAt(slot);
+                    // Is zero when global instance
+                    if (count == 0) continue;
 
-                instanceArray[i] = type.cast(e.getKey());
-                refCounts[i++] = count;
+                    Object instance = counts.instanceAt(slot);
+                    if (instance == null) continue;
+
+                    instanceArray[i] = type.cast(instance);
+                    refCounts[i++] = count;
+                }
             }
 
             this.instances = instanceArray;
@@ -384,9 +1141,24 @@ public class Environment {
             return totalSize;
         }
 
+        @Override
+        public long retainedSize() {
+            if (retainedSize < 0) {
+                if (collector == null) {
+                    retainedSize = 0;
+                } else if (collector.generation() != generation) {
+                    throw new IllegalStateException("The collector was reset after " + type().getName()
+                            + " was measured");
+                } else {
+                    retainedSize = collector.retainedSize();
+                }
+            }
+            return retainedSize;
+        }
+
         @Override
         public Reference[] referencedBy() {
-            Reference[] ref = referencedBy.values().toArray(new Reference[referencedBy.size()]);
+            Reference[] ref = referencedBy.toReferences();
             Arrays.sort(ref, new Comparator<Reference>() {
 
                 @Override
@@ -416,35 +1188,45 @@ public class Environment {
         }
     }
 
-    <T> ClassStats<T> classStatsFor(ClassCollector<T> cc) {
+    <T> RetainedClassStats<T> classStatsFor(ClassCollector<T> cc) {
         if (cc == null) return null;
-        return new MyClassStats<>(cc);
+        // The collector's counts get cleared on reset
+        return new MyClassStats<>(cc.schema, cc.totalSize(), cc, cc.referencedBy.copy(), cc.instanceCount,
+                cc.instancesToRefCounts);
+    }
+
+    <T> RetainedClassStats<T> classStatsFor(ClassSchema<T> schema, ReferenceCounts referencedBy,
+            int instanceCount, IdentityCounter... counters) {
+        return new MyClassStats<>(schema, 0, null, referencedBy, instanceCount, counters);
     }
 
-    void iterateDeep(Object instance, final FieldCallback fc) {
-        final Map<Object, Boolean> visited = new IdentityHashMap<>();
-        visited.put(null, Boolean.TRUE); // Null values are always skipped
+    /**
+     * Calls the callback for the given instance and every instance referenced by it, each one only once.
+     *
+     * The graph is walked with an explicit work stack, so its depth doesn't matter.
+     */
+    void iterateDeep(Object instance, FieldCallback fc) {
+        final IdentityCounter visited = new IdentityCounter();
+        final Deque<Object> pending = new ArrayDeque<>();
 
-        final FieldCallback deeplyIterating = new FieldCallback() {
+        final FieldCallback scheduleNew = new FieldCallback() {
 
             @Override
             public void visit(String refName, Object value) {
-                iterateDeep(value, fc, this, visited);
+                // Null values are always skipped
+                if (value != null && visited.add(value)) pending.push(value);
             }
 
             @Override
             public void finished() {}
         };
 
-        iterateDeep(instance, fc, deeplyIterating, visited);
-    }
-
-    private void iterateDeep(Object instance, FieldCallback fc, FieldCallback deepIterator,
-                Map<Object, Boolean> visited) {
-        if (visited.put(instance, Boolean.TRUE) != null) return;
-
-        fc.visit("#", instance);
-        ClassSchema<?> cs = getSchema(instance.getClass());
-        cs.safeIterate(instance, deepIterator);
+        scheduleNew.visit("#", instance);
+        Object next;
+        while ((next = pending.poll()) != null) {
+            fc.visit("#", next);
+            ClassSchema<?> cs = getSchema(next.getClass());
+            cs.safeIterate(next, scheduleNew);
+        }
     }
 }
@@ -0,0 +1,55 @@
+package io.beans.sizeof;
+
+/**
+ * An estimated size, together with its 95% confidence interval.
+ *
+ * Sizes that were measured exactly have an interval of width zero.
+ *
+ * @author kuli
+ */
+public final class Estimate {
+
+    /**
+     * The quantile of the normal distribution for a two-sided confidence of 95%.
+     */
+    static final double Z_95 = 1.96;
+
+    private final long value;
+
+    private final long halfWidth;
+
+    Estimate(long value, double standardError) {
+        this.value = value;
+        this.halfWidth = (long) Math.ceil(Z_95 * standardError);
+    }
+
+    /**
+     * The most probable value.
+     */
+    public long value() {
+        return value;
+    }
+
+    /**
+     * The lower bound of the 95% confidence interval, never less than 0.
+     */
+    public long lowerBound() {
+        return Math.max(0, value - halfWidth);
+    }
+
+    public long upperBound() {
+        return value + halfWidth;
+    }
+
+    /**
+     * Whether nothing was estimated.
+     */
+    public boolean isExact() {
+        return halfWidth == 0;
+    }
+
+    @Override
+    public String toString() {
+        return isExact() ? Long.toString(value) : value + " (" + lowerBound() + ".." + upperBound() + ")";
+    }
+}
@@ -19,4 +19,12 @@ public interface FieldFilter {
             return true;
         }
     };
+
+    FieldFilter ACCEPT_NONE = new FieldFilter() {
+
+        @Override
+        public boolean accept(Field f) {
+            return false;
+        }
+    };
 }
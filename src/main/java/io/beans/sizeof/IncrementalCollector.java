@@ -0,0 +1,827 @@
+package io.beans.sizeof;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.beans.collections.IdentityCounter;
+
+
+/**
+ * A collector for roots that get measured repeatedly, like registries or caches.
+ *
+ * The first measurement walks the graph like a normal collector, but remembers each counted instance together with
+ * the instances it references, and a fingerprint of its reference fields. On each update(), the fingerprints of all
+ * known instances are compared with their current values. This only reads their reference fields; nothing gets looked
+ * up or counted again. Only the instances whose fingerprint changed get visited again, and only the newly referenced
+ * instances behind them get measured.
+ *
+ * If references got dropped, then the instances that are no longer reachable from the roots are removed. This check
+ * only runs over the remembered references, starting from the instances that lost a reference.
+ *
+ * The statistics are the same as of a new collector that was created without individual class sizes, and which
+ * measured all roots again, with one exception: A root is always counted, even if it's a global instance.
+ *
+ * A listener hears about everything the first measurement of each root finds. On update(), it only hears about the
+ * new references of changed instances, and about the newly measured instances. Removed instances are not reported.
+ *
+ * @author kuli
+ */
+public class IncrementalCollector extends Collector {
+
+    private final Environment env;
+
+    private final Map<Class<?>, ClassRecord<?>> classRecords = new HashMap<>();
+
+    private final List<ClassRecord<?>> classes = new ArrayList<>();
+
+    /**
+     * Known instances with their ids.
+     */
+    private final IdentityCounter ids = new IdentityCounter();
+
+    /**
+     * Highest used id + 1. Ids of removed instances are reused.
+     */
+    private int idLimit;
+
+    private Object[] instances = new Object[64];
+
+    private long[] fingerprints = new long[64];
+
+    private long[] sizes = new long[64];
+
+    private int[] classIndexes = new int[64];
+
+    /**
+     * The number of references to each instance, plus the number of times it was measured as a root.
+     */
+    private int[] refCounts = new int[64];
+
+    private int[] firstEdge = new int[64];
+
+    private int[] edgeCounts = new int[64];
+
+    private int[] freeIds = new int[16];
+
+    private int freeCount;
+
+    /**
+     * Targets of all references. A target is either an instance id, or the complement of a class index if it's a
+     * global instance.
+     */
+    private int[] edges = new int[256];
+
+    /**
+     * Reference ids of all edges.
+     */
+    private int[] edgeRefs = new int[256];
+
+    private int edgeCount;
+
+    /**
+     * Number of edges in the pool that belong to no instance any more.
+     */
+    private int garbageEdges;
+
+    private int[] roots = new int[8];
+
+    private int rootCount;
+
+    private int[] pending = new int[64];
+
+    /**
+     * Instances that lost a reference during the current update. Only they can have become unreachable.
+     */
+    private int[] candidates = new int[64];
+
+    private int candidateCount;
+
+    private static final byte BLACK = 0, GRAY = 1, CANDIDATE = 2;
+
+    /**
+     * Colors for collectGarbage(); all instances are black in between.
+     */
+    private byte[] colors = new byte[64];
+
+    private int pendingCount;
+
+    private long totalSize;
+
+    private int instanceCount;
+
+    private int addedInstances;
+
+    private long addedSize;
+
+    /**
+     * Gets notified about new instances and references, or null.
+     */
+    private TraversalListener listener;
+
+    /**
+     * The instance whose references are visited currently.
+     */
+    private Object current;
+
+    private final ReferenceCallback edgeRecorder = new ReferenceCallback() {
+
+        @Override
+        public void visit(int refId, Object value) {
+            if (value != null) addEdge(refId, value);
+        }
+    };
+
+    /**
+     * Compares the references of a changed instance with its old edges, which are still in the pool. References that
+     * are the same as before get copied without looking them up or counting them again, so a large array with only a
+     * few changed elements stays cheap.
+     */
+    private final class EdgeUpdater implements ReferenceCallback {
+        int cursor;
+
+        int end;
+
+        void start(int id) {
+            cursor = firstEdge[id];
+            end = cursor + edgeCounts[id];
+        }
+
+        private boolean sameAs(int e, int refId, Object value) {
+            int target = edges[e];
+            return target >= 0 && instances[target] == value && edgeRefs[e] == refId;
+        }
+
+        @Override
+        public void visit(int refId, Object value) {
+            if (value == null) return;
+
+            if (cursor < end && sameAs(cursor, refId, value)) {
+                keepEdge(cursor++);
+            } else if (cursor + 1 < end && sameAs(cursor + 1, refId, value)) {
+                // The previous reference is gone
+                candidate(dropEdge(cursor));
+                keepEdge(cursor + 1);
+                cursor += 2;
+            } else {
+                addEdge(refId, value);
+            }
+        }
+
+        /**
+         * Drops the old edges that were not seen again.
+         */
+        void finished() {
+            while (cursor < end) {
+                candidate(dropEdge(cursor++));
+            }
+        }
+    }
+
+    private final EdgeUpdater edgeUpdater = new EdgeUpdater();
+
+    private static final class ClassRecord<T> {
+        final ClassSchema<T> schema;
+
+        final boolean global;
+
+        final int index;
+
+        int instanceCount;
+
+        /**
+         * Number of references to global instances of this class.
+         */
+        int globalRefs;
+
+        final ReferenceCounts referencedBy = new ReferenceCounts();
+
+        ClassRecord(Environment env, Class<T> type, int index) {
+            schema = env.getSchema(type);
+            global = env.isGlobalClass(type);
+            this.index = index;
+        }
+
+        void ref(int refId) {
+            referencedBy.increment(refId);
+        }
+
+        void unref(int refId) {
+            referencedBy.decrement(refId);
+        }
+
+        /**
+         * A new collector would only know this class if some instance or reference is left.
+         */
+        boolean isUsed() {
+            return instanceCount > 0 || globalRefs > 0;
+        }
+
+        RetainedClassStats<T> stats(Environment env, IdentityCounter counts) {
+            return env.classStatsFor(schema, referencedBy.copy(), instanceCount, counts);
+        }
+    }
+
+    /**
+     * What has changed by an update.
+     */
+    public static final class Delta {
+        private final int changedInstances;
+
+        private final int addedInstances;
+
+        private final long addedSize;
+
+        private final int removedInstances;
+
+        private final long removedSize;
+
+        Delta(int changedInstances, int addedInstances, long addedSize, int removedInstances, long removedSize) {
+            this.changedInstances = changedInstances;
+            this.addedInstances = addedInstances;
+            this.addedSize = addedSize;
+            this.removedInstances = removedInstances;
+            this.removedSize = removedSize;
+        }
+
+        /**
+         * The number of known instances whose references have changed.
+         */
+        public int changedInstances() {
+            return changedInstances;
+        }
+
+        /**
+         * The number of instances that are measured now, but weren't before.
+         */
+        public int addedInstances() {
+            return addedInstances;
+        }
+
+        public long addedSize() {
+            return addedSize;
+        }
+
+        /**
+         * The number of instances that are no longer reachable from the roots.
+         */
+        public int removedInstances() {
+            return removedInstances;
+        }
+
+        public long removedSize() {
+            return removedSize;
+        }
+
+        /**
+         * The difference of the used memory, which may be negative.
+         */
+        public long memoryDelta() {
+            return addedSize - removedSize;
+        }
+
+        /**
+         * Whether nothing has changed at all.
+         */
+        public boolean isEmpty() {
+            return changedInstances == 0 && addedInstances == 0 && removedInstances == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Delta: " + changedInstances + " changed, +" + addedInstances + " instances with " + addedSize
+                    + " bytes, -" + removedInstances + " instances with " + removedSize + " bytes";
+        }
+    }
+
+    IncrementalCollector(Environment env) {
+        this.env = env;
+    }
+
+    private <T> ClassRecord<T> getClassRecord(Class<T> type) {
+        @SuppressWarnings("unchecked")
+        ClassRecord<T> cr = (ClassRecord<T>) classRecords.get(type);
+        if (cr == null) {
+            cr = new ClassRecord<>(env, type, classes.size());
+            classRecords.put(type, cr);
+            classes.add(cr);
+            if (listener != null) listener.classFound(type, cr.global);
+        }
+        return cr;
+    }
+
+    /**
+     * Registers a new instance, and schedules it for being visited.
+     */
+    private <T> int addInstance(T instance, ClassRecord<T> cr) {
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            id = idLimit++;
+            if (id == instances.length) {
+                int newLength = id << 1;
+                instances = Arrays.copyOf(instances, newLength);
+                fingerprints = Arrays.copyOf(fingerprints, newLength);
+                sizes = Arrays.copyOf(sizes, newLength);
+                classIndexes = Arrays.copyOf(classIndexes, newLength);
+                refCounts = Arrays.copyOf(refCounts, newLength);
+                firstEdge = Arrays.copyOf(firstEdge, newLength);
+                edgeCounts = Arrays.copyOf(edgeCounts, newLength);
+                colors = Arrays.copyOf(colors, newLength);
+            }
+        }
+
+        long size = cr.schema.shallowSize(instance);
+        ids.put(instance, id);
+        instances[id] = instance;
+        sizes[id] = size;
+        classIndexes[id] = cr.index;
+        refCounts[id] = 0;
+        edgeCounts[id] = 0;
+        colors[id] = BLACK;
+
+        cr.instanceCount++;
+        instanceCount++;
+        totalSize += size;
+        addedInstances++;
+        addedSize += size;
+        if (listener != null) listener.counted(instance, size);
+
+        if (pendingCount == pending.length) pending = Arrays.copyOf(pending, pendingCount << 1);
+        pending[pendingCount++] = id;
+        return id;
+    }
+
+    /**
+     * Visits all scheduled instances, and records their references and fingerprints.
+     */
+    private void drain() {
+        while (pendingCount > 0) {
+            int id = pending[--pendingCount];
+            Object instance = instances[id];
+            ClassSchema<?> schema = classes.get(classIndexes[id]).schema;
+
+            // The edges of each instance are stored in one block at the end of the pool
+            int start = edgeCount;
+            current = instance;
+            schema.iterateIds(instance, edgeRecorder);
+            firstEdge[id] = start;
+            edgeCounts[id] = edgeCount - start;
+            fingerprints[id] = schema.fingerprint(instance);
+        }
+    }
+
+    private <T> void addEdge(int refId, T value) {
+        if (listener != null) listener.referenced(current, ReferenceNames.nameOf(refId), value);
+        @SuppressWarnings("unchecked")
+        ClassRecord<T> cr = getClassRecord((Class<T>) value.getClass());
+        int target;
+        if (cr.global) {
+            target = ~cr.index;
+            cr.globalRefs++;
+        } else {
+            cr.ref(refId);
+            target = ids.get(value);
+            if (target == IdentityCounter.ABSENT) {
+                if (env.isGlobalInstance(value)) {
+                    target = ~cr.index;
+                    cr.globalRefs++;
+                } else {
+                    target = addInstance(value, cr);
+                }
+            }
+            if (target >= 0) refCounts[target]++;
+        }
+
+        appendEdge(target, refId);
+    }
+
+    private void appendEdge(int target, int refId) {
+        if (edgeCount == edges.length) {
+            edges = Arrays.copyOf(edges, edgeCount << 1);
+            edgeRefs = Arrays.copyOf(edgeRefs, edges.length);
+        }
+        edges[edgeCount] = target;
+        edgeRefs[edgeCount++] = refId;
+    }
+
+    /**
+     * Copies an edge of the pool to its end, without counting it again.
+     */
+    private void keepEdge(int e) {
+        appendEdge(edges[e], edgeRefs[e]);
+    }
+
+    /**
+     * Forgets the name of a single reference, but not the reference count of its target.
+     *
+     * @return The target
+     */
+    private int unrefEdge(int e) {
+        int target = edges[e];
+        int refId = edgeRefs[e];
+        if (target >= 0) {
+            classes.get(classIndexes[target]).unref(refId);
+        } else {
+            ClassRecord<?> cr = classes.get(~target);
+            cr.globalRefs--;
+            if (!cr.global) cr.unref(refId);
+        }
+        return target;
+    }
+
+    /**
+     * Forgets a single reference.
+     *
+     * @return The target
+     */
+    private int dropEdge(int e) {
+        int target = unrefEdge(e);
+        if (target >= 0) refCounts[target]--;
+        return target;
+    }
+
+    /**
+     * Remembers that the given target lost a reference.
+     */
+    private void candidate(int target) {
+        if (target < 0 || colors[target] != BLACK) return;
+
+        colors[target] = CANDIDATE;
+        if (candidateCount == candidates.length) candidates = Arrays.copyOf(candidates, candidateCount << 1);
+        candidates[candidateCount++] = target;
+    }
+
+    /**
+     * Visits a known instance again whose references have changed, and measures the newly referenced instances.
+     */
+    private void revisit(int id, Object instance, ClassSchema<?> schema) {
+        edgeUpdater.start(id);
+        int start = edgeCount;
+        current = instance;
+        schema.iterateIds(instance, edgeUpdater);
+        edgeUpdater.finished();
+
+        garbageEdges += edgeCounts[id];
+        firstEdge[id] = start;
+        edgeCounts[id] = edgeCount - start;
+        fingerprints[id] = schema.fingerprint(instance);
+        drain();
+    }
+
+    private void removeInstance(int id, long[] removedSize) {
+        garbageEdges += edgeCounts[id];
+        edgeCounts[id] = 0;
+        ids.remove(instances[id]);
+        instances[id] = null;
+        colors[id] = BLACK;
+        classes.get(classIndexes[id]).instanceCount--;
+        instanceCount--;
+        totalSize -= sizes[id];
+        removedSize[0] += sizes[id];
+
+        if (freeCount == freeIds.length) freeIds = Arrays.copyOf(freeIds, freeCount << 1);
+        freeIds[freeCount++] = id;
+    }
+
+    /**
+     * Removes the instances that are no longer reachable from the roots.
+     *
+     * This is synchronous trial deletion, as described by Bacon and Rajan: All references within the subgraph that is
+     * reachable from the candidates get subtracted from the reference counts. Whatever is still referenced then, or
+     * is reachable from such an instance, is alive; the rest is only referenced by itself, and gets removed.
+     *
+     * This costs only as much as the subgraph behind the candidates. If that is a large part of the whole graph, then
+     * it's cheaper to mark everything from the roots instead.
+     *
+     * @return The number of removed instances
+     */
+    private int collectGarbage(long[] removedSize) {
+        int budget = Math.max(1024, idLimit >>> 3);
+        int[] visited = new int[64];
+        int visitedCount = 0;
+        int[] stack = pending;
+        int top = 0;
+        for (int i = 0; i < candidateCount; i++) {
+            if (top == stack.length) stack = Arrays.copyOf(stack, top << 1);
+            stack[top++] = candidates[i];
+        }
+        candidateCount = 0;
+
+        // Subtract all references from within the subgraph
+        boolean exceeded = false;
+        while (top > 0) {
+            int u = stack[--top];
+            if (colors[u] == GRAY) continue;
+            if (visitedCount == budget) {
+                // Put it back so that its color gets reset
+                stack[top++] = u;
+                exceeded = true;
+                break;
+            }
+
+            colors[u] = GRAY;
+            if (visitedCount == visited.length) visited = Arrays.copyOf(visited, visitedCount << 1);
+            visited[visitedCount++] = u;
+            for (int e = firstEdge[u], end = e + edgeCounts[u]; e < end; e++) {
+                int v = edges[e];
+                if (v < 0) continue;
+                refCounts[v]--;
+                if (colors[v] != GRAY) {
+                    if (top == stack.length) stack = Arrays.copyOf(stack, top << 1);
+                    stack[top++] = v;
+                }
+            }
+        }
+
+        if (exceeded) {
+            // Undo everything, including the candidates that weren't reached yet
+            while (top > 0) {
+                colors[stack[--top]] = BLACK;
+            }
+            for (int i = 0; i < visitedCount; i++) {
+                int u = visited[i];
+                colors[u] = BLACK;
+                for (int e = firstEdge[u], end = e + edgeCounts[u]; e < end; e++) {
+                    if (edges[e] >= 0) refCounts[edges[e]]++;
+                }
+            }
+            pending = stack;
+            return sweep(removedSize);
+        }
+
+        // Everything that is still referenced from outside is alive, and so is all that it reaches
+        for (int i = 0; i < visitedCount; i++) {
+            int s = visited[i];
+            if (colors[s] != GRAY || refCounts[s] <= 0) continue;
+
+            colors[s] = BLACK;
+            stack[top++] = s;
+            while (top > 0) {
+                int u = stack[--top];
+                for (int e = firstEdge[u], end = e + edgeCounts[u]; e < end; e++) {
+                    int v = edges[e];
+                    if (v < 0) continue;
+                    refCounts[v]++;
+                    if (colors[v] == GRAY) {
+                        colors[v] = BLACK;
+                        if (top == stack.length) stack = Arrays.copyOf(stack, top << 1);
+                        stack[top++] = v;
+                    }
+                }
+            }
+        }
+        pending = stack;
+
+        // The gray rest is garbage; its references are subtracted already
+        int removed = 0;
+        for (int i = 0; i < visitedCount; i++) {
+            int u = visited[i];
+            if (colors[u] != GRAY) continue;
+
+            colors[u] = BLACK;
+            for (int e = firstEdge[u], end = e + edgeCounts[u]; e < end; e++) {
+                unrefEdge(e);
+            }
+            removeInstance(u, removedSize);
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Removes all instances that are not reachable from the roots, by marking everything that is.
+     */
+    private int sweep(long[] removedSize) {
+        boolean[] reachable = new boolean[idLimit];
+        int[] stack = pending;
+        int top = 0;
+        for (int i = 0; i < rootCount; i++) {
+            int r = roots[i];
+            if (reachable[r]) continue;
+            reachable[r] = true;
+            if (top == stack.length) stack = Arrays.copyOf(stack, top << 1);
+            stack[top++] = r;
+        }
+        while (top > 0) {
+            int u = stack[--top];
+            for (int e = firstEdge[u], end = e + edgeCounts[u]; e < end; e++) {
+                int v = edges[e];
+                if (v < 0 || reachable[v]) continue;
+                reachable[v] = true;
+                if (top == stack.length) stack = Arrays.copyOf(stack, top << 1);
+                stack[top++] = v;
+            }
+        }
+        pending = stack;
+
+        int removed = 0;
+        for (int id = 0; id < idLimit; id++) {
+            if (instances[id] == null || reachable[id]) continue;
+
+            for (int e = firstEdge[id], end = e + edgeCounts[id]; e < end; e++) {
+                dropEdge(e);
+            }
+            removeInstance(id, removedSize);
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Compacts the edge pool if more than half of it is garbage.
+     */
+    private void compactEdges() {
+        if (garbageEdges <= edgeCount >>> 1) return;
+
+        int length = Math.max(256, Integer.highestOneBit(Math.max(1, edgeCount - garbageEdges)) << 1);
+        int[] newEdges = new int[length];
+        int[] newRefs = new int[length];
+        int n = 0;
+        for (int id = 0; id < idLimit; id++) {
+            if (instances[id] == null) continue;
+
+            int count = edgeCounts[id];
+            System.arraycopy(edges, firstEdge[id], newEdges, n, count);
+            System.arraycopy(edgeRefs, firstEdge[id], newRefs, n, count);
+            firstEdge[id] = n;
+            n += count;
+        }
+        edges = newEdges;
+        edgeRefs = newRefs;
+        edgeCount = n;
+        garbageEdges = 0;
+    }
+
+    /**
+     * Checks all measured instances for changed references, and measures again what has changed.
+     *
+     * The reference fields of each instance are read once. Only the instances with changed references, and newly
+     * referenced instances, get visited. Instances that are no longer reachable from any root get removed.
+     *
+     * @return What has changed since the last update
+     */
+    public synchronized Delta update() {
+        addedInstances = 0;
+        addedSize = 0;
+        int changed = 0;
+
+        // New instances may get added while iterating, but they have current fingerprints already
+        for (int id = 0; id < idLimit; id++) {
+            Object instance = instances[id];
+            if (instance == null) continue;
+
+            ClassSchema<?> schema = classes.get(classIndexes[id]).schema;
+            if (schema.fingerprint(instance) == fingerprints[id]) continue;
+
+            changed++;
+            revisit(id, instance, schema);
+        }
+
+        long[] removedSize = { 0L };
+        int removed = candidateCount > 0 ? collectGarbage(removedSize) : 0;
+        compactEdges();
+
+        return new Delta(changed, addedInstances, addedSize, removed, removedSize[0]);
+    }
+
+    /**
+     * Forgets all roots and measured instances. The arrays keep their capacity.
+     */
+    @Override
+    public synchronized Collector reset() {
+        Arrays.fill(instances, 0, idLimit, null);
+        ids.clear();
+        classRecords.clear();
+        classes.clear();
+        idLimit = 0;
+        freeCount = 0;
+        edgeCount = 0;
+        garbageEdges = 0;
+        rootCount = 0;
+        pendingCount = 0;
+        candidateCount = 0;
+        totalSize = 0;
+        instanceCount = 0;
+        addedInstances = 0;
+        addedSize = 0;
+        current = null;
+        return this;
+    }
+
+    /**
+     * Add a root to this collector and measure its size. The root will be checked on each update().
+     *
+     * If it already was measured by a previously added or referenced bean, then only its reference count increments.
+     */
+    @Override
+    public synchronized <T> void measure(T instance) {
+        if (instance == null) return;
+
+        int id = ids.get(instance);
+        if (id == IdentityCounter.ABSENT) {
+            @SuppressWarnings("unchecked")
+            ClassRecord<T> cr = getClassRecord((Class<T>) instance.getClass());
+            id = addInstance(instance, cr);
+            drain();
+        }
+        refCounts[id]++;
+
+        if (rootCount == roots.length) roots = Arrays.copyOf(roots, rootCount << 1);
+        roots[rootCount++] = id;
+        if (listener != null) listener.measured(instance);
+    }
+
+    @Override
+    public synchronized long memoryUsed() {
+        return totalSize;
+    }
+
+    @Override
+    public synchronized int instanceCount() {
+        return instanceCount;
+    }
+
+    /**
+     * Always false, since the incremental collector has no budget.
+     */
+    @Override
+    public boolean isPartial() {
+        return false;
+    }
+
+    @Override
+    public long unexploredReferences() {
+        return 0;
+    }
+
+    /**
+     * Always exact, since the incremental collector doesn't sample.
+     */
+    @Override
+    public Estimate memoryEstimate() {
+        return new Estimate(memoryUsed(), 0);
+    }
+
+    /**
+     * Always 0, since the incremental collector doesn't calculate the size of each class.
+     */
+    @Override
+    public long retainedSize(Object instance) {
+        return 0;
+    }
+
+    /**
+     * Streams everything that gets measured from now on to the given listener, including what later updates find.
+     */
+    @Override
+    public synchronized Collector setListener(TraversalListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Collects the counted instances of each class with their reference counts.
+     *
+     * @param classIndex Only collect instances of this class, or all if -1
+     */
+    private IdentityCounter[] countsPerClass(int classIndex) {
+        IdentityCounter[] counts = new IdentityCounter[classes.size()];
+        for (int id = 0; id < idLimit; id++) {
+            Object instance = instances[id];
+            int c = classIndexes[id];
+            if (instance == null || (classIndex >= 0 && c != classIndex)) continue;
+
+            if (counts[c] == null) counts[c] = new IdentityCounter(classes.get(c).instanceCount);
+            counts[c].put(instance, refCounts[id]);
+        }
+        for (int c = 0; c < counts.length; c++) {
+            if (counts[c] == null) counts[c] = new IdentityCounter();
+        }
+        return counts;
+    }
+
+    @Override
+    public synchronized <T> RetainedClassStats<T> statsFor(Class<T> type) {
+        @SuppressWarnings("unchecked")
+        ClassRecord<T> cr = (ClassRecord<T>) classRecords.get(type);
+        if (cr == null || !cr.isUsed()) return null;
+
+        return cr.stats(env, countsPerClass(cr.index)[cr.index]);
+    }
+
+    @Override
+    public synchronized RetainedClassStats<?>[] stats() {
+        IdentityCounter[] counts = countsPerClass(-1);
+        List<RetainedClassStats<?>> stats = new ArrayList<>(classes.size());
+        for (ClassRecord<?> cr : classes) {
+            if (cr.isUsed()) stats.add(cr.stats(env, counts[cr.index]));
+        }
+        RetainedClassStats<?>[] array = stats.toArray(new RetainedClassStats<?>[stats.size()]);
+        Arrays.sort(array);
+        return array;
+    }
+}
@@ -0,0 +1,80 @@
+package io.beans.sizeof;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Field;
+
+
+/**
+ * The layout backend that asks the VM for the exact shallow size of each instance. Fields are read by another
+ * backend, whose sizes are only used for the layout of classes that weren't measured yet.
+ *
+ * @author kuli
+ */
+final class InstrumentationBackend extends LayoutBackend {
+
+    private final Instrumentation instrumentation;
+
+    private final LayoutBackend reader;
+
+    InstrumentationBackend(Instrumentation instrumentation, LayoutBackend reader) {
+        this.instrumentation = instrumentation;
+        this.reader = reader;
+    }
+
+    @Override
+    long referenceSize() {
+        return reader.referenceSize();
+    }
+
+    @Override
+    long arrayBaseOffset(Class<?> arrayType) {
+        return reader.arrayBaseOffset(arrayType);
+    }
+
+    @Override
+    long arrayIndexScale(Class<?> arrayType) {
+        return reader.arrayIndexScale(arrayType);
+    }
+
+    @Override
+    long align(long size) {
+        return reader.align(size);
+    }
+
+    @Override
+    boolean readsWithUnsafe() {
+        return reader.readsWithUnsafe();
+    }
+
+    @Override
+    <T> ClassSchema<T> createObjectSchemaFor(Class<T> type, FieldFilter filter, boolean generateAccessor) {
+        return ClassSchema.createInstrumentedSchema(reader.createObjectSchemaFor(type, filter, generateAccessor),
+                instrumentation);
+    }
+
+    @Override
+    <T> ClassSchema<T> createSchemaFor(Class<T> type, FieldFilter filter, boolean generateAccessor) {
+        return ClassSchema.createInstrumentedSchema(reader.createSchemaFor(type, filter, generateAccessor),
+                instrumentation);
+    }
+
+    @Override
+    <T> ClassSchema<T> createLeafSchemaFor(Class<T> type) {
+        return ClassSchema.createInstrumentedSchema(reader.createLeafSchemaFor(type), instrumentation);
+    }
+
+    @Override
+    Object readStatic(Field f) {
+        return reader.readStatic(f);
+    }
+
+    @Override
+    boolean isInitialized(Class<?> type) {
+        return reader.isInitialized(type);
+    }
+
+    @Override
+    public String toString() {
+        return "Instrumentation with " + reader;
+    }
+}
@@ -0,0 +1,136 @@
+package io.beans.sizeof;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Field;
+
+
+/**
+ * Decides how the schemas of an environment read the fields of instances, and how they calculate shallow sizes.
+ *
+ * There are three backends:
+ * <ul>
+ * <li>{@link #unsafe()} reads fields with sun.misc.Unsafe, and derives sizes from the field offsets. This is the
+ * fastest one, and the default.</li>
+ * <li>{@link #reflection()} reads fields with reflection, and calculates sizes from a model of the VM's object layout.
+ * Fields that are not accessible, like the internals of JDK classes under strong encapsulation, are read with Unsafe
+ * if it's available. Without Unsafe, such classes can't be measured unless their packages are opened. Fields that the
+ * VM injects into some JDK classes, like Thread on Java 19 and later, are invisible to reflection and not part of the
+ * model.</li>
+ * <li>{@link #instrumentation()} asks the VM for the exact shallow size of each instance, and reads fields with the
+ * default backend. It needs the {@link SizeOfAgent}.</li>
+ * </ul>
+ *
+ * The backend is chosen when the environment is created, and can't be changed afterwards.
+ *
+ * @author kuli
+ */
+public abstract class LayoutBackend {
+
+    LayoutBackend() {
+        // Only the implementations in this package
+    }
+
+    /**
+     * The backend that reads fields with sun.misc.Unsafe.
+     *
+     * @throws UnsupportedOperationException If Unsafe is not accessible
+     */
+    public static LayoutBackend unsafe() {
+        if (UnsafeBackend.INSTANCE == null) throw new UnsupportedOperationException("sun.misc.Unsafe is not accessible");
+        return UnsafeBackend.INSTANCE;
+    }
+
+    /**
+     * The backend that reads fields with reflection.
+     */
+    public static LayoutBackend reflection() {
+        return ReflectionBackend.INSTANCE;
+    }
+
+    /**
+     * The backend that measures the exact shallow sizes with the instrumentation of the {@link SizeOfAgent}.
+     *
+     * @throws IllegalStateException If the agent is not loaded
+     */
+    public static LayoutBackend instrumentation() {
+        Instrumentation instrumentation = SizeOfAgent.getInstrumentation();
+        if (instrumentation == null) {
+            throw new IllegalStateException("The agent is not loaded; start the VM with -javaagent:<io.beans.jar>");
+        }
+        return instrumentation(instrumentation);
+    }
+
+    /**
+     * The backend that measures the exact shallow sizes with the given instrumentation.
+     */
+    public static LayoutBackend instrumentation(Instrumentation instrumentation) {
+        if (instrumentation == null) throw new NullPointerException();
+        return new InstrumentationBackend(instrumentation, getDefault());
+    }
+
+    /**
+     * The Unsafe backend if it's available, or the reflection backend otherwise.
+     */
+    public static LayoutBackend getDefault() {
+        return UnsafeBackend.INSTANCE == null ? ReflectionBackend.INSTANCE : UnsafeBackend.INSTANCE;
+    }
+
+    /**
+     * The size of a reference in the current VM.
+     */
+    abstract long referenceSize();
+
+    /**
+     * The offset of the first element of arrays of the given type.
+     */
+    abstract long arrayBaseOffset(Class<?> arrayType);
+
+    /**
+     * The size of each element of arrays of the given type.
+     */
+    abstract long arrayIndexScale(Class<?> arrayType);
+
+    /**
+     * Rounds the given size up to the alignment of instances in the heap.
+     */
+    abstract long align(long size);
+
+    /**
+     * Whether fields are read with Unsafe, so that schemas may also use offsets directly.
+     */
+    boolean readsWithUnsafe() {
+        return false;
+    }
+
+    /**
+     * Creates the schema of a class that's no array.
+     */
+    abstract <T> ClassSchema<T> createObjectSchemaFor(Class<T> type, FieldFilter filter, boolean generateAccessor);
+
+    /**
+     * Creates the schema of the given type, which only visits the references whose fields the filter accepts. Where
+     * possible, it visits them with a generated accessor.
+     */
+    <T> ClassSchema<T> createSchemaFor(Class<T> type, FieldFilter filter, boolean generateAccessor) {
+        return ClassSchema.createSchemaFor(type, filter, generateAccessor, this);
+    }
+
+    /**
+     * Creates a schema that calculates the shallow size of the given type, but never visits any references.
+     */
+    <T> ClassSchema<T> createLeafSchemaFor(Class<T> type) {
+        return ClassSchema.createLeafSchemaFor(type, this);
+    }
+
+    /**
+     * The value of the given static field, or null if it can't be read.
+     */
+    abstract Object readStatic(Field f);
+
+    /**
+     * Whether the given class is known to be initialized, so that its static fields hold their values.
+     */
+    boolean isInitialized(Class<?> type) {
+        return false;
+    }
+}
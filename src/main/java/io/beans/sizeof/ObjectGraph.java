@@ -0,0 +1,441 @@
+package io.beans.sizeof;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.beans.collections.IdentityCounter;
+
+
+/**
+ * A compact record of a measured object graph.
+ *
+ * Every counted instance gets a dense int id. For each id, the shallow size and the index of the instance's class
+ * collector are stored in primitive arrays, and the references between counted instances are stored as int edges.
+ * References to global instances are not recorded.
+ *
+ * Edges get added while the referencing instance is visited, so the edges of one node are always stored in one
+ * block.
+ *
+ * @author kuli
+ */
+final class ObjectGraph {
+
+    private final IdentityCounter ids = new IdentityCounter();
+
+    private int nodeCount;
+
+    private long[] sizes = new long[64];
+
+    private int[] classIndexes = new int[64];
+
+    private int[] firstEdge = new int[64];
+
+    private int[] edgeCounts = new int[64];
+
+    private int edgeCount;
+
+    private int[] edges = new int[256];
+
+    private int[] roots = new int[8];
+
+    private int rootCount;
+
+    /**
+     * The node whose edges are currently added.
+     */
+    private int current = -1;
+
+    /**
+     * Incremented with each added node, edge or root, and on clear().
+     */
+    private int modCount;
+
+    /**
+     * Adds a new node and returns its id.
+     */
+    int addNode(Object instance, long size, int classIndex) {
+        int id = nodeCount++;
+        modCount++;
+        if (id == sizes.length) {
+            int newLength = id << 1;
+            sizes = Arrays.copyOf(sizes, newLength);
+            classIndexes = Arrays.copyOf(classIndexes, newLength);
+            firstEdge = Arrays.copyOf(firstEdge, newLength);
+            edgeCounts = Arrays.copyOf(edgeCounts, newLength);
+        }
+        ids.put(instance, id);
+        sizes[id] = size;
+        classIndexes[id] = classIndex;
+        return id;
+    }
+
+    /**
+     * Removes all nodes, edges and roots, but keeps the allocated arrays.
+     */
+    void clear() {
+        ids.clear();
+        Arrays.fill(edgeCounts, 0, nodeCount, 0);
+        nodeCount = 0;
+        edgeCount = 0;
+        rootCount = 0;
+        current = -1;
+        modCount++;
+    }
+
+    /**
+     * Gets the id of the given instance, or IdentityCounter.ABSENT if it's not part of this graph.
+     */
+    int idOf(Object instance) {
+        return ids.get(instance);
+    }
+
+    /**
+     * Marks the given node as being measured explicitely.
+     */
+    void addRoot(int id) {
+        if (rootCount == roots.length) roots = Arrays.copyOf(roots, rootCount << 1);
+        roots[rootCount++] = id;
+        modCount++;
+    }
+
+    /**
+     * All following edges start from the given node, until the next call of this method.
+     */
+    void startEdgesFrom(int id) {
+        current = id;
+        firstEdge[id] = edgeCount;
+    }
+
+    void addEdge(int target) {
+        if (edgeCount == edges.length) edges = Arrays.copyOf(edges, edgeCount << 1);
+        edges[edgeCount++] = target;
+        edgeCounts[current]++;
+        modCount++;
+    }
+
+    int nodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Changes whenever the graph changes, so that results calculated from it can be checked for being current.
+     */
+    int modCount() {
+        return modCount;
+    }
+
+    int rootCount() {
+        return rootCount;
+    }
+
+    int root(int i) {
+        return roots[i];
+    }
+
+    long size(int id) {
+        return sizes[id];
+    }
+
+    int classIndex(int id) {
+        return classIndexes[id];
+    }
+
+    int firstEdge(int id) {
+        return firstEdge[id];
+    }
+
+    int edgeCount(int id) {
+        return edgeCounts[id];
+    }
+
+    int edgeCount() {
+        return edgeCount;
+    }
+
+    int edge(int e) {
+        return edges[e];
+    }
+
+    /**
+     * Calculates, for each class, the total size of all instances that are reachable from at least one instance of
+     * that class, including these instances themselves.
+     *
+     * This is done in one pass over the graph: The strongly connected components are searched, and then, in
+     * topological order, each component gets the set of classes from which it is reachable. Since there are usually
+     * only a few distinct such sets, they get interned, and the sizes are summed up per set.
+     *
+     * @param classCount The number of class indexes
+     * @return The total sizes, indexed by the class indexes
+     */
+    long[] totalSizesPerClass(int classCount) {
+        int n = nodeCount;
+        int[] component = new int[n];
+        int componentCount = findComponents(component);
+
+        // Sort the nodes by their component
+        int[] componentStart = new int[componentCount + 1];
+        for (int u = 0; u < n; u++) {
+            componentStart[component[u] + 1]++;
+        }
+        for (int c = 0; c < componentCount; c++) {
+            componentStart[c + 1] += componentStart[c];
+        }
+        int[] members = new int[n];
+        int[] fill = Arrays.copyOf(componentStart, componentCount);
+        for (int u = 0; u < n; u++) {
+            members[fill[component[u]]++] = u;
+        }
+
+        ClassSets sets = new ClassSets(classCount);
+        // All components start with the empty set, which is the set with id 0
+        int[] componentSet = new int[componentCount];
+        long[] sizePerSet = new long[16];
+
+        // Components are found sinks first, so the highest component comes first in topological order
+        for (int c = componentCount - 1; c >= 0; c--) {
+            int set = componentSet[c];
+            long size = 0;
+            for (int m = componentStart[c]; m < componentStart[c + 1]; m++) {
+                int u = members[m];
+                set = sets.union(set, sets.singleton(classIndexes[u]));
+                size += sizes[u];
+            }
+            if (set >= sizePerSet.length) sizePerSet = Arrays.copyOf(sizePerSet, Math.max(set + 1, set << 1));
+            sizePerSet[set] += size;
+
+            for (int m = componentStart[c]; m < componentStart[c + 1]; m++) {
+                int u = members[m];
+                for (int e = firstEdge[u], end = e + edgeCounts[u]; e < end; e++) {
+                    int d = component[edges[e]];
+                    if (d != c) componentSet[d] = sets.union(componentSet[d], set);
+                }
+            }
+        }
+
+        long[] totals = new long[classCount];
+        for (int set = 0; set < sets.size(); set++) {
+            long size = set < sizePerSet.length ? sizePerSet[set] : 0L;
+            if (size == 0) continue;
+            for (int classIndex : sets.members(set)) {
+                totals[classIndex] += size;
+            }
+        }
+
+        return totals;
+    }
+
+    /**
+     * Tarjan's algorithm for strongly connected components, with an explicit call stack.
+     *
+     * Components are numbered in the order in which they are completed. Hence, if there is an edge from component a
+     * to a different component b, then a > b.
+     *
+     * @param component Gets filled with the component of each node
+     * @return The number of components
+     */
+    private int findComponents(int[] component) {
+        int n = nodeCount;
+        int[] index = new int[n]; // 0 means unvisited, otherwise index + 1
+        int[] lowLink = new int[n];
+        int[] stack = new int[n];
+        int stackSize = 0;
+        boolean[] onStack = new boolean[n];
+        int[] callNode = new int[n];
+        int[] callEdge = new int[n];
+        int depth;
+        int nextIndex = 1;
+        int componentCount = 0;
+
+        for (int start = 0; start < n; start++) {
+            if (index[start] != 0) continue;
+
+            depth = 0;
+            callNode[0] = start;
+            callEdge[0] = firstEdge[start];
+            index[start] = lowLink[start] = nextIndex++;
+            stack[stackSize++] = start;
+            onStack[start] = true;
+
+            while (depth >= 0) {
+                int u = callNode[depth];
+                int e = callEdge[depth];
+                if (e < firstEdge[u] + edgeCounts[u]) {
+                    callEdge[depth] = e + 1;
+                    int v = edges[e];
+                    if (index[v] == 0) {
+                        index[v] = lowLink[v] = nextIndex++;
+                        stack[stackSize++] = v;
+                        onStack[v] = true;
+                        depth++;
+                        callNode[depth] = v;
+                        callEdge[depth] = firstEdge[v];
+                    } else if (onStack[v] && index[v] < lowLink[u]) {
+                        lowLink[u] = index[v];
+                    }
+                    continue;
+                }
+
+                // All edges of u are done
+                if (lowLink[u] == index[u]) {
+                    int v;
+                    do {
+                        v = stack[--stackSize];
+                        onStack[v] = false;
+                        component[v] = componentCount;
+                    } while (v != u);
+                    componentCount++;
+                }
+                depth--;
+                if (depth >= 0) {
+                    int parent = callNode[depth];
+                    if (lowLink[u] < lowLink[parent]) lowLink[parent] = lowLink[u];
+                }
+            }
+        }
+
+        return componentCount;
+    }
+
+    /**
+     * Interned sets of class indexes. The set with id 0 is the empty set.
+     */
+    private static final class ClassSets {
+        private static final int[] EMPTY = new int[0];
+
+        private int[][] members = new int[16][];
+
+        private int size;
+
+        private final Map<Key, Integer> ids = new HashMap<>();
+
+        private final int[] singletons;
+
+        /**
+         * Cache for already computed unions, keyed by both set ids.
+         */
+        private long[] unionKeys = new long[64];
+
+        private int[] unionValues = new int[64];
+
+        private int unionCount;
+
+        ClassSets(int classCount) {
+            singletons = new int[classCount];
+            Arrays.fill(singletons, -1);
+            intern(EMPTY);
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] members(int set) {
+            return members[set];
+        }
+
+        int singleton(int classIndex) {
+            int s = singletons[classIndex];
+            if (s < 0) s = singletons[classIndex] = intern(new int[] { classIndex });
+            return s;
+        }
+
+        int union(int a, int b) {
+            if (a == b || b == 0) return a;
+            if (a == 0) return b;
+            if (a > b) {
+                int t = a;
+                a = b;
+                b = t;
+            }
+
+            long key = ((long) a << 32) | b;
+            int mask = unionKeys.length - 1;
+            int i = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+            long k;
+            while ((k = unionKeys[i]) != 0) {
+                if (k == key) return unionValues[i];
+                i = (i + 1) & mask;
+            }
+
+            int result = intern(merge(members[a], members[b]));
+            unionKeys[i] = key;
+            unionValues[i] = result;
+            if (++unionCount * 2 > unionKeys.length) growUnionCache();
+            return result;
+        }
+
+        private void growUnionCache() {
+            long[] oldKeys = unionKeys;
+            int[] oldValues = unionValues;
+            unionKeys = new long[oldKeys.length << 1];
+            unionValues = new int[unionKeys.length];
+            int mask = unionKeys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                long key = oldKeys[j];
+                if (key == 0) continue;
+                int i = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+                while (unionKeys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                unionKeys[i] = key;
+                unionValues[i] = oldValues[j];
+            }
+        }
+
+        private static int[] merge(int[] x, int[] y) {
+            int[] result = new int[x.length + y.length];
+            int i = 0, j = 0, r = 0;
+            while (i < x.length && j < y.length) {
+                int a = x[i], b = y[j];
+                if (a <= b) {
+                    result[r++] = a;
+                    i++;
+                    if (a == b) j++;
+                } else {
+                    result[r++] = b;
+                    j++;
+                }
+            }
+            while (i < x.length) {
+                result[r++] = x[i++];
+            }
+            while (j < y.length) {
+                result[r++] = y[j++];
+            }
+            return r == result.length ? result : Arrays.copyOf(result, r);
+        }
+
+        private int intern(int[] set) {
+            Key key = new Key(set);
+            Integer id = ids.get(key);
+            if (id != null) return id;
+
+            if (size == members.length) members = Arrays.copyOf(members, size << 1);
+            members[size] = set;
+            ids.put(key, size);
+            return size++;
+        }
+    }
+
+    private static final class Key {
+        final int[] set;
+
+        final int hash;
+
+        Key(int[] set) {
+            this.set = set;
+            this.hash = Arrays.hashCode(set);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && Arrays.equals(set, ((Key) obj).set);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package io.beans.sizeof;
+
+import java.lang.annotation.Annotation;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The object layout of the running HotSpot VM: reference size, header size, alignment, and the way fields get packed.
+ *
+ * The options are detected once. The reference size and the header size are taken from Unsafe if it's accessible,
+ * and otherwise derived from the VM options UseCompressedOops and UseCompressedClassPointers. The alignment comes from
+ * ObjectAlignmentInBytes.
+ *
+ * Fields annotated with @Contended get padded if the VM honours the annotation: with EnableContended, and only for
+ * classes of the boot loader unless RestrictContended is switched off.
+ *
+ * Up to Java 14, the fields of each class start at the next reference boundary after the ones of its superclass, and
+ * only the gap before the first long or double field gets filled with smaller ones. Since Java 15, fields are placed
+ * into any gap that is large enough, also into the ones that the superclasses left.
+ *
+ * Fields that the VM injects into some classes, like java.lang.Thread in Java 21, are not visible to this model.
+ *
+ * @author kuli
+ */
+final class ObjectLayout {
+
+    private static final ObjectLayout current = new ObjectLayout();
+
+    private static final class Probe {
+        @SuppressWarnings("unused")
+        int i;
+    }
+
+    final boolean is64Bit;
+
+    final long referenceSize;
+
+    final long headerSize;
+
+    final long alignment;
+
+    private final boolean contendedEnabled, contendedRestricted;
+
+    final long contendedPadding;
+
+    /**
+     * Whether the field layout of Java 15 and later is used.
+     */
+    final boolean fillsAllGaps;
+
+    private ObjectLayout() {
+        is64Bit = !"32".equals(System.getProperty("sun.arch.data.model"));
+        boolean compressedOops = is64Bit && booleanOption("UseCompressedOops", true);
+        boolean compressedClassPointers = is64Bit && booleanOption("UseCompressedClassPointers", compressedOops);
+
+        @SuppressWarnings("restriction")
+        sun.misc.Unsafe unsafe = UnsafeBackend.unsafe;
+        if (unsafe == null) {
+            referenceSize = is64Bit && !compressedOops ? 8 : 4;
+            headerSize = !is64Bit ? 8 : compressedClassPointers ? 12 : 16;
+        } else {
+            referenceSize = unsafe.arrayIndexScale(Object[].class);
+            try {
+                // A single int is placed directly after the header
+                headerSize = unsafe.objectFieldOffset(Probe.class.getDeclaredField("i"));
+            } catch (NoSuchFieldException ex) {
+                throw new AssertionError(ex);
+            }
+        }
+        alignment = longOption("ObjectAlignmentInBytes", 8);
+        contendedEnabled = booleanOption("EnableContended", true);
+        contendedRestricted = booleanOption("RestrictContended", true);
+        contendedPadding = longOption("ContendedPaddingWidth", 128);
+        fillsAllGaps = javaVersion() >= 15;
+    }
+
+    static ObjectLayout current() {
+        return current;
+    }
+
+    private static String option(String name) {
+        try {
+            com.sun.management.HotSpotDiagnosticMXBean bean = ManagementFactory.getPlatformMXBean(
+                    com.sun.management.HotSpotDiagnosticMXBean.class);
+            return bean.getVMOption(name).getValue();
+        } catch (RuntimeException | LinkageError ex) {
+            // No HotSpot, or an older one
+            return null;
+        }
+    }
+
+    private static boolean booleanOption(String name, boolean defaultValue) {
+        String value = option(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    private static long longOption(String name, long defaultValue) {
+        String value = option(name);
+        try {
+            return value == null ? defaultValue : Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+
+    private static int javaVersion() {
+        String version = System.getProperty("java.specification.version", "1.7");
+        if (version.startsWith("1.")) version = version.substring(2);
+        try {
+            return Integer.parseInt(version);
+        } catch (NumberFormatException ex) {
+            return 7;
+        }
+    }
+
+    /**
+     * The size of a field of the given type.
+     */
+    long sizeOf(Class<?> fieldType) {
+        if (!fieldType.isPrimitive()) return referenceSize;
+        if (fieldType == long.class || fieldType == double.class) return 8;
+        if (fieldType == int.class || fieldType == float.class) return 4;
+        if (fieldType == short.class || fieldType == char.class) return 2;
+        return 1;
+    }
+
+    /**
+     * Rounds the given size up to the object alignment.
+     */
+    long align(long size) {
+        return (size + alignment - 1) / alignment * alignment;
+    }
+
+    private static long alignTo(long offset, long boundary) {
+        return (offset + boundary - 1) / boundary * boundary;
+    }
+
+    /**
+     * The offset of the first element of arrays of the given type.
+     */
+    long arrayBaseOffset(Class<?> arrayType) {
+        long lengthEnd = headerSize + 4;
+        long elementSize = sizeOf(arrayType.getComponentType());
+        // 64 bit VMs start the elements at a word boundary
+        return alignTo(lengthEnd, is64Bit ? 8 : Math.max(4, elementSize));
+    }
+
+    /**
+     * The contention group of the given class or field if it's annotated with @Contended, or null.
+     */
+    private static String contendedGroup(AnnotatedElement element) {
+        for (Annotation a : element.getAnnotations()) {
+            if (a.annotationType().getSimpleName().equals("Contended")) {
+                try {
+                    return String.valueOf(a.annotationType().getMethod("value").invoke(a));
+                } catch (ReflectiveOperationException | RuntimeException ex) {
+                    // The annotation of Java 9 and later is not exported, but its text shows the value
+                    String text = a.toString();
+                    int start = text.indexOf('(') + 1;
+                    int end = text.lastIndexOf(')');
+                    if (start == 0 || end < start) return "";
+                    text = text.substring(start, end);
+                    if (text.startsWith("value=")) text = text.substring(6);
+                    return text.replace("\"", "");
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether the VM pads the fields of the given class that are annotated with @Contended.
+     */
+    private boolean honoursContended(Class<?> type) {
+        return contendedEnabled && (type.getClassLoader() == null || !contendedRestricted);
+    }
+
+    /**
+     * Whether the given class has padding after its fields, because it or one of its fields is contended.
+     */
+    boolean isPadded(Class<?> type) {
+        if (!honoursContended(type)) return false;
+        if (contendedGroup(type) != null) return true;
+        for (Field f : type.getDeclaredFields()) {
+            if (!Modifier.isStatic(f.getModifiers()) && contendedGroup(f) != null) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The end of the fields of the given type, including the padding of contended fields, but without the alignment.
+     */
+    long fieldsEnd(Class<?> type) {
+        List<Class<?>> hierarchy = new ArrayList<>();
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            hierarchy.add(0, c);
+        }
+
+        Gaps gaps = new Gaps();
+        long end = headerSize;
+        for (Class<?> c : hierarchy) {
+            boolean contended = honoursContended(c);
+            List<Long> plain = new ArrayList<>();
+            Map<String, List<Long>> groups = new LinkedHashMap<>();
+            for (Field f : c.getDeclaredFields()) {
+                if (Modifier.isStatic(f.getModifiers())) continue;
+
+                String group = contended ? contendedGroup(f) : null;
+                if (group == null) {
+                    plain.add(sizeOf(f.getType()));
+                } else {
+                    // Each field of the default group gets an own one
+                    if (group.isEmpty()) group = f.getName() + "#";
+                    List<Long> sizes = groups.get(group);
+                    if (sizes == null) groups.put(group, sizes = new ArrayList<Long>());
+                    sizes.add(sizeOf(f.getType()));
+                }
+            }
+            boolean padded = contended && contendedGroup(c) != null;
+            if (plain.isEmpty() && groups.isEmpty() && !padded) continue;
+
+            if (!fillsAllGaps) {
+                gaps.clear();
+                end = alignTo(end, referenceSize);
+            }
+            if (padded) {
+                gaps.clear();
+                end += contendedPadding;
+            }
+            // Since Java 15, the fields after a padding don't fill the gaps that they leave
+            end = pack(end, plain, padded && fillsAllGaps ? null : gaps, true);
+            for (List<Long> sizes : groups.values()) {
+                gaps.clear();
+                // Older VMs place contended groups in declaration order
+                end = pack(end + contendedPadding, sizes, null, fillsAllGaps);
+            }
+            if (padded || !groups.isEmpty()) {
+                gaps.clear();
+                end += contendedPadding;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * The shallow size of instances of the given type, which is no array.
+     */
+    long instanceSize(Class<?> type) {
+        return align(fieldsEnd(type));
+    }
+
+    /**
+     * Places fields of the given sizes into the gaps or after the given end, and returns the new end.
+     *
+     * @param gaps The gaps to fill, or null if none get filled
+     * @param largestFirst Whether the fields get sorted, or placed in declaration order
+     */
+    private long pack(long start, List<Long> sizes, Gaps gaps, boolean largestFirst) {
+        Long[] s = sizes.toArray(new Long[sizes.size()]);
+        if (largestFirst) {
+            Arrays.sort(s);
+            Collections.reverse(Arrays.asList(s));
+        }
+        long end = start;
+        for (long size : s) {
+            if (gaps != null && gaps.take(size)) continue;
+
+            long aligned = alignTo(end, size);
+            // Older VMs only fill the gap before the first large field
+            if (gaps != null && aligned > end && (fillsAllGaps || gaps.isEmpty())) gaps.add(end, aligned);
+            end = aligned + size;
+        }
+        return end;
+    }
+
+    /**
+     * Unused space between fields.
+     */
+    private static final class Gaps {
+        private final List<long[]> gaps = new ArrayList<>();
+
+        void clear() {
+            gaps.clear();
+        }
+
+        boolean isEmpty() {
+            return gaps.isEmpty();
+        }
+
+        void add(long start, long end) {
+            gaps.add(new long[]{start, end});
+        }
+
+        /**
+         * Places a field of the given size into the first gap that's large enough.
+         */
+        boolean take(long size) {
+            for (int i = 0; i < gaps.size(); i++) {
+                long[] g = gaps.get(i);
+                long aligned = alignTo(g[0], size);
+                if (aligned + size > g[1]) continue;
+
+                if (aligned > g[0]) {
+                    // The part before stays a gap
+                    gaps.add(i + 1, new long[]{aligned + size, g[1]});
+                    g[1] = aligned;
+                } else {
+                    g[0] = aligned + size;
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Identifies the running VM together with all options of this layout. Field offsets that were calculated by a VM
+     * with another fingerprint must not be used.
+     */
+    String fingerprint() {
+        return System.getProperty("java.vm.name") + " " + System.getProperty("java.vm.version") + " "
+                + System.getProperty("os.arch") + " " + (is64Bit ? 64 : 32) + "/" + referenceSize + "/" + headerSize
+                + "/" + alignment + "/" + contendedEnabled + "/" + contendedRestricted + "/" + contendedPadding + "/"
+                + fillsAllGaps;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " {references: " + referenceSize + ", header: " + headerSize
+                + ", alignment: " + alignment + (fillsAllGaps ? ", filling all gaps}" : "}");
+    }
+}
@@ -0,0 +1,486 @@
+package io.beans.sizeof;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.beans.collections.ConcurrentIdentityCounter;
+import io.beans.collections.IdentityCounter;
+
+
+/**
+ * A collector that walks the object graph on all threads of a ForkJoinPool.
+ *
+ * Each task keeps its own work stack. As soon as a task has more pending instances than it can handle alone, and
+ * other workers are idle, it hands over half of them to a new task. Wide nodes like large arrays or the tables of big
+ * maps get distributed this way.
+ *
+ * All tasks share one concurrent visited set per class, so instances that are referenced by several parents still
+ * count only once. The results are the same as of a sequential collector that was created without individual class
+ * sizes; the total size of each class is always 0.
+ *
+ * A listener gets called from the threads of the pool, but only by one thread at a time. Its measured() is called on
+ * the thread that called measure(), after all tasks are done.
+ *
+ * @author kuli
+ */
+public class ParallelCollector extends Collector {
+
+    /**
+     * A task won't split before it has that many pending instances.
+     */
+    private static final int SPLIT_THRESHOLD = 64;
+
+    private final Environment env;
+
+    private final ForkJoinPool pool;
+
+    private final ConcurrentMap<Class<?>, ParallelClassCollector<?>> classColl = new ConcurrentHashMap<>();
+
+    private final AtomicLong totalSize = new AtomicLong();
+
+    private final AtomicInteger instanceCount = new AtomicInteger();
+
+    /**
+     * The index of the next new class collector. Indexes are not reused, even if the collector gets removed on reset.
+     */
+    private final AtomicInteger classIndex = new AtomicInteger();
+
+    /**
+     * The listener, wrapped so that the tasks call it one at a time, or null.
+     */
+    private TraversalListener listener;
+
+    /**
+     * Passes all events to a listener, but one at a time.
+     */
+    private static final class SerializedListener implements TraversalListener {
+        private final TraversalListener listener;
+
+        SerializedListener(TraversalListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public synchronized void classFound(Class<?> type, boolean global) {
+            listener.classFound(type, global);
+        }
+
+        @Override
+        public synchronized void counted(Object instance, long size) {
+            listener.counted(instance, size);
+        }
+
+        @Override
+        public synchronized void referenced(Object source, String refName, Object target) {
+            listener.referenced(source, refName, target);
+        }
+
+        @Override
+        public synchronized void measured(Object root) {
+            listener.measured(root);
+        }
+    }
+
+    private static final class ParallelClassCollector<T> {
+        final ClassSchema<T> schema;
+
+        final boolean global;
+
+        /**
+         * Counted instances with their reference counts. Global instances are contained with a count of zero, once
+         * they were visited.
+         */
+        final ConcurrentIdentityCounter instancesToRefCounts = new ConcurrentIdentityCounter();
+
+        final AtomicInteger instanceCount = new AtomicInteger();
+
+        /**
+         * The references of all finished tasks. Guarded by this collector.
+         */
+        final ReferenceCounts referencedBy = new ReferenceCounts();
+
+        /**
+         * Where the tasks count their references to this class.
+         */
+        final int index;
+
+        /**
+         * Whether the class was found since the last reset. Not volatile, since the tasks are joined before any
+         * statistics are taken.
+         */
+        boolean used;
+
+        private final Environment env;
+
+        ParallelClassCollector(Environment env, Class<T> type, int index) {
+            schema = env.getSchema(type);
+            global = env.isGlobalClass(type);
+            this.env = env;
+            this.index = index;
+        }
+
+        synchronized void addReferences(ReferenceCounts refs) {
+            referencedBy.addAll(refs);
+        }
+
+        /**
+         * Counts the instance, and returns whether it must get measured.
+         */
+        boolean execute(Object instance, boolean calcGlobalObjects) {
+            int count = instancesToRefCounts.increment(instance);
+            if (count == IdentityCounter.ABSENT) {
+                // Global instances are looked up on their first visit only
+                if (env.isGlobalInstance(instance)) {
+                    instancesToRefCounts.put(instance, 0);
+                    return calcGlobalObjects;
+                }
+                instanceCount.incrementAndGet();
+                return true;
+            }
+            return count == 0 && calcGlobalObjects;
+        }
+
+        /**
+         * Forgets the counted instances and references, but keeps the tables.
+         */
+        void clear() {
+            instancesToRefCounts.clear();
+            instanceCount.set(0);
+            synchronized (this) {
+                referencedBy.clear();
+            }
+            used = false;
+        }
+
+        RetainedClassStats<T> stats(Environment env) {
+            ReferenceCounts refs;
+            synchronized (this) {
+                refs = referencedBy.copy();
+            }
+            return env.classStatsFor(schema, refs, instanceCount.get(), instancesToRefCounts.segments());
+        }
+    }
+
+    /**
+     * Visits the fields of a set of instances, and of all new instances found there.
+     */
+    private final class MeasureTask extends RecursiveAction implements ReferenceCallback {
+        private static final long serialVersionUID = 1L;
+
+        private Object[] pending;
+
+        private ClassSchema<?>[] pendingSchemas;
+
+        /**
+         * For large arrays, the first element that's not visited yet. Their rests stay at the bottom of the stack, so
+         * that they get handed over to other tasks first.
+         */
+        private int[] pendingOffsets;
+
+        private int pendingCount;
+
+        private long size;
+
+        private int instances;
+
+        /**
+         * The references this task counted, by the index of the referenced class. They get added to the class
+         * collectors when the task is done, so that the tasks don't contend for them.
+         */
+        private ReferenceCounts[] references = new ReferenceCounts[16];
+
+        private ParallelClassCollector<?>[] referenced = new ParallelClassCollector<?>[16];
+
+        /**
+         * The instance whose fields are visited currently.
+         */
+        private Object current;
+
+        MeasureTask(Object[] pending, ClassSchema<?>[] pendingSchemas, int[] pendingOffsets, int pendingCount) {
+            this.pending = pending;
+            this.pendingSchemas = pendingSchemas;
+            this.pendingOffsets = pendingOffsets;
+            this.pendingCount = pendingCount;
+        }
+
+        @Override
+        protected void compute() {
+            List<MeasureTask> forked = null;
+            while (pendingCount > 0) {
+                if (pendingCount >= SPLIT_THRESHOLD && getSurplusQueuedTaskCount() <= 0) {
+                    if (forked == null) forked = new ArrayList<>();
+                    forked.add(split());
+                }
+
+                int i = --pendingCount;
+                Object instance = pending[i];
+                ClassSchema<?> schema = pendingSchemas[i];
+                pending[i] = null;
+                pendingSchemas[i] = null;
+
+                iterate(instance, schema, pendingOffsets[i]);
+            }
+
+            totalSize.addAndGet(size);
+            instanceCount.addAndGet(instances);
+            for (int i = 0; i < referenced.length; i++) {
+                if (referenced[i] != null) referenced[i].addReferences(references[i]);
+            }
+
+            if (forked != null) {
+                for (MeasureTask t : forked) {
+                    t.join();
+                }
+            }
+        }
+
+        /**
+         * Visits the next chunk of large arrays only, and schedules their rest again.
+         */
+        private void iterate(Object instance, ClassSchema<?> schema, int offset) {
+            current = instance;
+            int length = schema.elementCount(instance);
+            if (length - offset > ClassSchema.ARRAY_CHUNK) {
+                int end = offset + ClassSchema.ARRAY_CHUNK;
+                push(instance, schema, end);
+                schema.iterateIds(instance, offset, end, this);
+            } else if (length > 0) {
+                schema.iterateIds(instance, offset, length, this);
+            } else {
+                schema.iterateIds(instance, this);
+            }
+        }
+
+        /**
+         * Hands over the oldest half of the pending instances to a new task.
+         */
+        private MeasureTask split() {
+            int n = pendingCount >>> 1;
+            Object[] p = new Object[Math.max(n << 1, SPLIT_THRESHOLD)];
+            ClassSchema<?>[] s = new ClassSchema<?>[p.length];
+            int[] o = new int[p.length];
+            System.arraycopy(pending, 0, p, 0, n);
+            System.arraycopy(pendingSchemas, 0, s, 0, n);
+            System.arraycopy(pendingOffsets, 0, o, 0, n);
+
+            int remaining = pendingCount - n;
+            System.arraycopy(pending, n, pending, 0, remaining);
+            System.arraycopy(pendingSchemas, n, pendingSchemas, 0, remaining);
+            System.arraycopy(pendingOffsets, n, pendingOffsets, 0, remaining);
+            Arrays.fill(pending, remaining, pendingCount, null);
+            Arrays.fill(pendingSchemas, remaining, pendingCount, null);
+            pendingCount = remaining;
+
+            MeasureTask t = new MeasureTask(p, s, o, n);
+            t.fork();
+            return t;
+        }
+
+        <T> void measure(T instance, ClassSchema<T> schema) {
+            long s = schema.shallowSize(instance);
+            size += s;
+            instances++;
+            if (listener != null) listener.counted(instance, s);
+            push(instance, schema, 0);
+        }
+
+        private void push(Object instance, ClassSchema<?> schema, int offset) {
+            if (pendingCount == pending.length) {
+                int newLength = pendingCount << 1;
+                pending = Arrays.copyOf(pending, newLength);
+                pendingSchemas = Arrays.copyOf(pendingSchemas, newLength);
+                pendingOffsets = Arrays.copyOf(pendingOffsets, newLength);
+            }
+            pending[pendingCount] = instance;
+            pendingOffsets[pendingCount] = offset;
+            pendingSchemas[pendingCount++] = schema;
+        }
+
+        @Override
+        public void visit(int refId, Object value) {
+            if (value == null) return;
+
+            if (listener != null) listener.referenced(current, ReferenceNames.nameOf(refId), value);
+            refTo(refId, value);
+        }
+
+        private <T> void refTo(int refId, T value) {
+            @SuppressWarnings("unchecked")
+            ParallelClassCollector<T> cc = getClassCollector((Class<T>) value.getClass());
+            if (cc.global) return;
+
+            ref(cc, refId);
+            if (cc.execute(value, false)) measure(value, cc.schema);
+        }
+
+        private void ref(ParallelClassCollector<?> cc, int refId) {
+            int i = cc.index;
+            if (i >= referenced.length) {
+                int newLength = Math.max(referenced.length << 1, i + 1);
+                references = Arrays.copyOf(references, newLength);
+                referenced = Arrays.copyOf(referenced, newLength);
+            }
+            if (referenced[i] == null) {
+                referenced[i] = cc;
+                references[i] = new ReferenceCounts();
+            }
+            references[i].increment(refId);
+        }
+    }
+
+    ParallelCollector(Environment env, ForkJoinPool pool) {
+        this.env = env;
+        this.pool = pool;
+    }
+
+    private <T> ParallelClassCollector<T> getClassCollector(Class<T> type) {
+        @SuppressWarnings("unchecked")
+        ParallelClassCollector<T> cc = (ParallelClassCollector<T>) classColl.get(type);
+        if (cc == null) {
+            // The environment is thread safe; if another thread was faster, its collector wins
+            cc = new ParallelClassCollector<>(env, type, classIndex.getAndIncrement());
+            @SuppressWarnings("unchecked")
+            ParallelClassCollector<T> existing = (ParallelClassCollector<T>) classColl.putIfAbsent(type, cc);
+            if (existing != null) cc = existing;
+        }
+        // Only written when necessary, since all tasks read the same collector
+        if (!cc.used) use(type, cc);
+        return cc;
+    }
+
+    /**
+     * Marks the collector as used by the current measurement. The listener learns about its class before any task
+     * can count an instance of it.
+     */
+    private void use(Class<?> type, ParallelClassCollector<?> cc) {
+        TraversalListener l = listener;
+        if (l == null) {
+            cc.used = true;
+            return;
+        }
+        synchronized (l) {
+            if (cc.used) return;
+            l.classFound(type, cc.global);
+            cc.used = true;
+        }
+    }
+
+    @Override
+    public long memoryUsed() {
+        return totalSize.get();
+    }
+
+    @Override
+    public int instanceCount() {
+        return instanceCount.get();
+    }
+
+    /**
+     * Always false, since the parallel collector has no budget.
+     */
+    @Override
+    public boolean isPartial() {
+        return false;
+    }
+
+    @Override
+    public long unexploredReferences() {
+        return 0;
+    }
+
+    /**
+     * Always exact, since the parallel collector doesn't sample.
+     */
+    @Override
+    public Estimate memoryEstimate() {
+        return new Estimate(memoryUsed(), 0);
+    }
+
+    /**
+     * Always 0, since the parallel collector doesn't record the object graph.
+     */
+    @Override
+    public long retainedSize(Object instance) {
+        return 0;
+    }
+
+    /**
+     * Streams the traversal to the given listener. It gets called from the threads of the pool, but never
+     * concurrently.
+     */
+    @Override
+    public synchronized Collector setListener(TraversalListener listener) {
+        this.listener = listener == null ? null : new SerializedListener(listener);
+        return this;
+    }
+
+    @Override
+    public synchronized <T> RetainedClassStats<T> statsFor(Class<T> type) {
+        @SuppressWarnings("unchecked")
+        ParallelClassCollector<T> cc = (ParallelClassCollector<T>) classColl.get(type);
+        return cc == null || !cc.used ? null : cc.stats(env);
+    }
+
+    @Override
+    public synchronized RetainedClassStats<?>[] stats() {
+        List<RetainedClassStats<?>> stats = new ArrayList<>(classColl.size());
+        for (ParallelClassCollector<?> cc : classColl.values()) {
+            if (cc.used) stats.add(cc.stats(env));
+        }
+        RetainedClassStats<?>[] array = stats.toArray(new RetainedClassStats<?>[stats.size()]);
+        Arrays.sort(array);
+        return array;
+    }
+
+    /**
+     * Forgets all measured instances and statistics, but keeps the concurrent visited set of each class for the next
+     * measurement, unless the environment has changed the schema or the global verdict of its class meanwhile.
+     */
+    @Override
+    public synchronized Collector reset() {
+        for (Iterator<Map.Entry<Class<?>, ParallelClassCollector<?>>> it = classColl.entrySet().iterator();
+                it.hasNext();) {
+            Map.Entry<Class<?>, ParallelClassCollector<?>> e = it.next();
+            ParallelClassCollector<?> cc = e.getValue();
+            Class<?> type = e.getKey();
+            if (cc.schema == env.getSchema(type) && cc.global == env.isGlobalClass(type)) {
+                cc.clear();
+            } else {
+                it.remove();
+            }
+        }
+        totalSize.set(0);
+        instanceCount.set(0);
+        return this;
+    }
+
+    /**
+     * Add a bean to the instance pool and measure its size, using all threads of the pool.
+     *
+     * This method blocks until the measurement is complete. Apart from that, it behaves the same as in the sequential
+     * collector.
+     */
+    @Override
+    public synchronized <T> void measure(T instance) {
+        if (instance == null) return;
+
+        @SuppressWarnings("unchecked")
+        ParallelClassCollector<T> cc = getClassCollector((Class<T>) instance.getClass());
+        if (cc.execute(instance, true)) {
+            MeasureTask root = new MeasureTask(new Object[SPLIT_THRESHOLD], new ClassSchema<?>[SPLIT_THRESHOLD],
+                    new int[SPLIT_THRESHOLD], 0);
+            root.measure(instance, cc.schema);
+            pool.invoke(root);
+        }
+        if (listener != null) listener.measured(instance);
+    }
+}
@@ -0,0 +1,113 @@
+package io.beans.sizeof;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The progress of a warm-up that was started with Environment.preload().
+ *
+ * All methods can be called from any thread while the warm-up is running.
+ *
+ * @author kuli
+ */
+public final class Preload {
+
+    private final long nanoStart = System.nanoTime();
+
+    private volatile long nanoEnd;
+
+    private volatile int totalCount = -1;
+
+    private final AtomicInteger remaining = new AtomicInteger();
+
+    private final AtomicInteger completedCount = new AtomicInteger();
+
+    private final AtomicInteger failedCount = new AtomicInteger();
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    Preload() {
+        // Only created by the environment
+    }
+
+    /**
+     * Called once, before the first class is processed.
+     */
+    void classesFound(int count) {
+        remaining.set(count);
+        totalCount = count;
+        if (count == 0) finish();
+    }
+
+    /**
+     * Called once for each class.
+     */
+    void classDone(boolean success) {
+        (success ? completedCount : failedCount).incrementAndGet();
+        if (remaining.decrementAndGet() == 0) finish();
+    }
+
+    private void finish() {
+        nanoEnd = System.nanoTime();
+        done.countDown();
+    }
+
+    /**
+     * The number of classes to warm up, or -1 as long as they are still looked up.
+     */
+    public int totalCount() {
+        return totalCount;
+    }
+
+    /**
+     * The number of classes whose schemas and verdicts are ready.
+     */
+    public int completedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * The number of classes that could not be loaded or linked.
+     */
+    public int failedCount() {
+        return failedCount.get();
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * The time from the start until the warm-up was done, or until now if it's still running.
+     */
+    public long elapsedTime(TimeUnit unit) {
+        long end = isDone() ? nanoEnd : System.nanoTime();
+        return unit.convert(end - nanoStart, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Waits until all classes are warmed up.
+     */
+    public void await() throws InterruptedException {
+        done.await();
+    }
+
+    /**
+     * Waits until all classes are warmed up, but not longer than the given time.
+     *
+     * @return <code>true</code> if the warm-up is done
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    @Override
+    public String toString() {
+        int total = totalCount;
+        return getClass().getSimpleName() + " {" + completedCount() + " of "
+                + (total < 0 ? "?" : String.valueOf(total)) + " classes, " + failedCount() + " failed, "
+                + elapsedTime(TimeUnit.MILLISECONDS) + " ms" + (isDone() ? "}" : ", running}");
+    }
+}
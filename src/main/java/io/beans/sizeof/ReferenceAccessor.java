@@ -0,0 +1,265 @@
+package io.beans.sizeof;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Visits the references of the instances of one class with straight-line code.
+ *
+ * Each subclass is generated at runtime for one schema: It reads every reference field at its constant offset, and
+ * passes it to the callback with its constant id. This way, the JIT can compile each field access into a plain load,
+ * instead of looping over the field table of the schema.
+ *
+ * Generation needs either Lookup.defineClass() (Java 9 and later) or Unsafe.defineAnonymousClass() (Java 8); if
+ * neither is available, the schemas keep their loop.
+ *
+ * Accessors have no state, and are shared by all schemas with the same ids and offsets, also across environments.
+ * Since the classes that are defined with Lookup.defineClass() are never unloaded, each layout gets generated only
+ * once per VM, however often its schema is created again.
+ *
+ * @author kuli
+ */
+abstract class ReferenceAccessor {
+
+    /**
+     * Larger classes keep the loop, so that the generated method stays well below the size limits.
+     */
+    static final int MAX_REFERENCES = 1000;
+
+    private static final String BASE = "io/beans/sizeof/ReferenceAccessor";
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * The generated accessors by their ids and offsets.
+     */
+    private static final ConcurrentMap<String, ReferenceAccessor> accessors = new ConcurrentHashMap<>();
+
+    /**
+     * Set when classes cannot be defined at runtime, so that generation isn't tried again.
+     */
+    private static volatile boolean unavailable;
+
+    /**
+     * Visits all references of the given container, in the same order and with the same ids as its schema does.
+     */
+    abstract void iterateIds(Object container, ReferenceCallback callback);
+
+    /**
+     * Gets the accessor which visits the given field offsets under the given reference ids, and generates it if
+     * there's none yet.
+     *
+     * @return The accessor, or null if it can't be generated
+     */
+    static ReferenceAccessor generate(int[] ids, long[] offsets) {
+        if (unavailable || ids.length == 0 || ids.length > MAX_REFERENCES) return null;
+
+        StringBuilder sb = new StringBuilder(ids.length * 12);
+        for (int i = 0; i < ids.length; i++) {
+            sb.append(ids[i]).append('@').append(offsets[i]).append(',');
+        }
+        String key = sb.toString();
+        ReferenceAccessor accessor = accessors.get(key);
+        if (accessor != null) return accessor;
+
+        byte[] bytes = new ClassWriter(BASE + "$" + counter.incrementAndGet()).write(ids, offsets);
+        try {
+            Constructor<?> c = define(bytes).getDeclaredConstructor();
+            c.setAccessible(true);
+            accessor = (ReferenceAccessor) c.newInstance();
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError ex) {
+            unavailable = true;
+            return null;
+        }
+        // Another thread may have been faster
+        ReferenceAccessor existing = accessors.putIfAbsent(key, accessor);
+        return existing == null ? accessor : existing;
+    }
+
+    private static Class<?> define(byte[] bytes) throws ReflectiveOperationException {
+        try {
+            Method defineClass = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+            return (Class<?>) defineClass.invoke(MethodHandles.lookup(), (Object) bytes);
+        } catch (NoSuchMethodException ex) {
+            // Java 8
+            Object unsafe = UnsafeBackend.unsafe;
+            Method defineAnonymousClass = unsafe.getClass().getMethod("defineAnonymousClass", Class.class,
+                    byte[].class, Object[].class);
+            return (Class<?>) defineAnonymousClass.invoke(unsafe, ReferenceAccessor.class, bytes, null);
+        }
+    }
+
+    /**
+     * Writes the class file of one accessor. The code has no branches, so no stack map frames are needed.
+     */
+    private static final class ClassWriter {
+        private static final int CONSTANT_UTF8 = 1, CONSTANT_INTEGER = 3, CONSTANT_LONG = 5, CONSTANT_CLASS = 7,
+                CONSTANT_FIELDREF = 9, CONSTANT_METHODREF = 10, CONSTANT_INTERFACE_METHODREF = 11,
+                CONSTANT_NAME_AND_TYPE = 12;
+
+        private static final int ALOAD_0 = 0x2A, ALOAD_1 = 0x2B, ALOAD_2 = 0x2C, LDC_W = 0x13, LDC2_W = 0x14,
+                RETURN = 0xB1, GETSTATIC = 0xB2, INVOKEVIRTUAL = 0xB6, INVOKESPECIAL = 0xB7, INVOKEINTERFACE = 0xB9;
+
+        private final String name;
+
+        private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+
+        private final DataOutputStream pool = new DataOutputStream(poolBytes);
+
+        private final Map<String, Integer> constants = new HashMap<>();
+
+        private int poolSize = 1;
+
+        ClassWriter(String name) {
+            this.name = name;
+        }
+
+        byte[] write(int[] ids, long[] offsets) {
+            try {
+                int thisClass = classRef(name);
+                int superClass = classRef(BASE);
+                int superInit = memberRef(CONSTANT_METHODREF, BASE, "<init>", "()V");
+                int unsafe = memberRef(CONSTANT_FIELDREF, "io/beans/sizeof/UnsafeBackend", "unsafe",
+                        "Lsun/misc/Unsafe;");
+                int getObject = memberRef(CONSTANT_METHODREF, "sun/misc/Unsafe", "getObject",
+                        "(Ljava/lang/Object;J)Ljava/lang/Object;");
+                int visit = memberRef(CONSTANT_INTERFACE_METHODREF, "io/beans/sizeof/ReferenceCallback", "visit",
+                        "(ILjava/lang/Object;)V");
+
+                ByteArrayOutputStream initCode = new ByteArrayOutputStream();
+                DataOutputStream init = new DataOutputStream(initCode);
+                init.writeByte(ALOAD_0);
+                init.writeByte(INVOKESPECIAL);
+                init.writeShort(superInit);
+                init.writeByte(RETURN);
+
+                ByteArrayOutputStream iterateCode = new ByteArrayOutputStream();
+                DataOutputStream iterate = new DataOutputStream(iterateCode);
+                for (int i = 0; i < ids.length; i++) {
+                    // callback.visit(id, unsafe.getObject(container, offset))
+                    iterate.writeByte(ALOAD_2);
+                    iterate.writeByte(LDC_W);
+                    iterate.writeShort(intConstant(ids[i]));
+                    iterate.writeByte(GETSTATIC);
+                    iterate.writeShort(unsafe);
+                    iterate.writeByte(ALOAD_1);
+                    iterate.writeByte(LDC2_W);
+                    iterate.writeShort(longConstant(offsets[i]));
+                    iterate.writeByte(INVOKEVIRTUAL);
+                    iterate.writeShort(getObject);
+                    iterate.writeByte(INVOKEINTERFACE);
+                    iterate.writeShort(visit);
+                    iterate.writeByte(3);
+                    iterate.writeByte(0);
+                }
+                iterate.writeByte(RETURN);
+
+                int initName = utf8("<init>"), initType = utf8("()V");
+                int iterateName = utf8("iterateIds");
+                int iterateType = utf8("(Ljava/lang/Object;Lio/beans/sizeof/ReferenceCallback;)V");
+                int code = utf8("Code");
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(51); // Java 7
+                out.writeShort(poolSize);
+                poolBytes.writeTo(out);
+                out.writeShort(0x0030); // final, super
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(0); // interfaces
+                out.writeShort(0); // fields
+                out.writeShort(2); // methods
+                writeMethod(out, initName, initType, code, 1, 1, initCode.toByteArray());
+                // The receiver, the callback, the id, Unsafe, the container and the offset
+                writeMethod(out, iterateName, iterateType, code, 6, 3, iterateCode.toByteArray());
+                out.writeShort(0); // attributes
+                return bytes.toByteArray();
+            } catch (IOException ex) {
+                throw new AssertionError(ex);
+            }
+        }
+
+        private static void writeMethod(DataOutputStream out, int name, int type, int code, int maxStack,
+                int maxLocals, byte[] bytecode) throws IOException {
+            out.writeShort(0); // package private
+            out.writeShort(name);
+            out.writeShort(type);
+            out.writeShort(1);
+            out.writeShort(code);
+            out.writeInt(12 + bytecode.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(bytecode.length);
+            out.write(bytecode);
+            out.writeShort(0); // exceptions
+            out.writeShort(0); // attributes
+        }
+
+        private int utf8(String s) throws IOException {
+            Integer index = constants.get("U" + s);
+            if (index != null) return index;
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(s);
+            return add("U" + s, 1);
+        }
+
+        private int classRef(String internalName) throws IOException {
+            Integer index = constants.get("C" + internalName);
+            if (index != null) return index;
+            int n = utf8(internalName);
+            pool.writeByte(CONSTANT_CLASS);
+            pool.writeShort(n);
+            return add("C" + internalName, 1);
+        }
+
+        private int memberRef(int tag, String owner, String member, String type) throws IOException {
+            int c = classRef(owner);
+            int n = utf8(member), t = utf8(type);
+            pool.writeByte(CONSTANT_NAME_AND_TYPE);
+            pool.writeShort(n);
+            pool.writeShort(t);
+            int nameAndType = add("N" + member + type, 1);
+            pool.writeByte(tag);
+            pool.writeShort(c);
+            pool.writeShort(nameAndType);
+            return add("M" + owner + member, 1);
+        }
+
+        private int intConstant(int value) throws IOException {
+            Integer index = constants.get("I" + value);
+            if (index != null) return index;
+            pool.writeByte(CONSTANT_INTEGER);
+            pool.writeInt(value);
+            return add("I" + value, 1);
+        }
+
+        private int longConstant(long value) throws IOException {
+            Integer index = constants.get("J" + value);
+            if (index != null) return index;
+            pool.writeByte(CONSTANT_LONG);
+            pool.writeLong(value);
+            // Longs take two slots
+            return add("J" + value, 2);
+        }
+
+        private int add(String key, int slots) {
+            int index = poolSize;
+            constants.put(key, index);
+            poolSize += slots;
+            return index;
+        }
+    }
+}
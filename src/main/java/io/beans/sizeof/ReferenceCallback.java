@@ -0,0 +1,14 @@
+package io.beans.sizeof;
+
+/**
+ * Internal callback for {@link ClassSchema}, like {@link FieldCallback}, but with interned reference ids instead of
+ * names.
+ * 
+ * @see ReferenceNames
+ * 
+ * @author kuli
+ */
+interface ReferenceCallback {
+
+    void visit(int refId, Object value);
+}
@@ -0,0 +1,139 @@
+package io.beans.sizeof;
+
+import java.util.Arrays;
+
+
+/**
+ * Counts the references to the instances of a class by reference id.
+ *
+ * An open addressed table of primitive ints, so counting a reference needs neither string hashing nor boxing. The
+ * references are only resolved into named ClassStats.Reference instances on request.
+ *
+ * @author kuli
+ */
+final class ReferenceCounts {
+
+    /**
+     * The reference ids plus 1, so that 0 marks an empty slot.
+     */
+    private int[] keys;
+
+    private int[] counts;
+
+    private int size;
+
+    private int shift;
+
+    ReferenceCounts() {
+        allocate(8);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        counts = new int[capacity];
+        shift = Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    private int find(int key) {
+        int[] k = keys;
+        int mask = k.length - 1;
+        int i = (key * 0x9E3779B9) >>> shift;
+        int existing;
+        while ((existing = k[i]) != 0 && existing != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldCounts = counts;
+        allocate(oldKeys.length << 1);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == 0) continue;
+
+            int i = find(oldKeys[j]);
+            keys[i] = oldKeys[j];
+            counts[i] = oldCounts[j];
+        }
+    }
+
+    /**
+     * Adds the given number of references with that id.
+     */
+    void add(int refId, int count) {
+        int key = refId + 1;
+        int i = find(key);
+        if (keys[i] == 0) {
+            keys[i] = key;
+            counts[i] = count;
+            // Load factor 2/3
+            if (++size * 3 > keys.length * 2) grow();
+        } else {
+            counts[i] += count;
+        }
+    }
+
+    void increment(int refId) {
+        add(refId, 1);
+    }
+
+    /**
+     * Adds all counts of the other table.
+     */
+    void addAll(ReferenceCounts other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] != 0) add(other.keys[i] - 1, other.counts[i]);
+        }
+    }
+
+    /**
+     * Removes a single reference. The id is kept with a count of zero, but not reported any more.
+     */
+    void decrement(int refId) {
+        int i = find(refId + 1);
+        assert keys[i] != 0 && counts[i] > 0;
+        counts[i]--;
+    }
+
+    /**
+     * Removes all counts, but keeps the allocated table.
+     */
+    void clear() {
+        if (size == 0) return;
+        Arrays.fill(keys, 0);
+        Arrays.fill(counts, 0);
+        size = 0;
+    }
+
+    /**
+     * The current counts with their reference names, in no specific order.
+     */
+    ClassStats.Reference[] toReferences() {
+        ClassStats.Reference[] refs = new ClassStats.Reference[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0 && counts[i] > 0) {
+                refs[n++] = new ClassStats.Reference(ReferenceNames.nameOf(keys[i] - 1), counts[i]);
+            }
+        }
+        return n == refs.length ? refs : Arrays.copyOf(refs, n);
+    }
+
+    /**
+     * A copy of the current counts.
+     */
+    ReferenceCounts copy() {
+        ReferenceCounts c = new ReferenceCounts();
+        c.keys = keys.clone();
+        c.counts = counts.clone();
+        c.size = size;
+        c.shift = shift;
+        return c;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toReferences());
+    }
+}
@@ -0,0 +1,47 @@
+package io.beans.sizeof;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Interns the names of references into dense int ids.
+ *
+ * Schemas get the ids of their references once when they are created, so that walking the graph only passes ints
+ * around. The names are looked up again only when the statistics are read.
+ *
+ * @author kuli
+ */
+final class ReferenceNames {
+
+    private static final Map<String, Integer> ids = new HashMap<>();
+
+    /**
+     * Written within the lock, but read without it.
+     */
+    private static volatile String[] names = new String[256];
+
+    private static int count;
+
+    private ReferenceNames() {
+        // No instances
+    }
+
+    static synchronized int idOf(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+
+        String[] n = names;
+        if (count == n.length) n = Arrays.copyOf(n, count << 1);
+        n[count] = name;
+        // Publish the new name
+        names = n;
+        ids.put(name, count);
+        return count++;
+    }
+
+    static String nameOf(int id) {
+        return names[id];
+    }
+}
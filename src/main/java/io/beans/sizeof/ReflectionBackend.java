@@ -0,0 +1,64 @@
+package io.beans.sizeof;
+
+import java.lang.reflect.Field;
+
+
+/**
+ * The layout backend that reads fields with reflection, and works without Unsafe.
+ *
+ * Since field offsets are not known, sizes are calculated from the {@link ObjectLayout} model of the running VM.
+ *
+ * Fields that can't be made accessible are read with Unsafe if it's available. Otherwise, creating the schema of their
+ * class fails with an UnsupportedOperationException, instead of leaving them out of the measurement.
+ *
+ * @author kuli
+ */
+final class ReflectionBackend extends LayoutBackend {
+
+    static final ReflectionBackend INSTANCE = new ReflectionBackend();
+
+    private final ObjectLayout layout = ObjectLayout.current();
+
+    private ReflectionBackend() {
+    }
+
+    @Override
+    long referenceSize() {
+        return layout.referenceSize;
+    }
+
+    @Override
+    long arrayBaseOffset(Class<?> arrayType) {
+        return layout.arrayBaseOffset(arrayType);
+    }
+
+    @Override
+    long arrayIndexScale(Class<?> arrayType) {
+        return layout.sizeOf(arrayType.getComponentType());
+    }
+
+    @Override
+    long align(long size) {
+        return layout.align(size);
+    }
+
+    @Override
+    <T> ClassSchema<T> createObjectSchemaFor(Class<T> type, FieldFilter filter, boolean generateAccessor) {
+        return ClassSchema.createReflectiveSchemaFor(type, filter, layout.instanceSize(type));
+    }
+
+    @Override
+    Object readStatic(Field f) {
+        try {
+            f.setAccessible(true);
+            return f.get(null);
+        } catch (IllegalAccessException | RuntimeException ex) {
+            return UnsafeBackend.INSTANCE == null ? null : UnsafeBackend.INSTANCE.readStatic(f);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Reflection";
+    }
+}
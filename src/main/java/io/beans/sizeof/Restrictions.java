@@ -0,0 +1,119 @@
+package io.beans.sizeof;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+
+/**
+ * Restricts which parts of the object graph a single collector measures.
+ *
+ * Reference patterns are matched against the reference names, as they appear in the statistics: "type#field" for
+ * fields, where type is the class of the referencing instance, and the array's type like "java.lang.Object[]" for
+ * array elements. The only wildcard is *, which matches any sequence of characters. Examples are "*#parent" or
+ * "com.acme.*".
+ *
+ * A reference is followed if it doesn't match any exclude pattern, and matches at least one include pattern, if
+ * there are any. Instances of classes that the class filter doesn't accept are treated like global instances.
+ *
+ * With a maximum depth, only the measured instances themselves and the given number of levels below them are
+ * counted. The graph is walked breadth first then, so that each instance is counted on its shortest path.
+ *
+ * The patterns and filters are applied once for each class, when the collector creates its schema. Excluded fields
+ * are not visited at all then. Don't modify the restrictions after they were used to create a collector.
+ *
+ * @author kuli
+ */
+public final class Restrictions {
+
+    private int maxDepth = Integer.MAX_VALUE;
+
+    private final List<Pattern> includes = new ArrayList<>();
+
+    private final List<Pattern> excludes = new ArrayList<>();
+
+    private ClassFilter classFilter;
+
+    /**
+     * Only count instances that are at most that many references away from a measured instance. With 0, only the
+     * measured instances themselves are counted.
+     */
+    public Restrictions setMaxDepth(int maxDepth) {
+        if (maxDepth < 0) throw new IllegalArgumentException("Negative depth: " + maxDepth);
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * Only follow references that match this or another include pattern.
+     */
+    public Restrictions include(String pattern) {
+        includes.add(compile(pattern));
+        return this;
+    }
+
+    /**
+     * Don't follow references that match this pattern.
+     */
+    public Restrictions exclude(String pattern) {
+        excludes.add(compile(pattern));
+        return this;
+    }
+
+    /**
+     * Only count instances of classes that are accepted by this filter.
+     */
+    public Restrictions setClassFilter(ClassFilter classFilter) {
+        this.classFilter = classFilter;
+        return this;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    boolean hasMaxDepth() {
+        return maxDepth != Integer.MAX_VALUE;
+    }
+
+    private static Pattern compile(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        int star;
+        while ((star = pattern.indexOf('*', start)) >= 0) {
+            if (star > start) regex.append(Pattern.quote(pattern.substring(start, star)));
+            regex.append(".*");
+            start = star + 1;
+        }
+        if (start < pattern.length()) regex.append(Pattern.quote(pattern.substring(start)));
+
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Whether a reference with this name gets followed.
+     */
+    boolean acceptsReference(String refName) {
+        for (Pattern p : excludes) {
+            if (p.matcher(refName).matches()) return false;
+        }
+        if (includes.isEmpty()) return true;
+        for (Pattern p : includes) {
+            if (p.matcher(refName).matches()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether instances of this class get counted.
+     */
+    boolean acceptsClass(Class<?> type) {
+        return classFilter == null || classFilter.accept(type);
+    }
+
+    @Override
+    public String toString() {
+        return "Restrictions: depth " + (hasMaxDepth() ? maxDepth : "unlimited") + ", include " + includes
+                + ", exclude " + excludes + (classFilter == null ? "" : ", " + classFilter);
+    }
+}
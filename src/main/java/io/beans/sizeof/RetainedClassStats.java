@@ -0,0 +1,24 @@
+package io.beans.sizeof;
+
+/**
+ * Statistics for a class that was measured by a Collector, which also knows the retained size of its instances.
+ * 
+ * @author kuli
+ */
+public interface RetainedClassStats<T> extends ClassStats<T> {
+
+    /**
+     * The retained size of the instances of this class: The total size of all instances that can only be reached
+     * through at least one instance of this class, including these instances themselves.
+     * 
+     * This is the sum of the retained sizes of all instances that are not retained by another instance of this class.
+     * Instances that are kept alive by several instances of this class together, but not by a single one of them, are
+     * not included.
+     * 
+     * If the collector was created with the "calcSizeForEachClass" flag set to false, then this value is always 0.
+     * 
+     * @throws IllegalStateException If the collector was reset since these statistics were taken, and the retained
+     *         size wasn't requested before
+     */
+    long retainedSize();
+}
@@ -0,0 +1,81 @@
+package io.beans.sizeof;
+
+/**
+ * The statistics of the schema cache of an environment, taken at one point in time.
+ *
+ * Hits are only counted while the environment records them, see Environment.setRecordSchemaStatistics().
+ *
+ * @author kuli
+ */
+public final class SchemaCacheStats {
+
+    private final long hitCount;
+
+    private final long missCount;
+
+    private final long evictionCount;
+
+    private final long restoredCount;
+
+    private final int schemaCount;
+
+    SchemaCacheStats(long hitCount, long missCount, long evictionCount, long restoredCount, int schemaCount) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.restoredCount = restoredCount;
+        this.schemaCount = schemaCount;
+    }
+
+    /**
+     * The number of lookups that found a cached schema.
+     */
+    public long hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * The number of schemas that were created, including the ones that were created again after their eviction.
+     */
+    public long missCount() {
+        return missCount;
+    }
+
+    /**
+     * The fraction of lookups that found a cached schema, or 1 if nothing was looked up yet.
+     */
+    public double hitRate() {
+        long lookups = hitCount + missCount;
+        return lookups == 0 ? 1.0 : (double) hitCount / lookups;
+    }
+
+    /**
+     * The number of schemas that were dropped because the cache was full. Schemas of unloaded classes are not
+     * counted.
+     */
+    public long evictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * The number of created schemas that were restored from a saved layout, see Environment.loadSchemas(). They are
+     * also counted as misses.
+     */
+    public long restoredCount() {
+        return restoredCount;
+    }
+
+    /**
+     * The number of currently cached schemas.
+     */
+    public int schemaCount() {
+        return schemaCount;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " {schemas: " + schemaCount + ", hits: " + hitCount + ", misses: "
+                + missCount + ", evictions: " + evictionCount + ", restored: " + restoredCount + ", hit rate: "
+                + String.format("%.1f%%", hitRate() * 100) + "}";
+    }
+}
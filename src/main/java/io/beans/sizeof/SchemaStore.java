@@ -0,0 +1,398 @@
+package io.beans.sizeof;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+
+/**
+ * The layouts of schemas that an earlier run has calculated: the shallow size, the names and offsets of the visited
+ * fields, and the global verdict of each class.
+ *
+ * The file starts with a header that names the VM, its object layout, the backend and the configuration of the
+ * environment that wrote it. If any of them differs, the whole file is ignored. Each entry carries a hash over the
+ * class files of its type and all of its superclasses, and is only used if the class files that are found now have
+ * the same hash. Each entry also has a CRC32 over its own bytes, which must match before anything of it is decoded, so
+ * that a damaged layout with plausible offsets is not taken either. Offsets are checked as well, so a damaged file
+ * never leads to reads outside of an instance.
+ *
+ * The file gets mapped into memory, and only the names of the classes are read when it's loaded. The layout of an
+ * entry is decoded when its schema is needed for the first time.
+ *
+ * @author kuli
+ */
+final class SchemaStore {
+
+    private static final int MAGIC = 0x10BEA25C;
+
+    private static final int VERSION = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The decoded layout of one class.
+     */
+    static final class Layout {
+        final int verdict;
+
+        final long size;
+
+        final String[] fieldNames;
+
+        final long[] offsets;
+
+        Layout(int verdict, long size, String[] fieldNames, long[] offsets) {
+            this.verdict = verdict;
+            this.size = size;
+            this.fieldNames = fieldNames;
+            this.offsets = offsets;
+        }
+    }
+
+    /**
+     * The mapped file; only read with absolute positions, or from duplicates, so that it can be shared by threads.
+     */
+    private final ByteBuffer data;
+
+    /**
+     * The position of the body of each entry. Its length and its checksum are the two ints before.
+     */
+    private final Map<String, Integer> entries;
+
+    /**
+     * The configuration of the environment that wrote the file.
+     */
+    final String configuration;
+
+    private SchemaStore(ByteBuffer data, Map<String, Integer> entries, String configuration) {
+        this.data = data;
+        this.entries = entries;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Identifies the VM, its object layout, its boot class path, and the backend. Files with another header are not
+     * loaded.
+     */
+    static String header(LayoutBackend backend) {
+        return ObjectLayout.current().fingerprint() + " " + backend + " " + System.getProperty("java.home") + " "
+                + System.getProperty("sun.boot.class.path") + " " + System.getProperty("jdk.boot.class.path.append");
+    }
+
+    /**
+     * Maps the given file, and reads the names of its entries.
+     *
+     * @return The store, or null if the file doesn't exist, or was written for another VM, backend, or configuration,
+     *         or is damaged
+     */
+    static SchemaStore load(File file, String header, String configuration) throws IOException {
+        if (!file.isFile()) return null;
+
+        ByteBuffer data;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if (data.getInt() != MAGIC || data.getInt() != VERSION) return null;
+            if (!header.equals(readString(data)) || !configuration.equals(readString(data))) return null;
+
+            int count = data.getInt();
+            Map<String, Integer> entries = new HashMap<>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                String name = readString(data);
+                int length = data.getInt();
+                // Skip the checksum, it's verified when the entry is decoded
+                data.getInt();
+                if (length < 0 || length > data.remaining()) return null;
+                if (!entries.containsKey(name)) entries.put(name, data.position());
+                data.position(data.position() + length);
+            }
+            return new SchemaStore(data, entries, configuration);
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            // Truncated or damaged
+            return null;
+        }
+    }
+
+    private static String readString(ByteBuffer data) {
+        int length = data.getInt();
+        if (length < 0 || length > data.remaining()) throw new IllegalArgumentException("Damaged string");
+        byte[] bytes = new byte[length];
+        data.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * The number of entries in the file.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Whether there is an entry for a class with the given name. It may still be stale.
+     */
+    boolean contains(String className) {
+        return entries.containsKey(className);
+    }
+
+    /**
+     * Decodes the layout of the given type.
+     *
+     * @param classFileHash The current hash of the class files of the type and its superclasses
+     * @return The layout, or null if there's no entry, or if it's stale or damaged
+     */
+    Layout layoutOf(Class<?> type, long classFileHash) {
+        Integer position = entries.get(type.getName());
+        if (position == null || classFileHash == 0) return null;
+
+        ByteBuffer entry = data.duplicate();
+        byte[] body = new byte[entry.getInt(position - 8)];
+        entry.position(position);
+        entry.get(body);
+        if (checksumOf(body) != entry.getInt(position - 4)) return null;
+
+        entry.position(position);
+        try {
+            if (entry.getLong() != classFileHash) return null;
+
+            int verdict = entry.get();
+            long size = entry.getLong();
+            int n = entry.getInt();
+            if (n < 0 || n > entry.remaining()) return null;
+
+            ObjectLayout layout = ObjectLayout.current();
+            if (size < layout.headerSize || size != layout.align(size)) return null;
+            String[] fieldNames = new String[n];
+            long[] offsets = new long[n];
+            for (int i = 0; i < n; i++) {
+                fieldNames[i] = readString(entry);
+                long offset = entry.getLong();
+                // Each reference lies within the instance, on its own boundary
+                if (offset < layout.headerSize || offset + layout.referenceSize > size
+                        || offset % layout.referenceSize != 0) {
+                    return null;
+                }
+                offsets[i] = offset;
+            }
+            return new Layout(verdict, size, fieldNames, offsets);
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private static int checksumOf(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Finds the hashes of class files. They are taken from the central directories of jar files where possible, and
+     * only classes from directories get read.
+     *
+     * Classes of the boot class path and of the runtime image are identified by the header, since they only change
+     * together with the VM or its options.
+     */
+    static final class ClassFiles {
+
+        /**
+         * The hashes of all classes of each jar file.
+         */
+        private final Map<String, Map<String, Long>> jars = new ConcurrentHashMap<>();
+
+        /**
+         * A hash over the file of the given class and its length, or 0 if it can't be found. Classes of the VM
+         * itself get 1.
+         */
+        long hashOf(Class<?> type) {
+            String resource = type.getName().replace('.', '/') + ".class";
+            try {
+                CodeSource source = type.getProtectionDomain().getCodeSource();
+                URL location = source == null ? null : source.getLocation();
+                if (location == null) {
+                    return type.getClassLoader() == null ? 1 : hashOf(type.getResourceAsStream("/" + resource));
+                }
+                if ("jrt".equals(location.getProtocol())) return 1;
+                if (!"file".equals(location.getProtocol())) {
+                    return hashOf(type.getResourceAsStream("/" + resource));
+                }
+
+                File file = new File(location.toURI());
+                if (file.isDirectory()) return hashOf(new FileInputStream(new File(file, resource)));
+
+                Map<String, Long> jar = jars.get(file.getPath());
+                if (jar == null) jars.put(file.getPath(), jar = readJar(file));
+                Long hash = jar.get(resource);
+                return hash == null ? 0 : hash;
+            } catch (IOException | URISyntaxException | RuntimeException ex) {
+                return 0;
+            }
+        }
+
+        private static Map<String, Long> readJar(File file) throws IOException {
+            Map<String, Long> hashes = new HashMap<>();
+            try (ZipFile zip = new ZipFile(file)) {
+                for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+                    ZipEntry entry = e.nextElement();
+                    if (entry.getName().endsWith(".class") && entry.getCrc() != -1 && entry.getSize() != -1) {
+                        hashes.put(entry.getName(), entry.getSize() << 32 | entry.getCrc());
+                    }
+                }
+            }
+            return hashes;
+        }
+
+        private static long hashOf(InputStream stream) throws IOException {
+            // Classes that were defined at runtime have none
+            if (stream == null) return 0;
+
+            try (InputStream in = stream) {
+                CRC32 crc = new CRC32();
+                byte[] buffer = new byte[4096];
+                long length = 0;
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    crc.update(buffer, 0, n);
+                    length += n;
+                }
+                return length << 32 | crc.getValue();
+            }
+        }
+    }
+
+    /**
+     * Collects entries in memory, and writes them to a file at once.
+     */
+    static final class Writer {
+        private final String header;
+
+        private final String configuration;
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        private final Set<String> written = new HashSet<>();
+
+        Writer(String header, String configuration) {
+            this.header = header;
+            this.configuration = configuration;
+        }
+
+        /**
+         * Adds the layout of the given schema, if it has one.
+         *
+         * @return <code>true</code> if it was added
+         */
+        boolean add(ClassSchema<?> schema, long classFileHash, int verdict) throws IOException {
+            String[] fieldNames = schema.fieldNames();
+            long[] offsets = schema.fieldOffsets();
+            String name = schema.getType().getName();
+            if (fieldNames == null || offsets == null || classFileHash == 0 || written.contains(name)) return false;
+
+            ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+            DataOutputStream entry = new DataOutputStream(entryBytes);
+            entry.writeLong(classFileHash);
+            entry.writeByte(verdict);
+            entry.writeLong(schema.shallowSize(null));
+            entry.writeInt(fieldNames.length);
+            for (int i = 0; i < fieldNames.length; i++) {
+                writeString(entry, fieldNames[i]);
+                entry.writeLong(offsets[i]);
+            }
+            entry.flush();
+
+            byte[] body = entryBytes.toByteArray();
+            writeString(out, name);
+            out.writeInt(body.length);
+            out.writeInt(checksumOf(body));
+            out.write(body);
+            written.add(name);
+            return true;
+        }
+
+        /**
+         * Copies the entries of the given store whose classes were not added yet. They were written for the same
+         * configuration, and get checked when they are used.
+         */
+        void addAll(SchemaStore store) throws IOException {
+            for (Map.Entry<String, Integer> e : store.entries.entrySet()) {
+                String name = e.getKey();
+                if (written.contains(name)) continue;
+
+                ByteBuffer entry = store.data.duplicate();
+                int position = e.getValue();
+                int length = entry.getInt(position - 8);
+                byte[] body = new byte[length];
+                entry.position(position);
+                entry.get(body);
+
+                writeString(out, name);
+                out.writeInt(length);
+                // Damaged ones stay damaged, and get rejected when they are used
+                out.writeInt(entry.getInt(position - 4));
+                out.write(body);
+                written.add(name);
+            }
+        }
+
+        /**
+         * Writes all entries to the given file. Other processes either see the old or the new file, but never a
+         * partially written one.
+         */
+        void writeTo(File file) throws IOException {
+            out.flush();
+            File parent = file.getAbsoluteFile().getParentFile();
+            File temp = File.createTempFile(file.getName(), ".tmp", parent);
+            try {
+                try (OutputStream os = new FileOutputStream(temp)) {
+                    DataOutputStream header = new DataOutputStream(os);
+                    header.writeInt(MAGIC);
+                    header.writeInt(VERSION);
+                    writeString(header, this.header);
+                    writeString(header, configuration);
+                    header.writeInt(written.size());
+                    bytes.writeTo(header);
+                    header.flush();
+                }
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                temp.delete();
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+            byte[] b = s.getBytes(UTF8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+}
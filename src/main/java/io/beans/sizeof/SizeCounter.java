@@ -0,0 +1,251 @@
+package io.beans.sizeof;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.beans.collections.IdentitySet;
+
+
+/**
+ * The minimal engine behind Environment.sizeOf(), which only sums up the deep size.
+ *
+ * There is one visited set for all instances and no bookkeeping per class: no reference names, no reference counts
+ * and no statistics. Global instances and instances of global classes are skipped when referenced, but measured when
+ * they're added directly.
+ *
+ * Each thread keeps one counter, together with its tables, for all environments. So repeated measurements allocate
+ * nothing once the tables are large enough. The counter only references an environment and the measured instances
+ * while it's in use.
+ *
+ * @author kuli
+ */
+final class SizeCounter implements ContainerCallback {
+
+    /**
+     * Larger visited sets are not kept, so that a single large measurement doesn't hold its memory forever.
+     */
+    private static final int MAX_KEPT_CAPACITY = 1 << 20;
+
+    private static final ThreadLocal<SizeCounter> perThread = new ThreadLocal<>();
+
+    /**
+     * The environment of the current measurement, or null if the counter is not in use.
+     */
+    private Environment env;
+
+    /**
+     * Whether the environment has global instances at all. Read again whenever a new class is found, because that can
+     * register the first ones.
+     */
+    private boolean checkGlobals;
+
+    private IdentitySet visited = new IdentitySet();
+
+    /**
+     * The schema of each class found so far. Global classes are contained with null.
+     */
+    private final Map<Class<?>, ClassSchema<?>> schemas = new HashMap<>();
+
+    /**
+     * Most instances are followed by another one of the same class.
+     */
+    private Class<?> lastType;
+
+    private ClassSchema<?> lastSchema;
+
+    private Object[] pending = new Object[64];
+
+    private ClassSchema<?>[] pendingSchemas = new ClassSchema<?>[64];
+
+    /**
+     * For large arrays, the first element that's not visited yet.
+     */
+    private int[] pendingOffsets = new int[64];
+
+    private int pendingCount;
+
+    private long totalSize;
+
+    private SizeCounter() {
+        // Only created by start()
+    }
+
+    /**
+     * Takes the counter of the current thread, ready to measure in the given environment. A new one is created if
+     * it's in use already, because a measurement was started from within another one.
+     *
+     * The counter is not reachable from the thread while it's in use. Otherwise a walk over the static values could
+     * find the measured instances through the thread's locals, and make them global in the middle of the measurement.
+     *
+     * Call finish() afterwards.
+     */
+    static SizeCounter start(Environment env) {
+        SizeCounter counter = perThread.get();
+        if (counter == null) {
+            counter = new SizeCounter();
+        } else {
+            perThread.set(null);
+        }
+        counter.env = env;
+        counter.checkGlobals = env.hasGlobalInstances();
+        return counter;
+    }
+
+    /**
+     * Forgets the measured instances, the schemas and the environment, but keeps the tables for the next
+     * measurement of the current thread.
+     */
+    void finish() {
+        while (pendingCount > 0) {
+            int i = --pendingCount;
+            pending[i] = null;
+            pendingSchemas[i] = null;
+        }
+        if (visited.capacity() > MAX_KEPT_CAPACITY) {
+            visited = new IdentitySet();
+        } else {
+            visited.clear();
+        }
+        // The environment may change its schemas and global classes until the next measurement
+        schemas.clear();
+        lastType = null;
+        lastSchema = null;
+        env = null;
+        totalSize = 0;
+        perThread.set(this);
+    }
+
+    /**
+     * Adds the deep size of the given instance, if it wasn't counted yet.
+     */
+    void add(Object instance) {
+        if (instance == null || !visited.add(instance)) return;
+
+        // Also for global classes
+        ClassSchema<?> schema = env.getSchema(instance.getClass());
+        checkGlobals = env.hasGlobalInstances();
+        count(instance, schema);
+
+        while (pendingCount > 0) {
+            int i = --pendingCount;
+            Object o = pending[i];
+            ClassSchema<?> s = pendingSchemas[i];
+            pending[i] = null;
+            pendingSchemas[i] = null;
+
+            iterate(o, s, pendingOffsets[i]);
+        }
+    }
+
+    /**
+     * Visits the next chunk of large arrays only, and schedules their rest again.
+     */
+    private void iterate(Object instance, ClassSchema<?> schema, int offset) {
+        int length = schema.elementCount(instance);
+        if (length == 0) {
+            schema.iterateIds(instance, this);
+            return;
+        }
+
+        int end = length;
+        if (length - offset > ClassSchema.ARRAY_CHUNK) {
+            end = offset + ClassSchema.ARRAY_CHUNK;
+            push(instance, schema, end);
+        }
+        Class<?> elementType = schema.finalElementType();
+        if (elementType == null) {
+            schema.walkIds(instance, offset, end, this);
+        } else {
+            ClassSchema<?> elementSchema = schemaFor(elementType);
+            if (elementSchema != null) visitFinal((Object[]) instance, offset, end, elementSchema);
+        }
+    }
+
+    /**
+     * Visits the elements of an array whose component type is final and not global. The size of leaf elements is
+     * added right away.
+     */
+    private <T> void visitFinal(Object[] array, int from, int to, ClassSchema<T> schema) {
+        boolean leaf = schema.isLeaf();
+        long size = -1;
+        for (int i = from; i < to; i++) {
+            Object element = array[i];
+            if (element == null || checkGlobals && env.isGlobalInstance(element) || !visited.add(element)) continue;
+
+            if (!leaf) {
+                count(element, schema);
+                continue;
+            }
+            if (size < 0) {
+                @SuppressWarnings("unchecked")
+                T t = (T) element;
+                size = schema.shallowSize(t);
+            }
+            totalSize += size;
+        }
+    }
+
+    long totalSize() {
+        return totalSize;
+    }
+
+    private void count(Object instance, ClassSchema<?> schema) {
+        addShallowSize(instance, schema);
+        push(instance, schema, 0);
+    }
+
+    private void push(Object instance, ClassSchema<?> schema, int offset) {
+        if (pendingCount == pending.length) {
+            int newLength = pendingCount << 1;
+            pending = Arrays.copyOf(pending, newLength);
+            pendingSchemas = Arrays.copyOf(pendingSchemas, newLength);
+            pendingOffsets = Arrays.copyOf(pendingOffsets, newLength);
+        }
+        pending[pendingCount] = instance;
+        pendingOffsets[pendingCount] = offset;
+        pendingSchemas[pendingCount++] = schema;
+    }
+
+    /**
+     * The schema of the given type, or null if it's a global class.
+     */
+    private ClassSchema<?> schemaFor(Class<?> type) {
+        if (type == lastType) return lastSchema;
+
+        ClassSchema<?> schema = schemas.get(type);
+        if (schema == null && !schemas.containsKey(type)) {
+            schema = env.isGlobalClass(type) ? null : env.getSchema(type);
+            schemas.put(type, schema);
+            checkGlobals = env.hasGlobalInstances();
+        }
+        lastType = type;
+        lastSchema = schema;
+        return schema;
+    }
+
+    @Override
+    public void visit(int refId, Object value) {
+        if (value == null) return;
+
+        ClassSchema<?> schema = schemaFor(value.getClass());
+        if (schema == null || checkGlobals && env.isGlobalInstance(value) || !visited.add(value)) return;
+
+        count(value, schema);
+    }
+
+    @Override
+    public boolean own(int refId, Object node) {
+        ClassSchema<?> schema = schemaFor(node.getClass());
+        if (schema == null || checkGlobals && env.isGlobalInstance(node) || !visited.add(node)) return false;
+
+        addShallowSize(node, schema);
+        return true;
+    }
+
+    private <T> void addShallowSize(Object instance, ClassSchema<T> schema) {
+        @SuppressWarnings("unchecked")
+        T t = (T) instance;
+        totalSize += schema.shallowSize(t);
+    }
+}
@@ -34,6 +34,13 @@ public final class SizeOf {
         return new Environment();
     }
 
+    /**
+     * Creates a clean, empty environment whose schemas use the given layout backend.
+     */
+    public static Environment createEnvironment(LayoutBackend layoutBackend) {
+        return new Environment(layoutBackend);
+    }
+
     /**
      * Creates a new Environment with the default settings.
      * This means, Enum and Class are global types, and the static members of System and Collections are global instances.
@@ -83,6 +90,22 @@ public final class SizeOf {
         return getWeakEnvironmentInstance().createCollector(calcSizeForEachClass);
     }
 
+    /**
+     * Creates a new collector that stops measuring as soon as the given budget is exhausted.
+     * 
+     * Use this instead of sizeOf() on threads that must not be blocked for long.
+     */
+    public static Collector createCollector(Budget budget) {
+        return getWeakEnvironmentInstance().createCollector(budget);
+    }
+
+    /**
+     * Creates a new collector that only measures the part of the object graph that the given restrictions allow.
+     */
+    public static Collector createCollector(Restrictions restrictions) {
+        return getWeakEnvironmentInstance().createCollector(restrictions);
+    }
+
     /**
      * Creates a new collector that calculates the total size and the total size of each class.
      * The given elements are already added for measurement.
@@ -142,7 +165,13 @@ public final class SizeOf {
         out.print(classStats.length);
         out.print(" classes and ");
         out.print(stats.instanceCount());
-        out.println(" instances:");
+        out.print(" instances");
+        if (stats instanceof Collector && ((Collector)stats).isPartial()) {
+            out.print(" (partial, ");
+            out.print(((Collector)stats).unexploredReferences());
+            out.print(" unexplored references)");
+        }
+        out.println(":");
 
         for (ClassStats<?> cs : classStats) {
             out.print("* ");
@@ -0,0 +1,35 @@
+package io.beans.sizeof;
+
+import java.lang.instrument.Instrumentation;
+
+
+/**
+ * The java agent which provides the instrumentation for {@link LayoutBackend#instrumentation()}.
+ *
+ * Start the VM with <code>-javaagent:io.beans.jar</code>, or load the jar into a running VM with the attach API.
+ *
+ * @author kuli
+ */
+public final class SizeOfAgent {
+
+    private static volatile Instrumentation instrumentation;
+
+    private SizeOfAgent() {
+        throw new AssertionError("Static class!");
+    }
+
+    public static void premain(String args, Instrumentation inst) {
+        instrumentation = inst;
+    }
+
+    public static void agentmain(String args, Instrumentation inst) {
+        instrumentation = inst;
+    }
+
+    /**
+     * The instrumentation of the loaded agent, or null if it's not loaded.
+     */
+    public static Instrumentation getInstrumentation() {
+        return instrumentation;
+    }
+}
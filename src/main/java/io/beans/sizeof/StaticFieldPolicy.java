@@ -38,6 +38,9 @@ public enum StaticFieldPolicy {
     /**
      * All values of static fields and all indirectly referenced values will be marked
      * as global.
+     * 
+     * The referenced values are walked when global instances are looked up for the first time
+     * afterwards, not when the class is registered.
      */
     FULL_TREE {
         @Override
@@ -0,0 +1,43 @@
+package io.beans.sizeof;
+
+/**
+ * Gets notified while a collector walks the object graph.
+ *
+ * Use this to aggregate the measurement into own structures, or to write it out while it happens, instead of
+ * calling stats() on the collector. That one materializes all counted instances of each class into arrays, which
+ * needs a lot of memory for large graphs. The collector itself still remembers the counted instances, because it
+ * must not count them twice.
+ *
+ * All methods are called on the measuring thread. A parallel collector calls them from its pool threads instead, but
+ * never concurrently, and measured() from the thread that called measure(). Don't modify the measured graph from within
+ * them.
+ *
+ * @author kuli
+ */
+public interface TraversalListener {
+
+    /**
+     * The first instance of the given type was found. This is called before the instance gets counted.
+     *
+     * @param global Instances of this type are only counted when they are measured directly
+     */
+    void classFound(Class<?> type, boolean global);
+
+    /**
+     * The given instance was counted for the first time.
+     *
+     * @param size Its shallow size
+     */
+    void counted(Object instance, long size);
+
+    /**
+     * The source instance references the target with the given reference name. This is called for each followed
+     * reference, also if the target was counted before, or is a global instance.
+     */
+    void referenced(Object source, String refName, Object target);
+
+    /**
+     * The given instance and everything that's reachable from it was measured.
+     */
+    void measured(Object root);
+}
@@ -0,0 +1,137 @@
+package io.beans.sizeof;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The layout backend that reads fields with the undocumented Unsafe instance, and derives shallow sizes from the
+ * field offsets that it reports. The padding after contended fields and the alignment come from the
+ * {@link ObjectLayout}.
+ *
+ * @see http://www.docjar.com/docs/api/sun/misc/Unsafe.html
+ *
+ * @author kuli
+ */
+@SuppressWarnings("restriction")
+final class UnsafeBackend extends LayoutBackend {
+
+    /**
+     * The Unsafe instance, or null if it's not accessible. Also read by the generated accessors.
+     */
+    static final sun.misc.Unsafe unsafe;
+
+    static {
+        sun.misc.Unsafe u;
+        try {
+            Field unsafeField = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            unsafeField.setAccessible(true);
+            u = (sun.misc.Unsafe) unsafeField.get(null);
+        } catch (Exception | LinkageError ex) {
+            u = null;
+        }
+        unsafe = u;
+    }
+
+    /**
+     * Unsafe.shouldBeInitialized(), or null if it's not there. It's only called reflectively, since it's deprecated for
+     * removal, and gone since Java 22.
+     */
+    private static final Method shouldBeInitialized;
+
+    static {
+        Method m;
+        try {
+            m = unsafe == null ? null : unsafe.getClass().getMethod("shouldBeInitialized", Class.class);
+        } catch (NoSuchMethodException | RuntimeException ex) {
+            m = null;
+        }
+        shouldBeInitialized = m;
+    }
+
+    /**
+     * The only instance, or null if Unsafe is not accessible.
+     */
+    static final UnsafeBackend INSTANCE = unsafe == null ? null : new UnsafeBackend();
+
+    private UnsafeBackend() {
+    }
+
+    /**
+     * The shallow size of instances of the given type, which is no array: the end of its last field, plus the padding
+     * of contended fields, aligned.
+     */
+    static long instanceSize(Class<?> type) {
+        ObjectLayout layout = ObjectLayout.current();
+        List<Class<?>> hierarchy = new ArrayList<>();
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            hierarchy.add(0, c);
+        }
+
+        long end = layout.headerSize;
+        for (Class<?> c : hierarchy) {
+            for (Field f : c.getDeclaredFields()) {
+                if (Modifier.isStatic(f.getModifiers())) continue;
+                end = Math.max(end, unsafe.objectFieldOffset(f) + layout.sizeOf(f.getType()));
+            }
+            if (layout.isPadded(c)) end += layout.contendedPadding;
+        }
+        return layout.align(end);
+    }
+
+    @Override
+    long referenceSize() {
+        return ObjectLayout.current().referenceSize;
+    }
+
+    @Override
+    long arrayBaseOffset(Class<?> arrayType) {
+        return unsafe.arrayBaseOffset(arrayType);
+    }
+
+    @Override
+    long arrayIndexScale(Class<?> arrayType) {
+        return unsafe.arrayIndexScale(arrayType);
+    }
+
+    @Override
+    long align(long size) {
+        return ObjectLayout.current().align(size);
+    }
+
+    @Override
+    boolean readsWithUnsafe() {
+        return true;
+    }
+
+    @Override
+    <T> ClassSchema<T> createObjectSchemaFor(Class<T> type, FieldFilter filter, boolean generateAccessor) {
+        return ClassSchema.createUnsafeSchemaFor(type, filter, generateAccessor);
+    }
+
+    @Override
+    Object readStatic(Field f) {
+        return unsafe.getObject(unsafe.staticFieldBase(f), unsafe.staticFieldOffset(f));
+    }
+
+    /**
+     * Always false if the VM can't tell, so that the static values get registered on first use.
+     */
+    @Override
+    boolean isInitialized(Class<?> type) {
+        if (shouldBeInitialized == null) return false;
+        try {
+            return !(Boolean) shouldBeInitialized.invoke(unsafe, type);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Unsafe";
+    }
+}
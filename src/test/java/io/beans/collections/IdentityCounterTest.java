@@ -0,0 +1,169 @@
+package io.beans.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import io.beans.sizeof.SizeOf;
+import io.beans.util.SwissArmyKnife;
+
+
+public class IdentityCounterTest {
+
+    private static final Logger LOGGER = SwissArmyKnife.getLogger();
+
+    @Test
+    public void countingTest() {
+        IdentityCounter c = new IdentityCounter();
+        String a = new String("a");
+        String equalToA = new String("a");
+
+        assertEquals(IdentityCounter.ABSENT, c.get(a));
+        assertEquals(IdentityCounter.ABSENT, c.increment(a));
+        assertEquals(1, c.increment(a));
+        assertEquals(2, c.get(a));
+        assertFalse(c.contains(equalToA));
+        assertTrue(c.add(equalToA));
+        assertFalse(c.add(equalToA));
+        assertEquals(2, c.size());
+
+        Object global = new Object();
+        assertEquals(IdentityCounter.ABSENT, c.put(global, 0));
+        assertEquals(0, c.increment(global));
+        assertEquals(0, c.get(global));
+        assertTrue(c.contains(global));
+
+        c.clear();
+        assertTrue(c.isEmpty());
+        assertFalse(c.contains(a));
+    }
+
+    @Test
+    public void growingTest() {
+        int n = 100000;
+        Object[] values = new Object[n];
+        IdentityCounter c = new IdentityCounter();
+        for (int i = 0; i < n; i++) {
+            values[i] = new Object();
+            for (int j = 0; j <= (i & 3); j++) {
+                c.increment(values[i]);
+            }
+        }
+        assertEquals(n, c.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals((i & 3) + 1, c.get(values[i]));
+        }
+
+        int found = 0;
+        long sum = 0;
+        for (int slot = 0; slot < c.capacity(); slot++) {
+            if (c.instanceAt(slot) != null) {
+                found++;
+                sum += c.countAt(slot);
+            }
+        }
+        assertEquals(n, found);
+        assertEquals(n / 4 * (1 + 2 + 3 + 4), sum);
+    }
+
+    @Test
+    public void removingTest() {
+        int n = 50000;
+        Object[] values = new Object[n];
+        IdentityCounter c = new IdentityCounter();
+        for (int i = 0; i < n; i++) {
+            values[i] = new Object();
+            c.put(values[i], i);
+        }
+        for (int i = 0; i < n; i += 3) {
+            assertEquals(i, c.remove(values[i]));
+        }
+        assertEquals(IdentityCounter.ABSENT, c.remove(values[0]));
+        assertEquals(n - (n + 2) / 3, c.size());
+
+        // All remaining ones must still be found after their neighbours were shifted back
+        for (int i = 0; i < n; i++) {
+            assertEquals(i % 3 == 0 ? IdentityCounter.ABSENT : i, c.get(values[i]));
+        }
+        for (int i = 0; i < n; i += 3) {
+            assertTrue(c.add(values[i]));
+        }
+        assertEquals(n, c.size());
+    }
+
+    @Test
+    public void footprintTest() {
+        int n = 100000;
+        IdentityCounter counter = new IdentityCounter();
+        Map<Object, Integer> map = new IdentityHashMap<>();
+        for (int i = 0; i < n; i++) {
+            Object o = new Object();
+            for (int j = 0; j <= (i & 7); j++) {
+                counter.increment(o);
+                Integer count = map.get(o);
+                map.put(o, count == null ? 1 : count + 1);
+            }
+        }
+
+        long elementSize = SizeOf.shallowSizeOf(new Object()) * n;
+        long counterSize = SizeOf.sizeOf(counter) - elementSize;
+        long mapSize = SizeOf.sizeOf(map) - elementSize;
+        LOGGER.log(Level.INFO, "Bookkeeping for {0} instances: IdentityHashMap {1} bytes, IdentityCounter {2} bytes",
+                new Object[]{n, mapSize, counterSize});
+
+        // Counts beyond the Integer cache need an extra box for each entry in the map
+        for (int slot = 0; slot < counter.capacity(); slot++) {
+            Object o = counter.instanceAt(slot);
+            if (o != null) {
+                counter.put(o, 1000);
+                map.put(o, 1000 + (slot & 1));
+            }
+        }
+        assertEquals(counterSize, SizeOf.sizeOf(counter) - elementSize);
+        mapSize = SizeOf.sizeOf(map) - elementSize;
+        LOGGER.log(Level.INFO, "Bookkeeping for {0} instances with large counts: IdentityHashMap {1} bytes",
+                new Object[]{n, mapSize});
+        assertTrue(counterSize < mapSize);
+    }
+
+    // @Test // Long-running test - disabled
+    public void throughputTestXX() {
+        int n = 10000000;
+        Object[] values = new Object[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = new Object();
+        }
+
+        for (int round = 0; round < 5; round++) {
+            long nanoStart = System.nanoTime();
+            Map<Object, Integer> map = new IdentityHashMap<>();
+            for (int r = 0; r < 2; r++) {
+                for (Object o : values) {
+                    Integer count = map.get(o);
+                    map.put(o, count == null ? 1 : count + 1);
+                }
+            }
+            long nanoMiddle = System.nanoTime();
+            IdentityCounter counter = new IdentityCounter();
+            for (int r = 0; r < 2; r++) {
+                for (Object o : values) {
+                    counter.increment(o);
+                }
+            }
+            long nanoEnd = System.nanoTime();
+            assertEquals(map.size(), counter.size());
+
+            LOGGER.log(Level.INFO, "Counting {0} instances twice: IdentityHashMap took {1}, IdentityCounter took {2}",
+                    new Object[]{n, SwissArmyKnife.durationAsString(nanoMiddle - nanoStart, TimeUnit.MILLISECONDS),
+                            SwissArmyKnife.durationAsString(nanoEnd - nanoMiddle, TimeUnit.MILLISECONDS)});
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package io.beans.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class IdentitySetTest {
+
+    @Test
+    public void addingTest() {
+        IdentitySet s = new IdentitySet();
+        String a = new String("a");
+        String equalToA = new String("a");
+
+        assertFalse(s.contains(a));
+        assertTrue(s.add(a));
+        assertFalse(s.add(a));
+        assertFalse(s.contains(equalToA));
+        assertTrue(s.add(equalToA));
+        assertEquals(2, s.size());
+
+        Object[] many = new Object[100000];
+        for (int i = 0; i < many.length; i++) {
+            many[i] = new Object();
+            assertTrue(s.add(many[i]));
+        }
+        assertEquals(many.length + 2, s.size());
+        for (Object o : many) {
+            assertTrue(s.contains(o));
+            assertFalse(s.add(o));
+        }
+
+        s.clear();
+        assertTrue(s.isEmpty());
+        assertFalse(s.contains(a));
+    }
+}
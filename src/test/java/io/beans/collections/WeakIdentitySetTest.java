@@ -0,0 +1,104 @@
+package io.beans.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class WeakIdentitySetTest {
+
+    @Test
+    public void addingTest() {
+        WeakIdentitySet s = new WeakIdentitySet();
+        String a = new String("a");
+        String equalToA = new String("a");
+
+        assertTrue(s.isEmpty());
+        assertFalse(s.contains(a));
+        assertTrue(s.add(a));
+        assertFalse(s.add(a));
+        assertFalse(s.contains(equalToA));
+        assertTrue(s.add(equalToA));
+        assertEquals(2, s.size());
+
+        Object[] many = new Object[100000];
+        for (int i = 0; i < many.length; i++) {
+            many[i] = new Object();
+            assertTrue(s.add(many[i]));
+        }
+        assertEquals(many.length + 2, s.size());
+        for (Object o : many) {
+            assertTrue(s.contains(o));
+            assertFalse(s.add(o));
+        }
+
+        List<Object> all = Arrays.asList(s.toArray());
+        assertEquals(many.length + 2, all.size());
+        assertTrue(all.contains(a));
+        assertTrue(all.contains(many[4711]));
+    }
+
+    @Test
+    public void releaseTest() throws InterruptedException {
+        WeakIdentitySet s = new WeakIdentitySet();
+        Object kept = new Object();
+        s.add(kept);
+        Object[] discarded = new Object[10000];
+        for (int i = 0; i < discarded.length; i++) {
+            discarded[i] = new Object();
+            s.add(discarded[i]);
+        }
+        WeakReference<Object> probe = new WeakReference<Object>(discarded[0]);
+        discarded = null;
+        for (int i = 0; i < 20 && probe.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(probe.get());
+
+        // Adding more expunges the cleared entries
+        Object[] added = new Object[100];
+        for (int i = 0; i < added.length; i++) {
+            added[i] = new Object();
+            s.add(added[i]);
+        }
+        assertTrue(s.contains(kept));
+        for (Object o : added) {
+            assertTrue(s.contains(o));
+        }
+        assertEquals(added.length + 1, s.toArray().length);
+    }
+
+    @Test
+    public void clearedWhileRebuildingTest() throws InterruptedException {
+        for (int round = 0; round < 20; round++) {
+            WeakIdentitySet s = new WeakIdentitySet();
+            WeakReference<Object> probe = null;
+            for (int i = 0; i < 5; i++) {
+                Object garbage = new Object();
+                s.add(garbage);
+                probe = new WeakReference<>(garbage);
+            }
+            System.gc();
+            Object first = new Object();
+            // Rebuilds the table, probably before the cleared references are enqueued
+            s.add(first);
+            for (int i = 0; i < 20 && probe.get() != null; i++) {
+                System.gc();
+            }
+            Thread.sleep(20);
+
+            Object second = new Object();
+            s.add(second);
+            assertEquals(2, s.size());
+            assertFalse(s.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package io.beans.sizeof;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+
+/**
+ * Loads the {@link SizeOfAgent} into the running test VM with the attach API.
+ */
+final class AgentLoader {
+
+    private AgentLoader() {
+        throw new AssertionError("Static class!");
+    }
+
+    /**
+     * The instrumentation of the agent, or null if it can't be loaded here.
+     */
+    static synchronized Instrumentation instrumentation() {
+        if (SizeOfAgent.getInstrumentation() == null) {
+            try {
+                attach(createAgentJar());
+            } catch (Exception | LinkageError ex) {
+                return null;
+            }
+        }
+        return SizeOfAgent.getInstrumentation();
+    }
+
+    private static File createAgentJar() throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(new Attributes.Name("Agent-Class"), SizeOfAgent.class.getName());
+        File jar = File.createTempFile("sizeof-agent", ".jar");
+        jar.deleteOnExit();
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest)) {
+            // The agent class is on the class path already
+        }
+        return jar;
+    }
+
+    private static void attach(File agentJar) throws Exception {
+        Class<?> vmClass;
+        try {
+            vmClass = Class.forName("com.sun.tools.attach.VirtualMachine");
+        } catch (ClassNotFoundException ex) {
+            // Java 8 has it in the JDK's tools.jar
+            File toolsJar = new File(System.getProperty("java.home"), "../lib/tools.jar");
+            ClassLoader loader = new URLClassLoader(new URL[]{toolsJar.toURI().toURL()});
+            vmClass = Class.forName("com.sun.tools.attach.VirtualMachine", true, loader);
+        }
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        String pid = name.substring(0, name.indexOf('@'));
+
+        Object vm = vmClass.getMethod("attach", String.class).invoke(null, pid);
+        try {
+            Method loadAgent = vmClass.getMethod("loadAgent", String.class);
+            loadAgent.invoke(vm, agentJar.getAbsolutePath());
+        } finally {
+            vmClass.getMethod("detach").invoke(vm);
+        }
+    }
+}
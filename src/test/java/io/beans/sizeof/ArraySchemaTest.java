@@ -0,0 +1,215 @@
+package io.beans.sizeof;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import io.beans.util.SwissArmyKnife;
+
+
+public class ArraySchemaTest {
+
+    private static final Logger LOGGER = SwissArmyKnife.getLogger();
+
+    /**
+     * A budgeted collector visits each element separately.
+     */
+    private static void assertSameAsElementWise(Environment e, Object array) {
+        Collector elementWise = e.createCollector(new Budget());
+        elementWise.measure(array);
+        Collector c = e.createCollector(false);
+        c.measure(array);
+
+        TestGraphs.assertSameStats(elementWise, c);
+        assertEquals(elementWise.memoryUsed(), e.sizeOf(array));
+        assertEquals(elementWise.memoryUsed(), e.createCollectorWith(array).memoryUsed());
+    }
+
+    private static Object[] createSparseTable(int length, int filled, Random r) {
+        Object[] table = new Object[length];
+        for (int i = 0; i < filled; i++) {
+            table[r.nextInt(length)] = new SizeOfTest.Chain();
+        }
+        return table;
+    }
+
+    @Test
+    public void sparseTableTest() {
+        Environment e = SizeOf.createEnvironment();
+        Object[] table = createSparseTable(1000000, 1000, new Random(4711));
+        assertSameAsElementWise(e, table);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Collector parallel = e.createParallelCollector(pool);
+            parallel.measure(table);
+            assertEquals(e.sizeOf((Object) table), parallel.memoryUsed());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void finalElementsTest() {
+        Environment e = SizeOf.createEnvironment();
+        Random r = new Random(4711);
+
+        // Small values are cached, and contained many times
+        Integer[] integers = new Integer[20000];
+        Long[] longs = new Long[20000];
+        String[] strings = new String[20000];
+        for (int i = 0; i < integers.length; i++) {
+            if (r.nextInt(10) == 0) continue;
+            integers[i] = r.nextInt(1000) - 500;
+            longs[i] = (long) r.nextInt(1000) - 500;
+            strings[i] = r.nextBoolean() ? "Constant" : "Value " + r.nextInt(1000);
+        }
+
+        assertSameAsElementWise(e, integers);
+        assertSameAsElementWise(e, longs);
+        assertSameAsElementWise(e, strings);
+        assertSameAsElementWise(e, new Object[]{integers, longs, strings, integers.clone()});
+    }
+
+    @Test
+    public void chunkedStackTest() {
+        // Each element references the whole rest of the array through its neighbour
+        SizeOfTest.Chain[] chains = new SizeOfTest.Chain[100000];
+        for (int i = 0; i < chains.length; i++) {
+            chains[i] = new SizeOfTest.Chain();
+            if (i > 0) chains[i - 1].next = chains[i];
+        }
+        Environment e = SizeOf.createEnvironment();
+        assertSameAsElementWise(e, chains);
+
+        Collector c = e.createCollector(new Restrictions().setMaxDepth(1));
+        c.measure(chains);
+        assertEquals(chains.length + 1, c.instanceCount());
+    }
+
+    /**
+     * All instances land in the same bucket, so that large hash maps convert it into a tree bin.
+     */
+    private static final class CollidingKey implements Comparable<CollidingKey> {
+        final int value;
+
+        CollidingKey(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public int hashCode() {
+            return 42;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof CollidingKey && ((CollidingKey) obj).value == value;
+        }
+
+        @Override
+        public int compareTo(CollidingKey o) {
+            return Integer.compare(value, o.value);
+        }
+    }
+
+    private static void fill(Map<Object, Object> map, int size, Random r) {
+        for (int i = 0; i < size; i++) {
+            map.put(r.nextInt(size * 4), r.nextBoolean() ? new SizeOfTest.Chain() : "Value " + r.nextInt(100));
+        }
+        for (int i = 0; i < 20; i++) {
+            map.put(new CollidingKey(i), i);
+        }
+    }
+
+    @Test
+    public void bucketTableTest() {
+        Environment e = SizeOf.createEnvironment();
+        Random r = new Random(4711);
+        @SuppressWarnings("unchecked")
+        Map<Object, Object>[] maps = new Map[]{new HashMap<>(), new LinkedHashMap<>(), new Hashtable<>(),
+                new ConcurrentHashMap<>()};
+        for (Map<Object, Object> map : maps) {
+            fill(map, 10000, r);
+            assertSameAsElementWise(e, map);
+        }
+        Set<Integer> set = new HashSet<>();
+        for (int i = 0; i < 10000; i++) {
+            set.add(r.nextInt());
+        }
+        assertSameAsElementWise(e, set);
+
+        // An entry that's referenced from outside is reached first, and its bucket's rest through it
+        Map<Object, Object> map = maps[0];
+        Object[] entries = map.entrySet().toArray();
+        assertSameAsElementWise(e, new Object[]{entries[entries.length / 2], map, entries[0]});
+    }
+
+    // @Test // Long-running test - disabled
+    public void arrayPerformanceTestXX() {
+        Object[] table = createSparseTable(100000000, 100000, new Random(4711));
+        Integer[] integers = new Integer[5000000];
+        for (int i = 0; i < integers.length; i++) {
+            integers[i] = i;
+        }
+        Environment e = SizeOf.createEnvironment();
+
+        for (Object array : new Object[]{table, integers}) {
+            for (int round = 0; round < 5; round++) {
+                long nanoStart = System.nanoTime();
+                long size = e.sizeOf(array);
+                long nanoMiddle = System.nanoTime();
+                Collector c = e.createCollector(false);
+                c.measure(array);
+                long nanoEnd = System.nanoTime();
+
+                assertEquals(size, c.memoryUsed());
+                LOGGER.log(Level.INFO, "{0}: sizeOf() took {1}, collector took {2}",
+                        new Object[]{array.getClass().getSimpleName(),
+                                SwissArmyKnife.durationAsString(nanoMiddle - nanoStart, TimeUnit.MILLISECONDS),
+                                SwissArmyKnife.durationAsString(nanoEnd - nanoMiddle, TimeUnit.MILLISECONDS)});
+            }
+        }
+    }
+
+    // @Test // Long-running test - disabled
+    public void hashMapPerformanceTestXX() {
+        Map<Object, Object> map = new HashMap<>();
+        ConcurrentHashMap<Object, Object> concurrent = new ConcurrentHashMap<>();
+        for (int i = 0; i < 2000000; i++) {
+            map.put(i, "Value " + i);
+            concurrent.put(i, i);
+        }
+        Environment e = SizeOf.createEnvironment();
+
+        for (Object m : new Object[]{map, concurrent}) {
+            for (int round = 0; round < 5; round++) {
+                long nanoStart = System.nanoTime();
+                long size = e.sizeOf(m);
+                long nanoMiddle = System.nanoTime();
+                Collector c = e.createCollector(false);
+                c.measure(m);
+                long nanoEnd = System.nanoTime();
+
+                assertEquals(size, c.memoryUsed());
+                LOGGER.log(Level.INFO, "{0}: sizeOf() took {1}, collector took {2}",
+                        new Object[]{m.getClass().getSimpleName(),
+                                SwissArmyKnife.durationAsString(nanoMiddle - nanoStart, TimeUnit.MILLISECONDS),
+                                SwissArmyKnife.durationAsString(nanoEnd - nanoMiddle, TimeUnit.MILLISECONDS)});
+            }
+        }
+    }
+}
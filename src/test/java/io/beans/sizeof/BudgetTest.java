@@ -0,0 +1,96 @@
+package io.beans.sizeof;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+public class BudgetTest {
+
+    @Test
+    public void unlimitedTest() {
+        Object[] roots = TestGraphs.createGraph(10000, 42);
+        Environment e = SizeOf.createEnvironment();
+        Collector c = e.createCollector(new Budget());
+        c.measure(roots);
+
+        assertFalse(c.isPartial());
+        assertEquals(0, c.unexploredReferences());
+        assertEquals(e.sizeOf((Object) roots), c.memoryUsed());
+    }
+
+    @Test
+    public void instanceLimitTest() {
+        Object[] roots = TestGraphs.createGraph(10000, 42);
+        Environment e = SizeOf.createEnvironment();
+        Collector c = e.createCollector(new Budget().setMaxInstances(1000));
+        c.measure(roots);
+
+        assertTrue(c.isPartial());
+        assertTrue(c.unexploredReferences() > 0);
+        assertEquals(1000, c.instanceCount());
+        assertTrue(c.memoryUsed() < e.sizeOf((Object) roots));
+        assertTrue(SizeOf.printStats(c).contains("partial"));
+
+        // Further roots are not measured any more
+        long unexplored = c.unexploredReferences();
+        c.measure(new Object());
+        assertEquals(1000, c.instanceCount());
+        assertEquals(unexplored + 1, c.unexploredReferences());
+    }
+
+    @Test
+    public void wideArrayTest() {
+        Object[] array = new Object[100000];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = new Object();
+        }
+        Collector c = SizeOf.createEnvironment().createCollector(new Budget().setMaxInstances(10));
+        c.measure(array);
+
+        // The array's elements are only counted as long as the budget lasts
+        assertEquals(10, c.instanceCount());
+        assertEquals(array.length - 9, c.unexploredReferences());
+    }
+
+    @Test
+    public void repeatedReferencesTest() {
+        // Few instances, but many references to walk
+        Object[] same = new Object[1000000];
+        Arrays.fill(same, new Object());
+        Object[][] roots = new Object[100][];
+        Arrays.fill(roots, same);
+
+        Collector c = SizeOf.createEnvironment().createCollector(new Budget().setTimeLimit(0, TimeUnit.SECONDS));
+        c.measure(roots);
+        assertTrue(c.isPartial());
+        assertEquals(3, c.instanceCount());
+        assertTrue(c.unexploredReferences() >= same.length - 4096);
+    }
+
+    @Test
+    public void timeAndOverheadLimitTest() {
+        SizeOfTest.Chain head = null;
+        for (int i = 0; i < 1000000; i++) {
+            SizeOfTest.Chain c = new SizeOfTest.Chain();
+            c.next = head;
+            head = c;
+        }
+
+        Collector c = SizeOf.createEnvironment().createCollector(new Budget().setTimeLimit(0, TimeUnit.SECONDS));
+        c.measure(head);
+        assertTrue(c.isPartial());
+        assertTrue(c.instanceCount() < 1000000);
+
+        c = SizeOf.createEnvironment().createCollector(new Budget().setMaxOverhead(64 * 1024));
+        c.measure(head);
+        assertTrue(c.isPartial());
+        assertTrue(c.instanceCount() < 1000000);
+        assertEquals(1, c.unexploredReferences());
+    }
+}
@@ -0,0 +1,117 @@
+package io.beans.sizeof;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.Random;
+
+import org.junit.Test;
+
+
+public class DominatorTreeTest {
+
+    static class Holder {
+        Object first, second;
+
+        Holder(Object first, Object second) {
+            this.first = first;
+            this.second = second;
+        }
+    }
+
+    @Test
+    public void simpleTreeTest() {
+        Date shared = new Date();
+        Date own = new Date();
+        Holder a = new Holder(own, shared);
+        Holder b = new Holder(shared, null);
+        Holder root = new Holder(a, b);
+
+        Environment e = SizeOf.createEnvironment();
+        long holderSize = SizeOf.shallowSizeOf(root);
+        long dateSize = SizeOf.shallowSizeOf(own);
+
+        Collector c = e.createCollectorWith(root);
+        assertEquals(c.memoryUsed(), c.retainedSize(root));
+        assertEquals(holderSize + dateSize, c.retainedSize(a));
+        assertEquals(holderSize, c.retainedSize(b));
+        assertEquals(dateSize, c.retainedSize(shared));
+        assertEquals(0, c.retainedSize(new Date()));
+
+        // The root retains all holders, the shared date is retained by the root only
+        assertEquals(c.memoryUsed(), c.statsFor(Holder.class).retainedSize());
+        assertEquals(2 * dateSize, c.statsFor(Date.class).retainedSize());
+
+        // Without the root, nothing retains the shared date alone
+        c = e.createCollectorWith(a, b);
+        assertEquals(holderSize + dateSize, c.retainedSize(a));
+        assertEquals(dateSize, c.retainedSize(shared));
+        assertEquals(2 * holderSize + dateSize, c.statsFor(Holder.class).retainedSize());
+
+        c = e.createCollector(false);
+        c.measure(root);
+        assertEquals(0, c.retainedSize(root));
+    }
+
+    @Test
+    public void measuredAgainTest() {
+        Holder b = new Holder(null, null);
+        Holder a = new Holder(b, null);
+        Environment e = SizeOf.createEnvironment();
+        long holderSize = SizeOf.shallowSizeOf(a);
+
+        Collector c = e.createCollectorWith(a);
+        assertEquals(2 * holderSize, c.retainedSize(a));
+        // Adds a root, but no node
+        c.measure(b);
+        assertEquals(holderSize, c.retainedSize(a));
+        assertEquals(e.createCollectorWith(a, b).retainedSize(a), c.retainedSize(a));
+        assertEquals(2 * holderSize, c.statsFor(Holder.class).retainedSize());
+    }
+
+    @Test
+    public void deepChainTest() {
+        int length = 2000000;
+        SizeOfTest.Chain[] chain = new SizeOfTest.Chain[length];
+        SizeOfTest.Chain head = null;
+        for (int i = length - 1; i >= 0; i--) {
+            SizeOfTest.Chain c = new SizeOfTest.Chain();
+            c.next = head;
+            chain[i] = head = c;
+        }
+
+        long chainSize = SizeOf.shallowSizeOf(head);
+        Collector c = SizeOf.createEnvironment().createCollectorWith(head);
+        chain[length - 1].next = head; // Make it a ring, that doesn't change the measurement any more
+        for (int i = 0; i < length; i += 99999) {
+            assertEquals((length - i) * chainSize, c.retainedSize(chain[i]));
+        }
+        assertEquals(length * chainSize, c.statsFor(SizeOfTest.Chain.class).retainedSize());
+    }
+
+    @Test
+    public void compareWithMarkingAsGlobalTest() {
+        Random r = new Random(4711);
+        for (int seed = 0; seed < 3; seed++) {
+            Object[] roots = TestGraphs.createGraph(2000, seed);
+            Collector c = SizeOf.createEnvironment().createCollectorWith(roots);
+            TestGraphs.Node[] nodes = (TestGraphs.Node[]) roots[0];
+
+            for (int i = 0; i < 30; i++) {
+                TestGraphs.Node n = nodes[r.nextInt(nodes.length)];
+                // If n wasn't there, everything it retains would be gone
+                Environment withoutN = SizeOf.createEnvironment().addGlobalInstance(n);
+                long remaining = withoutN.sizeOf(roots);
+                assertEquals(c.memoryUsed() - remaining, c.retainedSize(n));
+            }
+
+            long sum = 0;
+            for (RetainedClassStats<?> cs : c.stats()) {
+                assertTrue(cs.retainedSize() <= cs.totalSize());
+                sum += cs.retainedSize();
+            }
+            assertTrue(sum >= c.memoryUsed());
+        }
+    }
+}
@@ -0,0 +1,705 @@
+package io.beans.sizeof;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import io.beans.util.SwissArmyKnife;
+
+
+public class EnvironmentTest {
+
+    private static final Logger LOGGER = SwissArmyKnife.getLogger();
+
+    private static final int THREADS = 8;
+
+    static class WithConstant {
+        static final long[] CONSTANT = new long[100];
+
+        Object ref = CONSTANT;
+
+        Object own = new long[10];
+    }
+
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface Shared {
+    }
+
+    @Retention(RetentionPolicy.RUNTIME)
+    @Shared
+    @interface Cached {
+    }
+
+    interface Service {
+    }
+
+    @Cached
+    interface CachedService extends Service {
+    }
+
+    static class ServiceImpl implements CachedService {
+    }
+
+    static class Holder {
+        @Shared
+        Object shared = new long[100];
+
+        Service service = new ServiceImpl();
+
+        Object own = new long[10];
+    }
+
+    static class Token {
+        long value;
+    }
+
+    static class WithRegistry {
+        static final Map<String, Object> REGISTRY = new HashMap<>();
+
+        static {
+            REGISTRY.put("values", new ArrayList<>(Arrays.asList(new long[20], new Token())));
+            REGISTRY.put("constant", new WithConstant());
+        }
+    }
+
+    static class WithLargeRegistry {
+        static final Map<Integer, Object> REGISTRY = new HashMap<>();
+
+        static final Map<Integer, Object> VIEW = Collections.unmodifiableMap(REGISTRY);
+
+        static {
+            for (int i = 0; i < 500000; i++) {
+                REGISTRY.put(i, new Object[]{new long[4], "Value " + i});
+            }
+        }
+    }
+
+    /**
+     * Many different classes, including arrays of up to three dimensions.
+     */
+    private static List<Class<?>> createClasses() {
+        Class<?>[] base = {Object.class, String.class, Integer.class, Long.class, HashMap.class, TreeMap.class,
+                LinkedList.class, ArrayList.class, ConcurrentHashMap.class, Rectangle.class, Random.class,
+                TestGraphs.Node.class, SizeOfTest.Chain.class, LayoutBackendTest.Mixed.class,
+                LayoutBackendTest.MixedChild.class, WithConstant.class, int.class, long.class, byte.class,
+                char.class};
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> c : base) {
+            Class<?> type = c;
+            for (int dimensions = 0; dimensions < 4; dimensions++) {
+                if (!type.isPrimitive()) classes.add(type);
+                type = Array.newInstance(type, 0).getClass();
+            }
+        }
+        return classes;
+    }
+
+    private static <T> List<T> runConcurrently(List<Callable<T>> tasks) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            List<Future<T>> futures = new ArrayList<>();
+            for (final Callable<T> task : tasks) {
+                futures.add(executor.submit(new Callable<T>() {
+
+                    @Override
+                    public T call() throws Exception {
+                        start.await();
+                        return task.call();
+                    }
+                }));
+            }
+            start.countDown();
+            List<T> results = new ArrayList<>();
+            for (Future<T> f : futures) {
+                results.add(f.get(1, TimeUnit.MINUTES));
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void concurrentSchemaTest() throws Exception {
+        final Environment e = SizeOf.createEnvironment();
+        final List<Class<?>> classes = createClasses();
+        // Static values are only registered if the class is initialized
+        assertEquals(100, WithConstant.CONSTANT.length);
+        List<Callable<Map<Class<?>, ClassSchema<?>>>> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            tasks.add(new Callable<Map<Class<?>, ClassSchema<?>>>() {
+
+                @Override
+                public Map<Class<?>, ClassSchema<?>> call() {
+                    List<Class<?>> shuffled = new ArrayList<>(classes);
+                    Collections.shuffle(shuffled, new Random(seed));
+                    Map<Class<?>, ClassSchema<?>> schemas = new HashMap<>();
+                    for (Class<?> c : shuffled) {
+                        schemas.put(c, e.getSchema(c));
+                        // Changes in between must not disturb the lookups
+                        Object g = new Object();
+                        e.addGlobalInstance(g);
+                        assertTrue(e.isGlobal(g));
+                    }
+                    return schemas;
+                }
+            });
+        }
+
+        List<Map<Class<?>, ClassSchema<?>>> results = runConcurrently(tasks);
+        for (Class<?> c : classes) {
+            ClassSchema<?> expected = e.getSchema(c);
+            for (Map<Class<?>, ClassSchema<?>> schemas : results) {
+                assertSame(c.getName(), expected, schemas.get(c));
+            }
+        }
+        // The statics were registered before any thread could use the schema
+        assertTrue(e.isGlobal(WithConstant.CONSTANT));
+    }
+
+    @Test
+    public void globalClassificationTest() {
+        Environment e = SizeOf.createEnvironment();
+        Holder holder = new Holder();
+        long fullSize = e.sizeOf(holder);
+        assertFalse(e.isGlobalClass(ServiceImpl.class));
+        assertFalse(e.isGlobal(holder.service));
+
+        e.addGlobalAnnotation(Shared.class);
+        assertTrue(e.isGlobalClass(ServiceImpl.class));
+        assertTrue(e.isGlobalClass(CachedService.class));
+        assertFalse(e.isGlobalClass(Service.class));
+
+        Environment annotated = SizeOf.createEnvironment().addGlobalAnnotation(Shared.class);
+        long withoutGlobals = annotated.sizeOf(holder);
+        assertEquals(fullSize - SizeOf.sizeOf(holder.shared) - SizeOf.sizeOf(holder.service), withoutGlobals);
+
+        Environment typed = SizeOf.createEnvironment();
+        assertFalse(typed.isGlobalClass(ServiceImpl.class));
+        typed.addGlobalType(Service.class);
+        assertTrue(typed.isGlobalClass(ServiceImpl.class));
+        assertTrue(typed.isGlobal(holder.service));
+        assertFalse(typed.isGlobalClass(Holder.class));
+    }
+
+    @Test
+    public void weakGlobalsTest() throws InterruptedException {
+        Environment e = SizeOf.createEnvironment();
+        Token kept = new Token();
+        Token discarded = new Token();
+        e.addGlobalInstance(kept).addGlobalInstance(discarded);
+        assertTrue(e.isGlobal(kept));
+        assertTrue(e.isGlobal(discarded));
+        assertFalse(e.isGlobal(new Token()));
+        assertEquals(2, e.getGlobalInstances(Token.class).length);
+
+        Object[] root = {kept, new Token(), new Token()};
+        long expectedSize = SizeOf.createEnvironment().sizeOf((Object) root) - SizeOf.sizeOf(kept);
+        assertEquals(expectedSize, e.sizeOf((Object) root));
+        Collector c = e.createCollector();
+        c.measure(root);
+        assertEquals(expectedSize, c.memoryUsed());
+        assertEquals(2, c.statsFor(Token.class).instanceCount());
+
+        WeakReference<Token> probe = new WeakReference<>(discarded);
+        discarded = null;
+        for (int i = 0; i < 20 && probe.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(probe.get());
+        assertEquals(1, e.getGlobalInstances(Token.class).length);
+        assertTrue(e.isGlobal(kept));
+    }
+
+    @Test
+    public void lazyStaticTreeTest() {
+        // Static values are only registered if the class is initialized
+        List<?> values = (List<?>) WithRegistry.REGISTRY.get("values");
+        Environment e = SizeOf.createEnvironment();
+        e.register(WithRegistry.class);
+        Object[] root = {values.get(0), new long[20], new Token(), WithConstant.CONSTANT};
+        Environment reference = SizeOf.createEnvironment().setStaticFieldPolicy(StaticFieldPolicy.NOTHING);
+        long expectedSize = reference.sizeOf((Object) root) - reference.sizeOf(values.get(0))
+                - reference.sizeOf((Object) WithConstant.CONSTANT);
+
+        // Found before the whole tree is walked
+        assertTrue(e.isGlobal(values.get(0)));
+        assertFalse(e.isGlobal(root[2]));
+        assertTrue(e.isGlobal(values.get(1)));
+        // The classes in the tree got their statics registered as well
+        assertTrue(e.isGlobal(WithConstant.CONSTANT));
+        assertEquals(expectedSize, e.sizeOf((Object) root));
+
+        // Each kind of traversal walks the tree on its own first lookup
+        assertEquals(expectedSize, SizeOf.createEnvironment().register(WithRegistry.class).sizeOf((Object) root));
+        Collector c = SizeOf.createEnvironment().register(WithRegistry.class).createCollector();
+        c.measure(root);
+        assertEquals(expectedSize, c.memoryUsed());
+        IncrementalCollector ic = SizeOf.createEnvironment().register(WithRegistry.class)
+                .createIncrementalCollector();
+        ic.measure(root);
+        assertEquals(expectedSize, ic.memoryUsed());
+    }
+
+    @Test
+    public void schemaCacheTest() {
+        Environment e = SizeOf.createEnvironment().setStaticFieldPolicy(StaticFieldPolicy.NOTHING)
+                .setRecordSchemaStatistics(true).setMaxSchemas(10);
+        List<Class<?>> classes = createClasses();
+        ClassSchema<?> frequent = e.getSchema(Holder.class);
+        for (Class<?> c : classes) {
+            e.getSchema(c);
+            // Used between all others, so it always gets another chance
+            assertSame(frequent, e.getSchema(Holder.class));
+        }
+        SchemaCacheStats stats = e.getSchemaCacheStats();
+        assertTrue(stats.toString(), stats.schemaCount() <= 10);
+        assertEquals(stats.toString(), stats.missCount() - stats.schemaCount(), stats.evictionCount());
+        assertEquals(stats.toString(), classes.size(), stats.hitCount());
+
+        // Evicted schemas are created again
+        ClassSchema<?> first = e.getSchema(classes.get(0));
+        assertEquals(first.shallowSize(null), SizeOf.createEnvironment().getSchema(classes.get(0)).shallowSize(null));
+        assertEquals(stats.missCount() + 1, e.getSchemaCacheStats().missCount());
+
+        e.setMaxSchemas(1);
+        assertEquals(1, e.getSchemaCacheStats().schemaCount());
+        e.setMaxSchemas(0);
+        for (Class<?> c : classes) {
+            e.getSchema(c);
+        }
+        // Maybe together with the one that was left
+        assertTrue(e.getSchemaCacheStats().schemaCount() >= classes.size());
+        assertTrue(e.getSchemaCacheStats().hitRate() < 1.0);
+    }
+
+    @Test
+    public void classUnloadingTest() throws Exception {
+        Environment e = SizeOf.createEnvironment();
+        int schemas = e.getSchemaCacheStats().schemaCount();
+        URL classes = Token.class.getProtectionDomain().getCodeSource().getLocation();
+        ClassLoader loader = new URLClassLoader(new URL[]{classes}, null);
+        Class<?> tokenClass = loader.loadClass(Token.class.getName());
+        assertNotSame(Token.class, tokenClass);
+        Constructor<?> constructor = tokenClass.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        Object token = constructor.newInstance();
+        assertEquals(SizeOf.sizeOf(new Token()), e.sizeOf(token));
+        e.addGlobalInstance(token);
+        assertEquals(schemas + 1, e.getSchemaCacheStats().schemaCount());
+
+        WeakReference<ClassLoader> probe = new WeakReference<>(loader);
+        loader = null;
+        tokenClass = null;
+        constructor = null;
+        token = null;
+        for (int i = 0; i < 20 && probe.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(probe.get());
+        assertEquals(schemas, e.getSchemaCacheStats().schemaCount());
+    }
+
+    @Test
+    public void schemaStoreTest() throws IOException {
+        File file = File.createTempFile("schemas", ".bin");
+        file.deleteOnExit();
+        Object[] roots = {new Holder(), new WithConstant(), new Rectangle(1, 2, 3, 4),
+                new TestGraphs.Node(), new HashMap<>(Collections.singletonMap("a", 1L))};
+        Environment first = SizeOf.createEnvironment().addGlobalAnnotation(Shared.class);
+        first.register(ServiceImpl.class);
+        long size = first.sizeOf(roots);
+        first.saveSchemas(file);
+
+        Environment second = SizeOf.createEnvironment().addGlobalAnnotation(Shared.class);
+        int loaded = second.loadSchemas(file);
+        assertTrue(loaded > 0);
+        assertEquals(first.getSchema(Holder.class).toString(), second.getSchema(Holder.class).toString());
+        assertEquals(1, second.getSchemaCacheStats().restoredCount());
+        assertTrue(second.isGlobalClass(ServiceImpl.class));
+        assertEquals(size, second.sizeOf(roots));
+        assertTrue(second.getSchemaCacheStats().restoredCount() > 1);
+
+        // Layouts that were loaded, but not used, are saved again
+        File copy = File.createTempFile("schemas", ".bin");
+        copy.deleteOnExit();
+        Environment third = SizeOf.createEnvironment().addGlobalAnnotation(Shared.class);
+        third.loadSchemas(file);
+        third.saveSchemas(copy);
+        assertEquals(loaded, SizeOf.createEnvironment().addGlobalAnnotation(Shared.class).loadSchemas(copy));
+
+        // Another configuration ignores the whole file, and changing it drops the loaded layouts
+        assertEquals(0, SizeOf.createEnvironment().loadSchemas(file));
+        Environment changed = SizeOf.createEnvironment().addGlobalAnnotation(Shared.class);
+        assertEquals(loaded, changed.loadSchemas(file));
+        changed.addGlobalType(Token.class);
+        assertEquals(size, changed.sizeOf(roots));
+        assertEquals(0, changed.getSchemaCacheStats().restoredCount());
+
+        // A changed class file hash rejects the entry
+        byte[] content = Files.readAllBytes(file.toPath());
+        byte[] name = Holder.class.getName().getBytes("UTF-8");
+        int holder = indexOf(content, name, 0);
+        content[holder + name.length + 8] ^= 1;
+        Files.write(copy.toPath(), content);
+        Environment stale = SizeOf.createEnvironment().addGlobalAnnotation(Shared.class);
+        assertEquals(loaded, stale.loadSchemas(copy));
+        stale.getSchema(Holder.class);
+        assertEquals(0, stale.getSchemaCacheStats().restoredCount());
+        assertEquals(size, stale.sizeOf(roots));
+
+        // So does a damaged offset, even if it still lies within the instance
+        content = Files.readAllBytes(file.toPath());
+        int own = indexOf(content, new byte[]{0, 0, 0, 3, 'o', 'w', 'n'}, holder) + 7;
+        int service = indexOf(content, new byte[]{0, 0, 0, 7, 's', 'e', 'r', 'v', 'i', 'c', 'e'}, holder) + 11;
+        content[own + 7] = content[service + 7];
+        Files.write(copy.toPath(), content);
+        Environment damaged = SizeOf.createEnvironment().addGlobalAnnotation(Shared.class);
+        assertEquals(loaded, damaged.loadSchemas(copy));
+        assertEquals(size, damaged.sizeOf(roots));
+        assertEquals(first.getSchema(Holder.class).toString(), damaged.getSchema(Holder.class).toString());
+
+        // Damaged and missing files are ignored
+        Files.write(copy.toPath(), Arrays.copyOf(content, content.length / 2));
+        assertEquals(0, SizeOf.createEnvironment().addGlobalAnnotation(Shared.class).loadSchemas(copy));
+        assertTrue(copy.delete());
+        assertEquals(0, SizeOf.createEnvironment().addGlobalAnnotation(Shared.class).loadSchemas(copy));
+    }
+
+    private static int indexOf(byte[] content, byte[] part, int from) {
+        search: for (int i = from; i + part.length <= content.length; i++) {
+            for (int j = 0; j < part.length; j++) {
+                if (content[i + j] != part[j]) continue search;
+            }
+            return i;
+        }
+        throw new AssertionError("Not contained");
+    }
+
+    @Test
+    public void concurrentMeasurementTest() throws Exception {
+        final Object[] graph = TestGraphs.createGraph(2000, 4711);
+        final WithConstant[] withConstants = new WithConstant[50];
+        for (int i = 0; i < withConstants.length; i++) {
+            withConstants[i] = new WithConstant();
+        }
+        final Object root = new Object[]{graph, withConstants};
+
+        Environment single = SizeOf.createEnvironment();
+        final long expectedSize = single.sizeOf(root);
+        Collector expected = single.createCollector(false);
+        expected.measure(root);
+        assertEquals(expected.memoryUsed(), expectedSize);
+
+        final Environment shared = SizeOf.createEnvironment();
+        List<Callable<Collector>> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final boolean counter = t % 2 == 0;
+            tasks.add(new Callable<Collector>() {
+
+                @Override
+                public Collector call() {
+                    if (counter) {
+                        assertEquals(expectedSize, shared.sizeOf(root));
+                        return null;
+                    }
+                    Collector c = shared.createCollector(false);
+                    c.measure(root);
+                    return c;
+                }
+            });
+        }
+        for (Collector c : runConcurrently(tasks)) {
+            if (c != null) TestGraphs.assertSameStats(expected, c);
+        }
+    }
+
+    // @Test // Long-running test - disabled
+    public void classificationPerformanceTestXX() {
+        List<Class<?>> classes = createClasses();
+        // Hundreds of global types that don't match anything
+        List<Class<?>> globalTypes = new ArrayList<>();
+        for (Class<?> c : classes) {
+            Class<?> type = c;
+            for (int dimensions = 0; dimensions < 20; dimensions++) {
+                type = Array.newInstance(type, 0).getClass();
+                if (dimensions >= 16) globalTypes.add(type);
+            }
+        }
+
+        for (int round = 0; round < 5; round++) {
+            long nanoStart = System.nanoTime();
+            long schemas = 0;
+            for (int repeat = 0; repeat < 100; repeat++) {
+                // Without walking the static trees, which would dominate
+                Environment e = SizeOf.createEnvironment().setStaticFieldPolicy(StaticFieldPolicy.NOTHING);
+                for (Class<?> g : globalTypes) {
+                    e.addGlobalType(g);
+                }
+                for (Class<?> c : classes) {
+                    e.getSchema(c);
+                    schemas++;
+                }
+            }
+            long nanoMiddle = System.nanoTime();
+            Environment e = SizeOf.createEnvironment();
+            for (Class<?> g : globalTypes) {
+                e.addGlobalType(g);
+            }
+            long checks = 0;
+            for (int repeat = 0; repeat < 1000; repeat++) {
+                for (Class<?> c : classes) {
+                    if (e.isGlobalClass(c)) throw new AssertionError(c);
+                    checks++;
+                }
+            }
+            long nanoEnd = System.nanoTime();
+
+            LOGGER.log(Level.INFO, "{0} global types: {1} schemas took {2}, {3} checks took {4}",
+                    new Object[]{globalTypes.size(), schemas,
+                            SwissArmyKnife.durationAsString(nanoMiddle - nanoStart, TimeUnit.MILLISECONDS), checks,
+                            SwissArmyKnife.durationAsString(nanoEnd - nanoMiddle, TimeUnit.MILLISECONDS)});
+        }
+    }
+
+    // @Test // Long-running test - disabled
+    public void globalRegistryPerformanceTestXX() throws InterruptedException {
+        Object[] graph = TestGraphs.createGraph(2000, 4711);
+        for (int round = 0; round < 5; round++) {
+            // One million global instances of classes that also occur in the graph
+            Object[] globals = new Object[1000000];
+            for (int i = 0; i < globals.length; i++) {
+                switch (i % 4) {
+                    case 0:
+                        globals[i] = new long[i % 8];
+                        break;
+                    case 1:
+                        globals[i] = new TestGraphs.Node();
+                        break;
+                    case 2:
+                        globals[i] = new ArrayList<>();
+                        break;
+                    default:
+                        globals[i] = new Token();
+                }
+            }
+
+            long nanoStart = System.nanoTime();
+            Environment e = SizeOf.createEnvironment().setStaticFieldPolicy(StaticFieldPolicy.NOTHING);
+            e.addFullGlobalTree(globals);
+            long nanoRegistered = System.nanoTime();
+            long size = 0;
+            for (int repeat = 0; repeat < 100; repeat++) {
+                Collector c = e.createCollector();
+                c.measure(graph);
+                size += c.memoryUsed();
+            }
+            long nanoCollected = System.nanoTime();
+            for (int repeat = 0; repeat < 100; repeat++) {
+                size -= e.sizeOf((Object) graph);
+            }
+            long nanoEnd = System.nanoTime();
+            assertEquals(0, size);
+
+            WeakReference<Object> probe = new WeakReference<>(globals[0]);
+            globals = null;
+            for (int i = 0; i < 20 && probe.get() != null; i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+
+            LOGGER.log(Level.INFO, "{0} globals: registration took {1}, 100 collectors took {2}, "
+                    + "100 size counts took {3}, released: {4}",
+                    new Object[]{1000000,
+                            SwissArmyKnife.durationAsString(nanoRegistered - nanoStart, TimeUnit.MILLISECONDS),
+                            SwissArmyKnife.durationAsString(nanoCollected - nanoRegistered, TimeUnit.MILLISECONDS),
+                            SwissArmyKnife.durationAsString(nanoEnd - nanoCollected, TimeUnit.MILLISECONDS),
+                            probe.get() == null});
+        }
+    }
+
+    /**
+     * Loads all classes of this project again with a new class loader, so that nothing about them is cached yet.
+     */
+    private static List<Class<?>> loadFreshClasses() throws Exception {
+        URL[] locations = {Environment.class.getProtectionDomain().getCodeSource().getLocation(),
+                Token.class.getProtectionDomain().getCodeSource().getLocation()};
+        ClassLoader loader = new URLClassLoader(locations, null);
+        List<Class<?>> classes = new ArrayList<>();
+        for (URL location : locations) {
+            File root = new File(location.toURI());
+            collectClasses(root, root.getPath().length() + 1, loader, classes);
+        }
+        return classes;
+    }
+
+    private static void collectClasses(File dir, int prefix, ClassLoader loader, List<Class<?>> classes) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            String path = f.getPath();
+            if (f.isDirectory()) {
+                collectClasses(f, prefix, loader, classes);
+            } else if (path.endsWith(".class")) {
+                String name = path.substring(prefix, path.length() - 6).replace(File.separatorChar, '.');
+                try {
+                    Class<?> c = Class.forName(name, false, loader);
+                    // Resolves the field types, which may be missing without the test libraries
+                    c.getDeclaredFields();
+                    if (!c.isInterface() && !c.isAnnotation()) classes.add(c);
+                } catch (ClassNotFoundException | LinkageError ex) {
+                    // Skipped
+                }
+            }
+        }
+    }
+
+    // @Test // Long-running test - disabled
+    public void schemaStorePerformanceTestXX() throws Exception {
+        File file = File.createTempFile("schemas", ".bin");
+        file.deleteOnExit();
+        Environment e = SizeOf.createEnvironment().setStaticFieldPolicy(StaticFieldPolicy.NOTHING);
+        for (Class<?> c : loadFreshClasses()) {
+            e.getSchema(c);
+        }
+        e.saveSchemas(file);
+
+        for (int round = 0; round < 10; round++) {
+            // New copies of the classes each time, since the first reflection on a class is the expensive one
+            List<Class<?>> classes = loadFreshClasses();
+            System.gc();
+            long nanoStart = System.nanoTime();
+            e = SizeOf.createEnvironment().setStaticFieldPolicy(StaticFieldPolicy.NOTHING);
+            for (Class<?> c : classes) {
+                e.getSchema(c);
+            }
+            long nanoCalculated = System.nanoTime();
+
+            classes = loadFreshClasses();
+            System.gc();
+            long nanoLoading = System.nanoTime();
+            e = SizeOf.createEnvironment().setStaticFieldPolicy(StaticFieldPolicy.NOTHING);
+            int loaded = e.loadSchemas(file);
+            for (Class<?> c : classes) {
+                e.getSchema(c);
+            }
+            long nanoEnd = System.nanoTime();
+
+            LOGGER.log(Level.INFO, "{0} classes: calculating the schemas took {1} ms, restoring {2} of {3} "
+                    + "loaded layouts took {4} ms", new Object[]{classes.size(),
+                    String.format("%.2f", (nanoCalculated - nanoStart) / 1e6),
+                    e.getSchemaCacheStats().restoredCount(), loaded,
+                    String.format("%.2f", (nanoEnd - nanoLoading) / 1e6)});
+        }
+    }
+
+    // @Test // Long-running test - disabled
+    public void staticRegistrationPerformanceTestXX() {
+        Object[] graph = TestGraphs.createGraph(2000, 4711);
+        long expected = WithLargeRegistry.REGISTRY.size();
+        for (int round = 0; round < 5; round++) {
+            long nanoStart = System.nanoTime();
+            Environment e = SizeOf.createDefaultEnvironment();
+            long nanoCreated = System.nanoTime();
+            e.register(WithLargeRegistry.class);
+            long nanoRegistered = System.nanoTime();
+            long size = e.sizeOf((Object) graph);
+            long nanoMeasured = System.nanoTime();
+            size -= e.sizeOf((Object) graph);
+            long nanoEnd = System.nanoTime();
+            assertEquals(0, size);
+            assertTrue(e.isGlobal(WithLargeRegistry.REGISTRY.get((int) expected - 1)));
+
+            LOGGER.log(Level.INFO, "{0} static values: creating the default environment took {1}, registration "
+                    + "took {2}, the first measurement took {3}, the second one took {4}",
+                    new Object[]{expected,
+                            SwissArmyKnife.durationAsString(nanoCreated - nanoStart, TimeUnit.MILLISECONDS),
+                            SwissArmyKnife.durationAsString(nanoRegistered - nanoCreated, TimeUnit.MILLISECONDS),
+                            SwissArmyKnife.durationAsString(nanoMeasured - nanoRegistered, TimeUnit.MILLISECONDS),
+                            SwissArmyKnife.durationAsString(nanoEnd - nanoMeasured, TimeUnit.MILLISECONDS)});
+        }
+    }
+
+    // @Test // Long-running test - disabled
+    public void schemaLookupPerformanceTestXX() throws Exception {
+        final Environment e = SizeOf.createEnvironment();
+        final List<Class<?>> classes = createClasses();
+        final Class<?>[] lookups = new Class<?>[1 << 16];
+        Random r = new Random(4711);
+        for (int i = 0; i < lookups.length; i++) {
+            lookups[i] = classes.get(r.nextInt(classes.size()));
+        }
+
+        for (int round = 0; round < 5; round++) {
+            for (int threads = 1; threads <= THREADS; threads <<= 1) {
+                List<Callable<Long>> tasks = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    tasks.add(new Callable<Long>() {
+
+                        @Override
+                        public Long call() {
+                            long nanoStart = System.nanoTime();
+                            long dummy = 0;
+                            for (int repeat = 0; repeat < 100; repeat++) {
+                                for (Class<?> c : lookups) {
+                                    dummy += e.getSchema(c).hashCode();
+                                }
+                            }
+                            long nanos = System.nanoTime() - nanoStart;
+                            return dummy == 42 ? -1 : nanos;
+                        }
+                    });
+                }
+                long nanos = 0;
+                for (long n : runConcurrently(tasks)) {
+                    nanos = Math.max(nanos, n);
+                }
+                long lookupCount = 100L * lookups.length * threads;
+
+                LOGGER.log(Level.INFO, "{0} threads: {1} lookups took {2}, {3} ns per lookup and thread",
+                        new Object[]{threads, lookupCount,
+                                SwissArmyKnife.durationAsString(nanos, TimeUnit.MILLISECONDS),
+                                String.format("%.1f", (double) nanos * threads / lookupCount)});
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package io.beans.sizeof;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import io.beans.util.SwissArmyKnife;
+
+
+public class EstimatingCollectorTest {
+
+    private static final Logger LOGGER = SwissArmyKnife.getLogger();
+
+    private static void assertWithin(Estimate estimate, long exact) {
+        // Twice the 95% interval, so that this test practically never fails by chance
+        long slack = estimate.upperBound() - estimate.value();
+        String message = estimate + " should contain " + exact;
+        assertTrue(message, estimate.value() - 2 * slack <= exact);
+        assertTrue(message, exact <= estimate.value() + 2 * slack);
+    }
+
+    @Test
+    public void smallGraphIsExactTest() {
+        Object[] roots = TestGraphs.createGraph(1000, 42);
+        Environment e = SizeOf.createEnvironment();
+        Collector c = e.createEstimatingCollector(0.01, 1000);
+        c.measure(roots);
+
+        Estimate estimate = c.memoryEstimate();
+        assertTrue(estimate.isExact());
+        assertEquals(e.sizeOf((Object) roots), estimate.value());
+        assertEquals(estimate.value(), c.memoryUsed());
+    }
+
+    @Test
+    public void largeMapTest() {
+        Random r = new Random(4711);
+        Map<Integer, Object> map = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            map.put(i, r.nextBoolean() ? "Value " + i : new long[r.nextInt(16)]);
+        }
+        Environment e = SizeOf.createEnvironment();
+        long exact = e.sizeOf(map);
+
+        Collector c = e.createEstimatingCollector(0.02, 20000);
+        c.measure(map);
+        Estimate estimate = c.memoryEstimate();
+        assertWithin(estimate, exact);
+        assertTrue(estimate.toString(), estimate.upperBound() - estimate.lowerBound() <= exact / 20);
+        // The table has 262144 slots, only a fraction of them was visited
+        assertTrue(c.statsFor(Integer.class).instanceCount() <= 20000);
+    }
+
+    @Test
+    public void nestedListsTest() {
+        Random r = new Random(4711);
+        List<List<String>> lists = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            int size = r.nextInt(500);
+            List<String> list = new ArrayList<>(size);
+            for (int j = 0; j < size; j++) {
+                list.add("Element " + j);
+            }
+            lists.add(list);
+        }
+        Environment e = SizeOf.createEnvironment();
+        long exact = e.sizeOf(lists);
+
+        Collector c = e.createEstimatingCollector(0.05, 100);
+        c.measure(lists);
+        Estimate estimate = c.memoryEstimate();
+        assertWithin(estimate, exact);
+        assertTrue(estimate.toString(), !estimate.isExact());
+    }
+
+    static class Link {
+        Link next;
+
+        long payload;
+    }
+
+    @Test
+    public void linkedElementsTest() {
+        Link[] links = new Link[100000];
+        for (int i = links.length - 1; i >= 0; i--) {
+            links[i] = new Link();
+            if (i + 1 < links.length) links[i].next = links[i + 1];
+        }
+        Map<Integer, String> linkedMap = new LinkedHashMap<>();
+        List<Integer> linkedList = new LinkedList<>();
+        for (int i = 0; i < 100000; i++) {
+            linkedMap.put(i, "Value " + i);
+            linkedList.add(i);
+        }
+        Environment e = SizeOf.createEnvironment();
+
+        for (Object root : new Object[]{links, linkedMap, linkedList}) {
+            long exact = e.sizeOf(root);
+            Collector c = e.createEstimatingCollector(0.02, 1000);
+            c.measure(root);
+            Estimate estimate = c.memoryEstimate();
+            String message = estimate + " should contain " + exact;
+            assertTrue(message, estimate.lowerBound() <= exact && exact <= estimate.upperBound());
+            // Not just by a huge interval
+            assertTrue(message, estimate.upperBound() - estimate.lowerBound() <= exact / 20);
+        }
+    }
+
+    // @Test // Long-running test - disabled
+    public void estimationPerformanceTestXX() {
+        Map<Integer, Object> map = new HashMap<>();
+        for (int i = 0; i < 5000000; i++) {
+            map.put(i, "Value " + i);
+        }
+        Environment e = SizeOf.createEnvironment();
+
+        for (int round = 0; round < 5; round++) {
+            long nanoStart = System.nanoTime();
+            long exact = e.sizeOf(map);
+            long nanoMiddle = System.nanoTime();
+            Collector c = e.createEstimatingCollector(0.01, 10000);
+            c.measure(map);
+            long nanoEnd = System.nanoTime();
+
+            LOGGER.log(Level.INFO, "Exact size {0} took {1}, estimated {2} took {3}",
+                    new Object[]{exact, SwissArmyKnife.durationAsString(nanoMiddle - nanoStart, TimeUnit.MILLISECONDS),
+                            c.memoryEstimate(), SwissArmyKnife.durationAsString(nanoEnd - nanoMiddle, TimeUnit.MILLISECONDS)});
+        }
+    }
+}
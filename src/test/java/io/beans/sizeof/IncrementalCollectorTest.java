@@ -0,0 +1,235 @@
+package io.beans.sizeof;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import io.beans.util.SwissArmyKnife;
+
+
+public class IncrementalCollectorTest {
+
+    private static final Logger LOGGER = SwissArmyKnife.getLogger();
+
+    /**
+     * Changes some references within a graph from TestGraphs.createGraph().
+     */
+    @SuppressWarnings("unchecked")
+    private static void mutate(Object[] roots, Random r, int changes) {
+        TestGraphs.Node[] nodes = (TestGraphs.Node[]) roots[0];
+        Map<String, TestGraphs.Node> map = (Map<String, TestGraphs.Node>) roots[1];
+        List<Object> list = (List<Object>) roots[2];
+        for (int i = 0; i < changes; i++) {
+            TestGraphs.Node n = nodes[r.nextInt(nodes.length)];
+            switch (r.nextInt(6)) {
+                case 0:
+                    n.left = null;
+                    break;
+                case 1:
+                    n.right = new TestGraphs.Node();
+                    n.right.payload = "New " + i;
+                    break;
+                case 2:
+                    n.payload = new long[r.nextInt(8)];
+                    break;
+                case 3:
+                    map.put("Key " + r.nextInt(nodes.length), n);
+                    break;
+                case 4:
+                    if (!list.isEmpty()) list.remove(r.nextInt(list.size()));
+                    break;
+                default:
+                    // Detaches a node and everything only reachable through it
+                    nodes[r.nextInt(nodes.length)] = new TestGraphs.Node();
+            }
+        }
+    }
+
+    private static Collector measureFromScratch(Environment env, Object[] roots) {
+        Collector c = env.createCollector(false);
+        for (Object root : roots) {
+            c.measure(root);
+        }
+        return c;
+    }
+
+    @Test
+    public void sameAsFreshCollectorTest() {
+        Random r = new Random(4711);
+        for (int seed = 0; seed < 3; seed++) {
+            Environment env = SizeOf.createEnvironment();
+            Object[] roots = TestGraphs.createGraph(5000, seed);
+            IncrementalCollector incremental = env.createIncrementalCollector();
+            for (Object root : roots) {
+                incremental.measure(root);
+            }
+            TestGraphs.assertSameStats(measureFromScratch(env, roots), incremental);
+
+            for (int round = 0; round < 5; round++) {
+                long before = incremental.memoryUsed();
+                mutate(roots, r, 50 << round);
+                IncrementalCollector.Delta delta = incremental.update();
+
+                Collector fresh = measureFromScratch(env, roots);
+                TestGraphs.assertSameStats(fresh, incremental);
+                assertEquals(fresh.memoryUsed() - before, delta.memoryDelta());
+                assertTrue(delta.changedInstances() > 0);
+            }
+        }
+    }
+
+    @Test
+    public void registryTest() {
+        Random r = new Random(4711);
+        Environment env = SizeOf.createEnvironment();
+        Map<String, List<Object>> registry = new HashMap<>();
+        List<Object> shared = createEntry(r);
+        for (int i = 0; i < 20000; i++) {
+            registry.put("Session " + i, i % 100 == 0 ? shared : createEntry(r));
+        }
+        IncrementalCollector incremental = env.createIncrementalCollector();
+        incremental.measure(registry);
+
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 100; i++) {
+                registry.remove("Session " + r.nextInt(20000));
+                registry.put("Session " + r.nextInt(20000), r.nextBoolean() ? shared : createEntry(r));
+                shared.add(new Date());
+            }
+            IncrementalCollector.Delta delta = incremental.update();
+            assertTrue(delta.removedInstances() > 0);
+            TestGraphs.assertSameStats(measureFromScratch(env, new Object[] { registry }), incremental);
+        }
+    }
+
+    @Test
+    public void unchangedTest() {
+        Object[] roots = TestGraphs.createGraph(5000, 42);
+        IncrementalCollector c = SizeOf.createEnvironment().createIncrementalCollector();
+        c.measure(roots);
+        long size = c.memoryUsed();
+
+        IncrementalCollector.Delta delta = c.update();
+        assertTrue(delta.toString(), delta.isEmpty());
+        assertEquals(size, c.memoryUsed());
+    }
+
+    @Test
+    public void detachedCycleTest() {
+        SizeOfTest.Chain head = null;
+        SizeOfTest.Chain last = null;
+        for (int i = 0; i < 1000; i++) {
+            SizeOfTest.Chain c = new SizeOfTest.Chain();
+            c.next = head;
+            head = c;
+            if (last == null) last = c;
+        }
+        last.next = head; // A ring
+        SizeOfTest.Chain root = new SizeOfTest.Chain();
+        root.next = head;
+
+        IncrementalCollector c = SizeOf.createEnvironment().createIncrementalCollector();
+        c.measure(root);
+        assertEquals(1001, c.instanceCount());
+
+        root.next = null;
+        IncrementalCollector.Delta delta = c.update();
+        assertEquals(1, delta.changedInstances());
+        assertEquals(1000, delta.removedInstances());
+        assertEquals(1, c.instanceCount());
+        assertEquals(SizeOf.shallowSizeOf(root), c.memoryUsed());
+        assertEquals(1, c.stats().length);
+
+        root.payload = head;
+        delta = c.update();
+        assertEquals(1001, c.instanceCount());
+        assertEquals(1001, c.statsFor(SizeOfTest.Chain.class).instanceCount());
+        assertEquals(SizeOf.createEnvironment().sizeOf(root), c.memoryUsed());
+    }
+
+    @Test
+    public void exceededBudgetTest() {
+        Object[] leaves = new Object[4000];
+        SizeOfTest.Chain root = new SizeOfTest.Chain();
+        root.payload = leaves;
+        fill(leaves);
+        IncrementalCollector c = SizeOf.createEnvironment().createIncrementalCollector();
+        c.measure(root);
+
+        // Too many candidates for trial deletion, so everything gets swept
+        Arrays.fill(leaves, null);
+        assertEquals(leaves.length, c.update().removedInstances());
+        assertEquals(2, c.instanceCount());
+
+        // The new leaves reuse the freed ids, and must become candidates again
+        fill(leaves);
+        c.update();
+        for (int i = 0; i < leaves.length; i++) {
+            leaves[i] = null;
+            assertEquals(1, c.update().removedInstances());
+        }
+        assertEquals(2, c.instanceCount());
+        assertEquals(SizeOf.createEnvironment().sizeOf(root), c.memoryUsed());
+    }
+
+    private static void fill(Object[] leaves) {
+        for (int i = 0; i < leaves.length; i++) {
+            leaves[i] = new Object();
+        }
+    }
+
+    // @Test // Long-running test - disabled
+    public void updatePerformanceTestXX() {
+        // Like a session registry: lots of small entries, of which only some change between two measurements
+        Random r = new Random(4711);
+        Environment env = SizeOf.createEnvironment();
+        Map<String, List<Object>> registry = new HashMap<>();
+        for (int i = 0; i < 300000; i++) {
+            registry.put("Session " + i, createEntry(r));
+        }
+        IncrementalCollector incremental = env.createIncrementalCollector();
+        incremental.measure(registry);
+
+        int next = registry.size();
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 1000; i++) {
+                registry.remove("Session " + r.nextInt(next));
+                registry.put("Session " + next++, createEntry(r));
+                List<Object> entry = registry.get("Session " + r.nextInt(next));
+                if (entry != null) entry.add(new Date());
+            }
+
+            long nanoStart = System.nanoTime();
+            IncrementalCollector.Delta delta = incremental.update();
+            long nanoMiddle = System.nanoTime();
+            long size = env.sizeOf(registry);
+            long nanoEnd = System.nanoTime();
+            assertEquals(size, incremental.memoryUsed());
+
+            LOGGER.log(Level.INFO, "{0} instances, {1}: update took {2}, measuring from scratch took {3}",
+                    new Object[]{incremental.instanceCount(), delta,
+                            SwissArmyKnife.durationAsString(nanoMiddle - nanoStart, TimeUnit.MILLISECONDS),
+                            SwissArmyKnife.durationAsString(nanoEnd - nanoMiddle, TimeUnit.MILLISECONDS)});
+        }
+    }
+
+    private static List<Object> createEntry(Random r) {
+        List<Object> entry = new ArrayList<>();
+        for (int i = r.nextInt(8); i >= 0; i--) {
+            entry.add(r.nextBoolean() ? new Date() : "Value " + r.nextInt());
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,118 @@
+package io.beans.sizeof;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.awt.Rectangle;
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import io.beans.util.SwissArmyKnife;
+
+
+public class LayoutBackendTest {
+
+    private static final Logger LOGGER = SwissArmyKnife.getLogger();
+
+    static class Mixed {
+        boolean flag;
+        long l;
+        byte b;
+        Object o;
+        short s;
+        double d;
+        char c;
+    }
+
+    static class MixedChild extends Mixed {
+        int i;
+        byte b2;
+        Object o2;
+    }
+
+    private static Object createGraph(int size, Random r) {
+        List<Object> list = new ArrayList<>();
+        Map<Object, Object> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            SizeOfTest.Chain chain = new SizeOfTest.Chain();
+            chain.next = new SizeOfTest.Chain();
+            list.add(chain);
+            map.put("Key " + i, r.nextBoolean() ? new Rectangle(i, i) : new long[r.nextInt(10)]);
+            list.add(r.nextBoolean() ? new Mixed() : new MixedChild());
+        }
+        return new Object[]{list, map, new byte[17], new char[3], new Object[5]};
+    }
+
+    private static Collector measure(Environment e, Object graph) {
+        Collector c = e.createCollector(false);
+        c.measure(graph);
+        return c;
+    }
+
+    @Test
+    public void reflectionTest() {
+        Object graph = createGraph(1000, new Random(4711));
+        Environment unsafe = SizeOf.createEnvironment(LayoutBackend.unsafe());
+        Environment reflection = SizeOf.createEnvironment(LayoutBackend.reflection());
+        assertSame(LayoutBackend.reflection(), reflection.getLayoutBackend());
+
+        Collector expected = measure(unsafe, graph);
+        TestGraphs.assertSameStats(expected, measure(reflection, graph));
+        assertEquals(expected.memoryUsed(), reflection.sizeOf(graph));
+    }
+
+    @Test
+    public void instrumentationTest() {
+        Instrumentation instrumentation = AgentLoader.instrumentation();
+        Assume.assumeNotNull(instrumentation);
+
+        Object graph = createGraph(1000, new Random(4711));
+        Environment e = SizeOf.createEnvironment(LayoutBackend.instrumentation());
+        Collector c = measure(e, graph);
+        long size = 0;
+        for (ClassStats<?> stats : c.stats()) {
+            for (Object instance : stats.instances()) {
+                size += instrumentation.getObjectSize(instance);
+            }
+        }
+        assertEquals(size, c.memoryUsed());
+        assertEquals(size, e.sizeOf(graph));
+        TestGraphs.assertSameStats(c, measure(SizeOf.createEnvironment(LayoutBackend.reflection()), graph));
+    }
+
+    // @Test // Long-running test - disabled
+    public void backendPerformanceTestXX() {
+        Object graph = createGraph(200000, new Random(4711));
+        List<LayoutBackend> backends = new ArrayList<>();
+        backends.add(LayoutBackend.unsafe());
+        backends.add(LayoutBackend.reflection());
+        if (AgentLoader.instrumentation() != null) backends.add(LayoutBackend.instrumentation());
+
+        for (int round = 0; round < 5; round++) {
+            for (LayoutBackend backend : backends) {
+                Environment e = SizeOf.createEnvironment(backend);
+                long nanoStart = System.nanoTime();
+                long size = e.sizeOf(graph);
+                long nanoMiddle = System.nanoTime();
+                Collector c = e.createCollector(false);
+                c.measure(graph);
+                long nanoEnd = System.nanoTime();
+
+                LOGGER.log(Level.INFO, "{0}: {1} bytes, sizeOf() took {2}, collector took {3}",
+                        new Object[]{backend, size,
+                                SwissArmyKnife.durationAsString(nanoMiddle - nanoStart, TimeUnit.MILLISECONDS),
+                                SwissArmyKnife.durationAsString(nanoEnd - nanoMiddle, TimeUnit.MILLISECONDS)});
+            }
+        }
+    }
+}
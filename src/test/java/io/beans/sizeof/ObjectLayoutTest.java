@@ -0,0 +1,111 @@
+package io.beans.sizeof;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Rectangle;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+
+public class ObjectLayoutTest {
+
+    static class Empty {
+    }
+
+    static class OneByte {
+        byte b;
+    }
+
+    static class EmptyChild extends OneByte {
+    }
+
+    static class Shorts extends OneByte {
+        short s1, s2, s3;
+    }
+
+    static class LongAfterByte extends OneByte {
+        long l;
+        char c;
+        boolean flag;
+    }
+
+    static class LongAfterInt extends LongAfterByte {
+        int i;
+        long l2;
+        byte b2;
+        Object o;
+    }
+
+    private static final Class<?>[] arrayTypes = {boolean[].class, byte[].class, short[].class, char[].class,
+            int[].class, float[].class, long[].class, double[].class, Object[].class, String[].class};
+
+    private static List<Object> createInstances() {
+        List<Object> instances = new ArrayList<>();
+        instances.add(new Object());
+        instances.add(new Empty());
+        instances.add(new OneByte());
+        instances.add(new EmptyChild());
+        instances.add(new Shorts());
+        instances.add(new LongAfterByte());
+        instances.add(new LongAfterInt());
+        instances.add(new LayoutBackendTest.Mixed());
+        instances.add(new LayoutBackendTest.MixedChild());
+        instances.add(Integer.valueOf(4711));
+        instances.add(Long.valueOf(4711));
+        instances.add("Text");
+        instances.add(new Rectangle());
+        instances.add(new HashMap<>());
+        instances.add(new ConcurrentHashMap<>());
+        if (!hasInjectedThreadFields()) {
+            // Has contended fields on Java 8
+            instances.add(new Thread());
+        }
+        for (Class<?> arrayType : arrayTypes) {
+            for (int length = 0; length < 10; length++) {
+                instances.add(Array.newInstance(arrayType.getComponentType(), length));
+            }
+        }
+        return instances;
+    }
+
+    private static boolean hasInjectedThreadFields() {
+        // The VM adds hidden fields for virtual threads since Java 19, which reflection can't see
+        String version = System.getProperty("java.specification.version");
+        return !version.startsWith("1.") && Integer.parseInt(version) >= 19;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long shallowSize(LayoutBackend backend, Object instance) {
+        ClassSchema<Object> schema = (ClassSchema<Object>) backend.createSchemaFor(instance.getClass(),
+                FieldFilter.ACCEPT_ALL, false);
+        return schema.shallowSize(instance);
+    }
+
+    @Test
+    public void modelTest() {
+        for (Object instance : createInstances()) {
+            assertEquals(instance.getClass().getName(), shallowSize(LayoutBackend.unsafe(), instance),
+                    shallowSize(LayoutBackend.reflection(), instance));
+        }
+    }
+
+    @Test
+    public void instrumentationTest() {
+        Instrumentation instrumentation = AgentLoader.instrumentation();
+        Assume.assumeNotNull(instrumentation);
+
+        for (Object instance : createInstances()) {
+            long expected = instrumentation.getObjectSize(instance);
+            String name = instance.getClass().getName();
+            assertEquals(name, expected, shallowSize(LayoutBackend.unsafe(), instance));
+            assertEquals(name, expected, shallowSize(LayoutBackend.reflection(), instance));
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package io.beans.sizeof;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import io.beans.util.SwissArmyKnife;
+
+
+public class ParallelCollectorTest {
+
+    private static final Logger LOGGER = SwissArmyKnife.getLogger();
+
+    @Test
+    public void sameAsSequentialTest() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int seed = 0; seed < 5; seed++) {
+                Object[] roots = TestGraphs.createGraph(20000, seed);
+
+                Collector sequential = SizeOf.getDefaultEnvironment().createCollector(false);
+                Collector parallel = SizeOf.getDefaultEnvironment().createParallelCollector(pool);
+                for (Object root : roots) {
+                    sequential.measure(root);
+                    parallel.measure(root);
+                }
+                // Only increments the reference count
+                sequential.measure(roots[1]);
+                parallel.measure(roots[1]);
+
+                TestGraphs.assertSameStats(sequential, parallel);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void sharedWideArrayTest() {
+        // Visited in many chunks by several tasks, but all elements are the same
+        Date shared = new Date();
+        Object[] array = new Object[10 * ClassSchema.ARRAY_CHUNK + 3];
+        Arrays.fill(array, shared);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Collector c = SizeOf.createEnvironment().createParallelCollector(pool);
+            c.measure(array);
+            assertEquals(2, c.instanceCount());
+            assertEquals(SizeOf.shallowSizeOf(array) + SizeOf.shallowSizeOf(shared), c.memoryUsed());
+
+            ClassStats<Date> stats = c.statsFor(Date.class);
+            assertEquals(1, stats.instanceCount());
+            assertEquals(array.length, stats.referenceCounts()[0]);
+            assertEquals(1, stats.referencedBy().length);
+            assertEquals(array.length, stats.referencedBy()[0].getCount());
+            assertEquals(0, stats.totalSize());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void globalInstancesTest() {
+        Environment e = SizeOf.createEnvironment();
+        SizeOfTest.Chain global = new SizeOfTest.Chain();
+        global.next = new SizeOfTest.Chain();
+        e.addGlobalInstance(global);
+        SizeOfTest.Chain root = new SizeOfTest.Chain();
+        root.next = global;
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            Collector c = e.createParallelCollector(pool);
+            // A referenced global instance is not counted, and its references are not followed
+            c.measure(root);
+            assertEquals(1, c.instanceCount());
+            assertEquals(SizeOf.shallowSizeOf(root), c.memoryUsed());
+
+            // But it is when it gets measured directly
+            c.measure(global);
+            assertEquals(3, c.instanceCount());
+            assertEquals(3 * SizeOf.shallowSizeOf(root), c.memoryUsed());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void deepGraphTest() {
+        SizeOfTest.Chain head = null;
+        for (int i = 0; i < 1000000; i++) {
+            SizeOfTest.Chain c = new SizeOfTest.Chain();
+            c.next = head;
+            head = c;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            Collector c = SizeOf.createEnvironment().createParallelCollector(pool);
+            c.measure(head);
+            assertEquals(1000000, c.instanceCount());
+            assertEquals(SizeOf.createEnvironment().sizeOf(head), c.memoryUsed());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // @Test // Long-running test - disabled
+    public void throughputTestXX() {
+        Object[] roots = TestGraphs.createGraph(3000000, 42);
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            for (int round = 0; round < 5; round++) {
+                long nanoStart = System.nanoTime();
+                Collector sequential = SizeOf.createCollector(false);
+                sequential.measure(roots);
+                long nanoMiddle = System.nanoTime();
+                Collector parallel = SizeOf.getDefaultEnvironment().createParallelCollector(pool);
+                parallel.measure(roots);
+                long nanoEnd = System.nanoTime();
+                assertEquals(sequential.memoryUsed(), parallel.memoryUsed());
+
+                LOGGER.log(Level.INFO, "{0} instances: sequential took {1}, parallel with {2} threads took {3}",
+                        new Object[]{sequential.instanceCount(),
+                                SwissArmyKnife.durationAsString(nanoMiddle - nanoStart, TimeUnit.MILLISECONDS),
+                                pool.getParallelism(),
+                                SwissArmyKnife.durationAsString(nanoEnd - nanoMiddle, TimeUnit.MILLISECONDS)});
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package io.beans.sizeof;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import io.beans.util.SwissArmyKnife;
+
+
+public class PreloadTest {
+
+    private static final Logger LOGGER = SwissArmyKnife.getLogger();
+
+    static class Lazy {
+        static final long[] CONSTANT = new long[100];
+
+        Object ref = CONSTANT;
+    }
+
+    static class Eager {
+        static final long[] CONSTANT = new long[100];
+
+        Object ref = CONSTANT;
+    }
+
+    @Test
+    public void preloadClassesTest() throws InterruptedException {
+        // Initialized, so its static values get registered as well
+        assertEquals(100, Eager.CONSTANT.length);
+        List<Class<?>> classes = Arrays.<Class<?>>asList(HashMap.class, TreeMap.class, ArrayList.class,
+                Rectangle.class, TestGraphs.Node.class, EnvironmentTest.Holder.class, Eager.class,
+                long[].class);
+        Environment e = SizeOf.createEnvironment().setRecordSchemaStatistics(true);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Preload preload = e.preload(executor, classes);
+            assertTrue(preload.await(10, TimeUnit.SECONDS));
+            assertTrue(preload.isDone());
+            assertEquals(classes.size(), preload.totalCount());
+            assertEquals(classes.size(), preload.completedCount());
+            assertEquals(0, preload.failedCount());
+        } finally {
+            executor.shutdown();
+        }
+
+        long misses = e.getSchemaCacheStats().missCount();
+        for (Class<?> c : classes) {
+            e.getSchema(c);
+        }
+        assertEquals(misses, e.getSchemaCacheStats().missCount());
+        assertEquals(classes.size(), e.getSchemaCacheStats().hitCount());
+        assertTrue(e.isGlobal(Eager.CONSTANT));
+    }
+
+    @Test
+    public void preloadPrefixTest() throws InterruptedException {
+        Environment e = SizeOf.createEnvironment().setRecordSchemaStatistics(true);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Preload preload = e.preload(executor, getClass().getClassLoader(), PreloadTest.class.getName() + "$",
+                    "io.beans.collections.");
+            preload.await();
+            // Lazy, Eager, and the collections
+            assertTrue(preload.toString(), preload.completedCount() > 2);
+            assertEquals(preload.totalCount(), preload.completedCount() + preload.failedCount());
+        } finally {
+            executor.shutdown();
+        }
+        // Reached from the static values
+        e.getSchema(long[].class);
+        long misses = e.getSchemaCacheStats().missCount();
+
+        // Preloading didn't initialize it, so its static values are registered when it's used
+        Lazy lazy = new Lazy();
+        assertEquals(e.getSchema(Lazy.class).shallowSize(null), e.sizeOf(lazy));
+        assertTrue(e.isGlobal(Lazy.CONSTANT));
+        assertEquals(misses, e.getSchemaCacheStats().missCount());
+
+        // Nothing matches
+        Preload none = e.preload(executor, getClass().getClassLoader(), "io.beans.NoSuchClass");
+        assertTrue(none.isDone());
+        assertEquals(0, none.totalCount());
+    }
+
+    @Test
+    public void preloadFromJarTest() throws InterruptedException {
+        URL object = ClassLoader.getSystemResource("java/lang/Object.class");
+        // Only where the runtime classes are in a jar file
+        if (!"jar".equals(object.getProtocol())) return;
+
+        Environment e = SizeOf.createEnvironment();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Preload preload = e.preload(executor, ClassLoader.getSystemClassLoader(), "java.util.concurrent.atomic.");
+            preload.await();
+            assertTrue(preload.toString(), preload.completedCount() > 10);
+            assertFalse(preload.toString().contains("running"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // @Test // Long-running test - disabled
+    public void preloadPerformanceTestXX() throws Exception {
+        URL[] locations = {Environment.class.getProtectionDomain().getCodeSource().getLocation(),
+                PreloadTest.class.getProtectionDomain().getCodeSource().getLocation()};
+        for (int round = 0; round < 10; round++) {
+            for (int threads : new int[]{1, 8}) {
+                // New copies of the classes each time, so that nothing is cached yet
+                ClassLoader loader = new URLClassLoader(locations, null);
+                ExecutorService executor = Executors.newFixedThreadPool(threads);
+                Environment e = SizeOf.createEnvironment();
+                Preload preload = e.preload(executor, loader, "io.beans.");
+                preload.await();
+                executor.shutdown();
+
+                LOGGER.log(Level.INFO, "{0} threads: {1}", new Object[]{threads, preload});
+            }
+        }
+    }
+}
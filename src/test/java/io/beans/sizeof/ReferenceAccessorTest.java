@@ -0,0 +1,180 @@
+package io.beans.sizeof;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import io.beans.util.SwissArmyKnife;
+
+
+public class ReferenceAccessorTest {
+
+    private static final Logger LOGGER = SwissArmyKnife.getLogger();
+
+    static class Base {
+        Object a;
+        long l;
+        String b;
+    }
+
+    static class Mixed extends Base {
+        int i;
+        Object c, d;
+        byte x;
+        Object[] e;
+        Mixed self;
+    }
+
+    static class Fields5 {
+        Object f0, f1, f2, f3, f4;
+    }
+
+    static class Fields20 {
+        Object f0, f1, f2, f3, f4, f5, f6, f7, f8, f9, f10, f11, f12, f13, f14, f15, f16, f17, f18, f19;
+    }
+
+    static class Fields50 {
+        Object f0, f1, f2, f3, f4, f5, f6, f7, f8, f9, f10, f11, f12, f13, f14, f15, f16, f17, f18, f19, f20, f21,
+                f22, f23, f24, f25, f26, f27, f28, f29, f30, f31, f32, f33, f34, f35, f36, f37, f38, f39, f40, f41,
+                f42, f43, f44, f45, f46, f47, f48, f49;
+    }
+
+    private static final class Recorder implements ReferenceCallback {
+        final List<Object> visited = new ArrayList<>();
+
+        @Override
+        public void visit(int refId, Object value) {
+            visited.add(ReferenceNames.nameOf(refId));
+            visited.add(value);
+        }
+    }
+
+    private static final class Counter implements ReferenceCallback {
+        long edges;
+
+        @Override
+        public void visit(int refId, Object value) {
+            if (value != null) edges++;
+        }
+    }
+
+    private static <T> List<Object> record(ClassSchema<T> schema, T instance) {
+        Recorder r = new Recorder();
+        schema.iterateIds(instance, r);
+        return r.visited;
+    }
+
+    @Test
+    public void generatedSchemaTest() {
+        Mixed m = new Mixed();
+        m.a = "A";
+        m.b = "B";
+        m.d = new Object();
+        m.e = new Object[]{m};
+        m.self = m;
+
+        ClassSchema<Mixed> loop = ClassSchema.createSchemaFor(Mixed.class);
+        ClassSchema<Mixed> generated = ClassSchema.createSchemaFor(Mixed.class, FieldFilter.ACCEPT_ALL, true);
+        assertTrue(generated.toString(), generated.toString().endsWith("(generated)"));
+        assertEquals(loop.shallowSize(m), generated.shallowSize(m));
+        assertEquals(record(loop, m), record(generated, m));
+        assertEquals(12, record(generated, m).size());
+
+        // No references at all
+        assertEquals(Integer.class, ClassSchema.createSchemaFor(Integer.class, FieldFilter.ACCEPT_ALL, true)
+                .getType());
+    }
+
+    @Test
+    public void sharedAccessorTest() {
+        ClassSchema<Mixed> first = SizeOf.createEnvironment().setGenerateAccessors(true).getSchema(Mixed.class);
+        ClassSchema<Mixed> second = SizeOf.createEnvironment().setGenerateAccessors(true).getSchema(Mixed.class);
+        Assume.assumeTrue(first.toString().endsWith("(generated)"));
+        assertNotSame(first, second);
+
+        // Generated once for all environments
+        int[] ids = {ReferenceNames.idOf("Mixed#a"), ReferenceNames.idOf("Mixed#b")};
+        long[] offsets = {16, 20};
+        ReferenceAccessor accessor = ReferenceAccessor.generate(ids, offsets);
+        assertSame(accessor, ReferenceAccessor.generate(ids.clone(), offsets.clone()));
+        assertNotSame(accessor, ReferenceAccessor.generate(ids, new long[]{16, 24}));
+    }
+
+    @Test
+    public void sameStatsTest() throws IllegalAccessException {
+        Environment loop = SizeOf.createEnvironment();
+        Environment generated = SizeOf.createEnvironment().setGenerateAccessors(true);
+
+        Map<Object, Object> map = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            Fields20 f = new Fields20();
+            int j = 0;
+            for (Field field : Fields20.class.getDeclaredFields()) {
+                if (j++ % 3 == i % 3) field.set(f, "Value " + (i + j));
+            }
+            map.put(i, f);
+        }
+        Object[] graph = {map, new SizeOfTest.Chain(), new Mixed()};
+
+        Collector expected = loop.createCollector(false);
+        expected.measure(graph);
+        Collector c = generated.createCollector(false);
+        c.measure(graph);
+        TestGraphs.assertSameStats(expected, c);
+        assertEquals(expected.memoryUsed(), generated.sizeOf((Object) graph));
+    }
+
+    private static <T> long picosPerEdge(ClassSchema<T> schema, T[] instances, int rounds) {
+        Counter counter = new Counter();
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (T instance : instances) {
+                schema.iterateIds(instance, counter);
+            }
+        }
+        return (System.nanoTime() - start) * 1000 / counter.edges;
+    }
+
+    private static <T> void comparePerEdge(Class<T> type, int rounds) throws ReflectiveOperationException {
+        @SuppressWarnings("unchecked")
+        T[] instances = (T[]) java.lang.reflect.Array.newInstance(type, 100000);
+        Object shared = new Object();
+        for (int i = 0; i < instances.length; i++) {
+            instances[i] = type.getDeclaredConstructor().newInstance();
+            for (Field f : type.getDeclaredFields()) {
+                f.set(instances[i], shared);
+            }
+        }
+        ClassSchema<T> loop = ClassSchema.createSchemaFor(type);
+        ClassSchema<T> generated = ClassSchema.createSchemaFor(type, FieldFilter.ACCEPT_ALL, true);
+        for (int warmUp = 0; warmUp < 5; warmUp++) {
+            picosPerEdge(loop, instances, rounds);
+            picosPerEdge(generated, instances, rounds);
+        }
+        LOGGER.log(Level.INFO, "{0}: loop {1} ps/edge, generated {2} ps/edge", new Object[]{type.getSimpleName(),
+                picosPerEdge(loop, instances, rounds), picosPerEdge(generated, instances, rounds)});
+    }
+
+    // @Test // Long-running test - disabled
+    public void perEdgePerformanceTestXX() throws ReflectiveOperationException {
+        long start = System.nanoTime();
+        comparePerEdge(Fields5.class, 100);
+        comparePerEdge(Fields20.class, 25);
+        comparePerEdge(Fields50.class, 10);
+        LOGGER.log(Level.INFO, "Took {0}",
+                SwissArmyKnife.durationAsString(System.nanoTime() - start, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,66 @@
+package io.beans.sizeof;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+public class ReferenceCountsTest {
+
+    @Test
+    public void countingTest() {
+        int a = ReferenceNames.idOf("test.A#a");
+        assertEquals(a, ReferenceNames.idOf(new String("test.A#a")));
+        assertEquals("test.A#a", ReferenceNames.nameOf(a));
+
+        ReferenceCounts counts = new ReferenceCounts();
+        for (int i = 0; i < 1000; i++) {
+            int id = ReferenceNames.idOf("test.B#f" + i);
+            for (int j = 0; j <= i % 3; j++) {
+                counts.increment(id);
+            }
+        }
+        counts.increment(a);
+        counts.decrement(a);
+
+        ClassStats.Reference[] refs = counts.toReferences();
+        assertEquals(1000, refs.length);
+        Map<String, Integer> byName = new HashMap<>();
+        for (ClassStats.Reference r : refs) {
+            byName.put(r.getName(), r.getCount());
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 3 + 1, byName.get("test.B#f" + i).intValue());
+        }
+    }
+
+    @Test
+    public void addAllTest() {
+        int a = ReferenceNames.idOf("test.C#a");
+        int b = ReferenceNames.idOf("test.C#b");
+        ReferenceCounts first = new ReferenceCounts();
+        first.add(a, 3);
+        ReferenceCounts second = new ReferenceCounts();
+        second.add(a, 2);
+        second.increment(b);
+        second.decrement(b);
+        for (int i = 0; i < 100; i++) {
+            second.increment(ReferenceNames.idOf("test.D#f" + i));
+        }
+
+        first.addAll(second);
+        first.addAll(new ReferenceCounts());
+        ClassStats.Reference[] refs = first.toReferences();
+        // The emptied reference is not reported
+        assertEquals(101, refs.length);
+        Map<String, Integer> byName = new HashMap<>();
+        for (ClassStats.Reference r : refs) {
+            byName.put(r.getName(), r.getCount());
+        }
+        assertEquals(5, byName.get("test.C#a").intValue());
+        assertEquals(1, byName.get("test.D#f99").intValue());
+    }
+}
@@ -0,0 +1,128 @@
+package io.beans.sizeof;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class RestrictionsTest {
+
+    private static SizeOfTest.Chain createChain(int length) {
+        SizeOfTest.Chain head = null;
+        for (int i = 0; i < length; i++) {
+            SizeOfTest.Chain c = new SizeOfTest.Chain();
+            c.next = head;
+            c.payload = new long[i];
+            head = c;
+        }
+        return head;
+    }
+
+    @Test
+    public void unrestrictedTest() {
+        Object[] roots = TestGraphs.createGraph(10000, 42);
+        Environment e = SizeOf.createEnvironment();
+        Collector expected = e.createCollector(false);
+        expected.measure(roots);
+        Collector c = e.createCollector(new Restrictions());
+        c.measure(roots);
+
+        TestGraphs.assertSameStats(expected, c);
+    }
+
+    @Test
+    public void depthTest() {
+        Environment e = SizeOf.createEnvironment();
+        SizeOfTest.Chain head = createChain(100);
+
+        Collector c = e.createCollector(new Restrictions().setMaxDepth(0));
+        c.measure(head);
+        assertEquals(1, c.instanceCount());
+        assertEquals(e.sizeOf(new SizeOfTest.Chain()), c.memoryUsed());
+
+        // Each level has one chain element and the payload of the level above
+        c = e.createCollector(new Restrictions().setMaxDepth(10));
+        c.measure(head);
+        assertEquals(10, c.statsFor(long[].class).instanceCount());
+        assertEquals(11, c.statsFor(SizeOfTest.Chain.class).instanceCount());
+    }
+
+    @Test
+    public void shortestPathTest() {
+        // The element is reached via a long and a short path; the long one is visited first when walking depth first
+        SizeOfTest.Chain head = createChain(3);
+        SizeOfTest.Chain tail = head;
+        while (tail.next != null) {
+            tail = tail.next;
+        }
+        Object element = new Object();
+        tail.payload = new Object[]{element};
+        head.payload = new Object[]{new Object[]{element}};
+
+        Collector c = SizeOf.createEnvironment().createCollector(new Restrictions().setMaxDepth(3));
+        c.measure(head);
+        assertEquals(1, c.statsFor(Object.class).instanceCount());
+    }
+
+    @Test
+    public void excludeTest() {
+        Environment e = SizeOf.createEnvironment();
+        SizeOfTest.Chain head = createChain(100);
+
+        Collector c = e.createCollector(new Restrictions().exclude("*#payload"));
+        c.measure(head);
+        assertEquals(100, c.instanceCount());
+        assertNull(c.statsFor(long[].class));
+
+        c = e.createCollector(new Restrictions().exclude(SizeOfTest.Chain.class.getName() + "#next"));
+        c.measure(head);
+        assertEquals(2, c.instanceCount());
+
+        List<Object> list = new ArrayList<>();
+        list.add(head);
+        c = e.createCollector(new Restrictions().exclude("java.lang.Object[]"));
+        c.measure(list);
+        assertEquals(2, c.instanceCount());
+    }
+
+    @Test
+    public void includeTest() {
+        Environment e = SizeOf.createEnvironment();
+        SizeOfTest.Chain head = createChain(100);
+
+        Collector c = e.createCollector(new Restrictions().include("*#next"));
+        c.measure(head);
+        assertEquals(100, c.instanceCount());
+        assertEquals(e.sizeOf(new SizeOfTest.Chain()) * 100, c.memoryUsed());
+
+        // Excludes win over includes
+        c = e.createCollector(new Restrictions().include("*#next").exclude("*#next"));
+        c.measure(head);
+        assertEquals(1, c.instanceCount());
+    }
+
+    @Test
+    public void classFilterTest() {
+        Environment e = SizeOf.createEnvironment();
+        SizeOfTest.Chain head = createChain(100);
+
+        Collector c = e.createCollector(new Restrictions().setClassFilter(new ClassFilter() {
+
+            @Override
+            public boolean accept(Class<?> type) {
+                return !type.isArray();
+            }
+        }));
+        c.measure(head);
+        assertEquals(100, c.instanceCount());
+        assertEquals(0, c.statsFor(long[].class).instanceCount());
+
+        // Rejected instances are still counted when they're measured explicitly
+        c.measure(head.payload);
+        assertEquals(101, c.instanceCount());
+    }
+}
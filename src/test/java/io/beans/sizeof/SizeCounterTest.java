@@ -0,0 +1,177 @@
+package io.beans.sizeof;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import io.beans.util.SwissArmyKnife;
+
+
+public class SizeCounterTest {
+
+    private static final Logger LOGGER = SwissArmyKnife.getLogger();
+
+    private static long measureWithCollector(Environment e, Object... instances) {
+        Collector c = e.createCollector(false);
+        for (Object o : instances) {
+            c.measure(o);
+        }
+        return c.memoryUsed();
+    }
+
+    @Test
+    public void sameAsCollectorTest() {
+        Environment e = SizeOf.createEnvironment();
+        for (int seed = 0; seed < 10; seed++) {
+            Object[] roots = TestGraphs.createGraph(5000, seed);
+            assertEquals(measureWithCollector(e, roots), e.sizeOf(roots));
+            assertEquals(measureWithCollector(e, (Object) roots), e.sizeOf((Object) roots));
+        }
+    }
+
+    @Test
+    public void globalsTest() {
+        Environment e = SizeOf.createEnvironment();
+        SizeOfTest.Chain global = new SizeOfTest.Chain();
+        global.payload = new long[100];
+        e.addGlobalInstance(global);
+        SizeOfTest.Chain head = new SizeOfTest.Chain();
+        head.next = global;
+
+        long globalSize = measureWithCollector(e, global);
+        assertEquals(globalSize, e.sizeOf(global));
+        assertEquals(measureWithCollector(e, head), e.sizeOf(head));
+        assertEquals(e.sizeOf(head) + globalSize, e.sizeOf(global, head));
+
+        e.addGlobalType(long[].class);
+        assertEquals(measureWithCollector(e, global), e.sizeOf(global));
+        assertEquals(measureWithCollector(e, global.payload), e.sizeOf(global.payload));
+    }
+
+    static class ThreadHolder {
+        static Thread thread;
+    }
+
+    @Test
+    public void staticThreadTest() {
+        Map<Integer, String> map = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            map.put(i, "Value " + i);
+        }
+        // The thread's locals contain the pooled counter
+        ThreadHolder.thread = Thread.currentThread();
+        Object[] roots = {map, new ThreadHolder()};
+
+        Environment e = SizeOf.createEnvironment();
+        assertEquals(measureWithCollector(SizeOf.createEnvironment(), (Object) roots), e.sizeOf((Object) roots));
+        assertTrue(e.sizeOf(map) > 10000 * 32);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    @Test
+    public void repeatedSizeOfTest() {
+        Environment e = SizeOf.createEnvironment();
+        Object[] roots = TestGraphs.createGraph(5000, 3);
+        long expected = e.sizeOf(roots);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(expected, e.sizeOf(roots));
+        }
+
+        long allocStart = allocatedBytes();
+        for (int i = 0; i < 100; i++) {
+            e.sizeOf(roots);
+        }
+        long perCall = (allocatedBytes() - allocStart) / 100;
+        // A new visited set for that graph alone would take more than 30 KB
+        assertTrue(perCall + " bytes", perCall < 1024);
+
+        // Another measurement on the same thread while the counter is in use
+        SizeCounter outer = SizeCounter.start(e);
+        try {
+            outer.add(roots[0]);
+            long partial = outer.totalSize();
+            assertEquals(measureWithCollector(e, roots[1]), e.sizeOf(roots[1]));
+            assertEquals(partial, outer.totalSize());
+            outer.add(roots[1]);
+            outer.add(roots[2]);
+            assertEquals(expected, outer.totalSize());
+        } finally {
+            outer.finish();
+        }
+    }
+
+    // @Test // Long-running test - disabled
+    public void sizeOfPerformanceTestXX() {
+        Map<Integer, Object> map = new HashMap<>();
+        for (int i = 0; i < 2000000; i++) {
+            map.put(i, "Value " + i);
+        }
+        Environment e = SizeOf.createEnvironment();
+
+        for (int round = 0; round < 5; round++) {
+            long allocStart = allocatedBytes();
+            long nanoStart = System.nanoTime();
+            long collected = measureWithCollector(e, map);
+            long nanoMiddle = System.nanoTime();
+            long allocMiddle = allocatedBytes();
+            long counted = e.sizeOf(map);
+            long nanoEnd = System.nanoTime();
+            long allocEnd = allocatedBytes();
+
+            assertEquals(collected, counted);
+            LOGGER.log(Level.INFO, "Collector took {0} and allocated {1} MB, size counter took {2} and allocated {3} MB",
+                    new Object[]{SwissArmyKnife.durationAsString(nanoMiddle - nanoStart, TimeUnit.MILLISECONDS),
+                            (allocMiddle - allocStart) >> 20,
+                            SwissArmyKnife.durationAsString(nanoEnd - nanoMiddle, TimeUnit.MILLISECONDS),
+                            (allocEnd - allocMiddle) >> 20});
+        }
+    }
+
+    // @Test // Long-running test - disabled
+    public void repeatedMeasurementPerformanceTestXX() {
+        Object[] roots = TestGraphs.createGraph(2000, 7);
+        Environment e = SizeOf.createEnvironment();
+        Collector reused = e.createCollector(false);
+        int n = 1000;
+
+        for (int round = 0; round < 5; round++) {
+            long allocStart = allocatedBytes();
+            long nanoStart = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                measureWithCollector(e, roots);
+            }
+            long nanoNew = System.nanoTime();
+            long allocNew = allocatedBytes();
+            for (int i = 0; i < n; i++) {
+                reused.reset();
+                for (Object o : roots) {
+                    reused.measure(o);
+                }
+            }
+            long nanoReset = System.nanoTime();
+            long allocReset = allocatedBytes();
+            for (int i = 0; i < n; i++) {
+                e.sizeOf(roots);
+            }
+            long nanoEnd = System.nanoTime();
+            long allocEnd = allocatedBytes();
+
+            LOGGER.log(Level.INFO, "Per measurement: new collector {0} ns and {1} bytes, reset collector {2} ns and "
+                    + "{3} bytes, sizeOf() {4} ns and {5} bytes",
+                    new Object[]{(nanoNew - nanoStart) / n, (allocNew - allocStart) / n, (nanoReset - nanoNew) / n,
+                            (allocReset - allocNew) / n, (nanoEnd - nanoReset) / n, (allocEnd - allocReset) / n});
+        }
+    }
+}
@@ -10,9 +10,12 @@ import java.awt.Rectangle;
 import java.lang.annotation.Retention;
 import java.lang.reflect.AnnotatedElement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -148,6 +151,204 @@ public class SizeOfTest {
         assertEquals(totalSize, c.memoryUsed());
     }
 
+    static class Chain {
+        Chain next;
+
+        @SuppressWarnings("unused")
+        Object payload;
+    }
+
+    private static Chain createChain(int length, Object payload) {
+        Chain head = null;
+        for (int i = 0; i < length; i++) {
+            Chain c = new Chain();
+            c.next = head;
+            c.payload = payload;
+            head = c;
+        }
+        return head;
+    }
+
+    @Test
+    public void deepGraphTest() {
+        int length = 10000000;
+        long chainSize = SizeOf.shallowSizeOf(new Chain());
+        Chain head = createChain(length, null);
+
+        Environment e = SizeOf.createEnvironment();
+        assertEquals(length * chainSize, e.sizeOf(head));
+
+        Collector c = e.createCollector(false);
+        c.measure(head);
+        assertEquals(length, c.instanceCount());
+        assertEquals(length, c.statsFor(Chain.class).instanceCount());
+    }
+
+    @Test
+    public void deepGraphWithClassSizesTest() {
+        int length = 1000000;
+        long chainSize = SizeOf.shallowSizeOf(new Chain());
+        Date payload = new Date();
+        long payloadSize = SizeOf.sizeOf(payload);
+        Chain head = createChain(length, payload);
+
+        Collector c = SizeOf.createCollectorWith(head);
+        assertEquals(length * chainSize + payloadSize, c.memoryUsed());
+        assertEquals(length * chainSize + payloadSize, c.statsFor(Chain.class).totalSize());
+        assertEquals(payloadSize, c.statsFor(Date.class).totalSize());
+        assertEquals(length, c.statsFor(Date.class).referencedBy()[0].getCount());
+    }
+
+    @Test
+    public void deepLinkedListTest() {
+        List<Integer> list = new LinkedList<>();
+        for (int i = 0; i < 2000000; i++) {
+            list.add(i & 0xff);
+        }
+
+        Collector c = SizeOf.createCollector(false);
+        c.measure(list);
+        assertEquals(2000000, c.statsFor(list.get(0).getClass()).referencedBy()[0].getCount());
+        assertTrue(c.memoryUsed() > 2000000L * SizeOf.shallowSizeOf(new Chain()));
+    }
+
+    @Test
+    public void classTotalSizeTest() {
+        Environment e = SizeOf.getDefaultEnvironment();
+        for (int seed = 0; seed < 3; seed++) {
+            Object[] roots = TestGraphs.createGraph(5000, seed);
+            Collector c = e.createCollector(true);
+            for (Object root : roots) {
+                c.measure(root);
+            }
+
+            for (ClassStats<?> cs : c.stats()) {
+                // Same as measuring all instances of that class together
+                assertEquals(cs.type().getName(), e.sizeOf(cs.instances()), cs.totalSize());
+            }
+        }
+    }
+
+    @Test
+    public void classTotalSizeOfSharedInstancesTest() {
+        Environment e = SizeOf.createEnvironment();
+        Chain global = new Chain();
+        e.addGlobalInstance(global);
+        Date shared = new Date();
+        Chain a = new Chain();
+        Chain b = new Chain();
+        a.next = b;
+        b.next = a;
+        a.payload = shared;
+        b.payload = global;
+        Object[] dates = { shared, new Date() };
+
+        Collector c = e.createCollector(true);
+        c.measure(a);
+        c.measure(dates);
+        long chainSize = SizeOf.shallowSizeOf(a);
+        long dateSize = e.sizeOf(shared);
+
+        // The cycle and the shared date count once, the global chain not at all
+        assertEquals(2, c.statsFor(Chain.class).instanceCount());
+        assertEquals(2 * chainSize + dateSize, c.statsFor(Chain.class).totalSize());
+        assertEquals(2 * dateSize, c.statsFor(Date.class).totalSize());
+        assertEquals(SizeOf.shallowSizeOf(dates) + 2 * dateSize, c.statsFor(Object[].class).totalSize());
+        assertEquals(c.memoryUsed(), 2 * chainSize + SizeOf.shallowSizeOf(dates) + 2 * dateSize);
+    }
+
+    @Test
+    public void collectorResetTest() {
+        Environment e = SizeOf.createEnvironment();
+        Object[] first = TestGraphs.createGraph(5000, 1);
+        Object[] second = TestGraphs.createGraph(3000, 2);
+        Budget budget = new Budget().setMaxInstances(2000);
+        Restrictions restrictions = new Restrictions().setMaxDepth(3);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            assertResetLikeNew(e.createCollector(true), e.createCollector(true), first, second);
+            assertResetLikeNew(e.createCollector(false), e.createCollector(false), first, second);
+            assertResetLikeNew(e.createCollector(budget), e.createCollector(budget), first, second);
+            assertResetLikeNew(e.createCollector(restrictions), e.createCollector(restrictions), first, second);
+            assertResetLikeNew(e.createParallelCollector(pool), e.createParallelCollector(pool), first, second);
+            assertResetLikeNew(e.createIncrementalCollector(), e.createIncrementalCollector(), first, second);
+
+            // A class that became global meanwhile
+            Collector c = e.createCollector(false);
+            c.measure(second);
+            Collector parallel = e.createParallelCollector(pool);
+            parallel.measure(second);
+            e.addGlobalType(TestGraphs.Node.class);
+            assertResetLikeNew(c, e.createCollector(false), first, second);
+            assertResetLikeNew(parallel, e.createParallelCollector(pool), first, second);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void assertResetLikeNew(Collector reused, Collector fresh, Object[] first, Object[] second) {
+        for (Object root : first) {
+            reused.measure(root);
+        }
+        ClassStats<?> before = reused.statsFor(TestGraphs.Node.class);
+        Set<ClassStats.Reference> referencedBy = new HashSet<>(Arrays.asList(before.referencedBy()));
+        int instanceCount = before.instanceCount();
+
+        reused.reset();
+        assertEquals(0, reused.memoryUsed());
+        assertEquals(0, reused.instanceCount());
+        assertEquals(0, reused.stats().length);
+
+        for (Object root : second) {
+            reused.measure(root);
+            fresh.measure(root);
+        }
+        TestGraphs.assertSameStats(fresh, reused);
+        assertEquals(fresh.isPartial(), reused.isPartial());
+        assertEquals(fresh.unexploredReferences(), reused.unexploredReferences());
+
+        // Statistics from before the reset keep their values
+        assertEquals(referencedBy, new HashSet<>(Arrays.asList(before.referencedBy())));
+        assertEquals(instanceCount, before.instanceCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void retainedSizeAfterResetTest() {
+        Collector c = SizeOf.createEnvironment().createCollector(true);
+        c.measure(TestGraphs.createGraph(2000, 3));
+        RetainedClassStats<?> requested = c.statsFor(TestGraphs.Node.class);
+        long retainedSize = requested.retainedSize();
+        assertTrue(retainedSize > 0);
+        RetainedClassStats<?> notRequested = c.statsFor(TestGraphs.Node.class);
+
+        c.reset();
+        c.measure(new TestGraphs.Node());
+        assertEquals(retainedSize, requested.retainedSize());
+        // Would be calculated from the new measurement
+        notRequested.retainedSize();
+    }
+
+    // @Test // Long-running test - disabled
+    public void classTotalSizePerformanceTestXX() {
+        Object[] roots = TestGraphs.createGraph(3000000, 42);
+        for (int round = 0; round < 5; round++) {
+            long nanoStart = System.nanoTime();
+            Collector plain = SizeOf.createCollector(false);
+            plain.measure(roots);
+            long nanoMiddle = System.nanoTime();
+            Collector perClass = SizeOf.createCollector(true);
+            perClass.measure(roots);
+            perClass.stats();
+            long nanoEnd = System.nanoTime();
+            assertEquals(plain.memoryUsed(), perClass.memoryUsed());
+
+            LOGGER.log(Level.INFO, "{0} instances: without class sizes {1}, with class sizes {2}",
+                    new Object[]{plain.instanceCount(),
+                            SwissArmyKnife.durationAsString(nanoMiddle - nanoStart, TimeUnit.MILLISECONDS),
+                            SwissArmyKnife.durationAsString(nanoEnd - nanoMiddle, TimeUnit.MILLISECONDS)});
+        }
+    }
+
     private static class Singleton {
         static Singleton INSTANCE = new Singleton();
 
@@ -0,0 +1,95 @@
+package io.beans.sizeof;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+ * A random object graph to measure, and the comparison of two measurements.
+ */
+final class TestGraphs {
+
+    private TestGraphs() {
+        throw new AssertionError("Static class!");
+    }
+
+    static class Node {
+        Node left, right;
+
+        Object payload;
+    }
+
+    /**
+     * Creates a graph with lots of sharing, cycles, wide arrays and maps.
+     */
+    static Object[] createGraph(int size, long seed) {
+        Random r = new Random(seed);
+        Node[] nodes = new Node[size];
+        for (int i = 0; i < size; i++) {
+            nodes[i] = new Node();
+        }
+        Map<String, Node> map = new HashMap<>();
+        List<Object> list = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            Node n = nodes[i];
+            n.left = nodes[r.nextInt(size)];
+            if (r.nextBoolean()) n.right = nodes[r.nextInt(size)];
+            switch (r.nextInt(4)) {
+                case 0:
+                    n.payload = "Node " + r.nextInt(size / 4 + 1);
+                    break;
+                case 1:
+                    n.payload = new long[r.nextInt(8)];
+                    break;
+                case 2:
+                    n.payload = nodes[r.nextInt(size)];
+                    break;
+                default:
+                    n.payload = list;
+            }
+            if (r.nextInt(8) == 0) map.put("Key " + i, n);
+            if (r.nextInt(16) == 0) list.add(n.payload);
+        }
+
+        return new Object[] { nodes, map, list };
+    }
+
+    static void assertSameStats(Stats expected, Stats actual) {
+        assertEquals(expected.memoryUsed(), actual.memoryUsed());
+        assertEquals(expected.instanceCount(), actual.instanceCount());
+
+        ClassStats<?>[] expectedStats = expected.stats();
+        assertEquals(expectedStats.length, actual.stats().length);
+        for (ClassStats<?> e : expectedStats) {
+            ClassStats<?> a = actual.statsFor(e.type());
+            assertNotNull(a);
+            assertSameClassStats(e, a);
+        }
+    }
+
+    static void assertSameClassStats(ClassStats<?> expected, ClassStats<?> actual) {
+        String type = expected.type().getName();
+        assertEquals(type, expected.instanceCount(), actual.instanceCount());
+        assertEquals(type, expected.totalSize(), actual.totalSize());
+        assertEquals(type, expected.length(), actual.length());
+        assertEquals(type, new HashSet<>(Arrays.asList(expected.referencedBy())),
+                new HashSet<>(Arrays.asList(actual.referencedBy())));
+
+        Map<Object, Integer> refCounts = new IdentityHashMap<>();
+        for (int i = 0; i < expected.instanceCount(); i++) {
+            refCounts.put(expected.instances()[i], expected.referenceCounts()[i]);
+        }
+        for (int i = 0; i < actual.instanceCount(); i++) {
+            assertEquals(type, refCounts.get(actual.instances()[i]), (Integer) actual.referenceCounts()[i]);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package io.beans.sizeof;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+
+public class TraversalListenerTest {
+
+    /**
+     * Aggregates the events into per class totals.
+     */
+    static class Aggregator implements TraversalListener {
+        final Map<Class<?>, Boolean> classes = new HashMap<>();
+
+        final Map<Class<?>, Integer> counts = new HashMap<>();
+
+        final Map<Object, Boolean> counted = new IdentityHashMap<>();
+
+        final Map<String, Integer> references = new HashMap<>();
+
+        final List<Object> roots = new ArrayList<>();
+
+        long totalSize;
+
+        @Override
+        public void classFound(Class<?> type, boolean global) {
+            assertFalse(classes.containsKey(type));
+            classes.put(type, global);
+        }
+
+        @Override
+        public void counted(Object instance, long size) {
+            assertTrue(classes.containsKey(instance.getClass()));
+            assertFalse(counted.containsKey(instance));
+            counted.put(instance, Boolean.TRUE);
+            Integer c = counts.get(instance.getClass());
+            counts.put(instance.getClass(), c == null ? 1 : c + 1);
+            totalSize += size;
+        }
+
+        @Override
+        public void referenced(Object source, String refName, Object target) {
+            assertTrue(counted.containsKey(source));
+            Integer c = references.get(refName + " -> " + target.getClass().getName());
+            references.put(refName + " -> " + target.getClass().getName(), c == null ? 1 : c + 1);
+        }
+
+        @Override
+        public void measured(Object root) {
+            roots.add(root);
+        }
+    }
+
+    @Test
+    public void sameAsStatsTest() {
+        Object[] roots = TestGraphs.createGraph(10000, 42);
+        Environment e = SizeOf.createEnvironment();
+        Aggregator a = new Aggregator();
+        Collector c = e.createCollector(false).setListener(a);
+        for (Object r : roots) {
+            c.measure(r);
+        }
+
+        assertSameAsStats(c, a);
+        assertEquals(roots.length, a.roots.size());
+    }
+
+    @Test
+    public void parallelTest() {
+        Object[] roots = TestGraphs.createGraph(10000, 42);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Aggregator a = new Aggregator();
+            Collector c = SizeOf.createEnvironment().createParallelCollector(pool).setListener(a);
+            for (Object r : roots) {
+                c.measure(r);
+            }
+
+            assertSameAsStats(c, a);
+            assertEquals(roots.length, a.roots.size());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void incrementalTest() {
+        Object[] root = new Object[100];
+        for (int i = 0; i < root.length; i += 2) {
+            root[i] = new int[i];
+        }
+        Aggregator a = new Aggregator();
+        IncrementalCollector c = SizeOf.createEnvironment().createIncrementalCollector();
+        c.setListener(a).measure(root);
+        assertSameAsStats(c, a);
+        assertEquals(1, a.roots.size());
+
+        // Only the new references and instances get reported
+        for (int i = 1; i < root.length; i += 2) {
+            root[i] = new long[i];
+        }
+        c.update();
+        assertSameAsStats(c, a);
+        assertEquals(1, a.roots.size());
+    }
+
+    private static void assertSameAsStats(Collector c, Aggregator a) {
+        assertEquals(c.memoryUsed(), a.totalSize);
+        assertEquals(c.instanceCount(), a.counted.size());
+        assertEquals(c.stats().length, a.classes.size());
+        for (ClassStats<?> s : c.stats()) {
+            assertEquals(s.type().getName(), s.instanceCount(),
+                    a.counts.containsKey(s.type()) ? a.counts.get(s.type()).intValue() : 0);
+            for (ClassStats.Reference r : s.referencedBy()) {
+                Integer count = a.references.get(r.getName() + " -> " + s.type().getName());
+                assertNotNull(r.getName(), count);
+                assertEquals(r.getName(), r.getCount(), count.intValue());
+            }
+        }
+    }
+
+    @Test
+    public void sampledArrayTest() {
+        Object[] array = new Object[100000];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = new int[i % 100];
+        }
+        Aggregator a = new Aggregator();
+        Collector c = SizeOf.createEnvironment().createEstimatingCollector(0.05, 100).setListener(a);
+        c.measure(array);
+
+        // Only the sampled elements are reported, all of them referenced by the array
+        assertTrue(a.counted.size() <= 101);
+        assertEquals(a.counted.size() - 1, a.references.get(ClassSchema.elementRefName(Object[].class) + " -> " + int[].class.getName()).intValue());
+    }
+}